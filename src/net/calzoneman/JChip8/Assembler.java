@@ -13,438 +13,1014 @@ package net.calzoneman.JChip8;
  *                                                                            *
  ******************************************************************************/
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Single-pass assembler.  Code is emitted into a growable byte[] as each line
+ * is read; references to labels that aren't defined yet are recorded as fixups
+ * and patched once the whole source has been seen.  Lines are scanned in place
+ * by index, so apart from label names nothing is allocated per line.
+ *
+ * A label followed by DB/DW lines starts a data block.  Data blocks are laid
+ * out after the code (and its terminating 0x0000), in source order.  DB/DW
+ * lines outside a data block are emitted inline.
+ *
+ * Every error is collected with its line and column rather than stopping at
+ * the first one.
+ *
+ * INCLUDE "file" assembles another file in place, relative to the including
+ * file; each file is included at most once per assembly.  Included files are
+ * split into statements and macro definitions once per JVM and cached by
+ * content hash, so many ROMs sharing a library only parse it once.
+ *
+ * MACRO name [param, ...] ... ENDM defines a macro for the whole file and any
+ * file that includes it.  A statement naming a macro is replaced by its body
+ * with each parameter substituted by the matching argument, and \@ by a
+ * number unique to the expansion (for labels local to a macro).  Expansion is
+ * limited in depth and total size so a recursive macro is reported rather
+ * than hanging the assembler.
+ */
 public class Assembler {
-	
-	public static final String reservedRefs = "v0v1v2v3v4v5v6v7v8v9vavbvcvdvevfdtsti[i]fbk";
-	public static final String opcodes = "CLSRETJPCALLSESNELDADDANDXORSHRSUBNSHLDRWSKPSKNPRND";
-	
+
+	public static final String[] reservedRefs = { "v0", "v1", "v2", "v3", "v4", "v5", "v6", "v7", "v8", "v9",
+			"va", "vb", "vc", "vd", "ve", "vf", "dt", "st", "i", "[i]", "f", "b", "k", "hf", "r" };
+
+	// Mnemonics
+	private static final int M_CLS = 1, M_RET = 2, M_JP = 3, M_CALL = 4, M_SE = 5, M_SNE = 6, M_LD = 7, M_ADD = 8,
+			M_OR = 9, M_AND = 10, M_XOR = 11, M_SUB = 12, M_SHR = 13, M_SUBN = 14, M_SHL = 15, M_RND = 16, M_DRW = 17,
+			M_SKP = 18, M_SKNP = 19, M_DB = 20, M_DW = 21, M_LABEL = 22, M_SCD = 23, M_SCR = 24, M_SCL = 25,
+			M_EXIT = 26, M_LOW = 27, M_HIGH = 28;
+	private static final String[] MNEMONICS = { null, "CLS", "RET", "JP", "CALL", "SE", "SNE", "LD", "ADD", "OR", "AND",
+			"XOR", "SUB", "SHR", "SUBN", "SHL", "RND", "DRW", "SKP", "SKNP", "DB", "DW", "LABEL",
+			"SCD", "SCR", "SCL", "EXIT", "LOW", "HIGH" };
+
+	// Mnemonics packed 5 bits per letter, sorted for binary search, with their ids
+	private static final int[] MNEMONIC_KEYS;
+	private static final int[] MNEMONIC_IDS;
+	static {
+		long[] pairs = new long[MNEMONICS.length - 1];
+		for(int id = 1; id < MNEMONICS.length; id++) {
+			String m = MNEMONICS[id];
+			pairs[id - 1] = ((long) pack(m, 0, m.length()) << 8) | id;
+		}
+		Arrays.sort(pairs);
+		MNEMONIC_KEYS = new int[pairs.length];
+		MNEMONIC_IDS = new int[pairs.length];
+		for(int i = 0; i < pairs.length; i++) {
+			MNEMONIC_KEYS[i] = (int) (pairs[i] >> 8);
+			MNEMONIC_IDS[i] = (int) (pairs[i] & 0xFF);
+		}
+	}
+
+	// Directives handled before assembly, packed like the mnemonics
+	private static final int MACRO = pack("MACRO", 0, 5), ENDM = pack("ENDM", 0, 4);
+
+	// Operand types
+	private static final int T_REG = 1, T_NUM = 2, T_ADDR = 3, T_SYM = 4, T_I = 5, T_IND_I = 6, T_DT = 7, T_ST = 8,
+			T_K = 9, T_F = 10, T_B = 11, T_HF = 12, T_R = 13;
+
+	private static final int MAX_OPERANDS = 4;
+	private static final int MAX_DEPTH = 32; // Nested includes and macro expansions
+	private static final int MAX_EXPANDED = 1 << 16; // Lines produced by macro expansion in one assembly
+	private static final int DATA = 0x10000; // Flags a symbol as an offset into the data segment
+
+	// Parsed included files by content hash
+	private static final ConcurrentHashMap<String, Module> modules = new ConcurrentHashMap<String, Module>();
+
+	private final SourceMap map;
+	private final ArrayList<Found> found = new ArrayList<Found>();
+
+	private byte[] code = new byte[512];
+	private int codeLen = 0;
+	private byte[] data = new byte[256];
+	private int dataLen = 0;
+	private HashMap<String, Integer> symbols = new HashMap<String, Integer>();
+
+	// Fixups: the code offset of an instruction whose low 12 bits are the address of a symbol
+	private int[] fixupPos = new int[64];
+	private int[] fixupLine = new int[64];
+	private int[] fixupCol = new int[64];
+	private int[] fixupSeq = new int[64];
+	private String[] fixupFile = new String[64];
+	private String[] fixupSym = new String[64];
+	private int fixupCount = 0;
+
+	// Labels waiting for the next statement to tell whether they name code or data
+	private String pendingLabel = null;
+	private String pendingFile;
+	private int pendingLine, pendingCol, pendingSeq;
+
+	// Current data block, and all blocks for the source map
+	private String dataLabel = null;
+	private int dataLabelStart;
+	private ArrayList<String> blockLabels = new ArrayList<String>();
+	private ArrayList<Integer> blockStarts = new ArrayList<Integer>();
+
+	// Includes and macros
+	private HashSet<Path> included = new HashSet<Path>();
+	private HashMap<String, Macro> macros = new HashMap<String, Macro>();
+	private int depth = 0;
+	private int expanded = 0;
+	private int expansions = 0;
+	private String context = ""; // Appended to errors inside a macro expansion
+
+	// Location of the current line.  seq orders lines as assembled, across files.
+	private String file;
+	private Path dir;
+	private int mapLine; // Line of the top-level source output is attributed to, or -1
+	private int seq = 0;
+
+	// Operands of the current line
+	private String line;
+	private int ln;
+	private int opCount;
+	private int[] opType = new int[MAX_OPERANDS];
+	private int[] opValue = new int[MAX_OPERANDS];
+	private int[] opStart = new int[MAX_OPERANDS];
+	private int[] opEnd = new int[MAX_OPERANDS];
+
+	private Assembler(SourceMap map) {
+		this.map = map;
+	}
+
+	// An error and where it was found, for reporting in source order
+	private static class Found implements Comparable<Found> {
+		final long order;
+		final Diagnostic diagnostic;
+
+		Found(int seq, int column, Diagnostic diagnostic) {
+			this.order = ((long) seq << 32) | column;
+			this.diagnostic = diagnostic;
+		}
+
+		@Override
+		public int compareTo(Found other) {
+			return Long.compare(order, other.order);
+		}
+	}
+
+	// A source file split into statements and macro definitions, with any errors found doing so
+	private static class Module {
+		final ArrayList<String> lines = new ArrayList<String>();
+		final ArrayList<Integer> numbers = new ArrayList<Integer>();
+		final ArrayList<Macro> macros = new ArrayList<Macro>();
+		final ArrayList<Diagnostic> errors = new ArrayList<Diagnostic>(); // File is filled in when reported
+	}
+
+	private static class Macro {
+		String name;
+		String[] params;
+		String file;
+		int line;
+		final ArrayList<String> body = new ArrayList<String>();
+		final ArrayList<Integer> numbers = new ArrayList<Integer>();
+	}
+
 	public static byte[] assemble(ArrayList<String> src) {
-		ArrayList<Byte> code = new ArrayList<Byte>();
-		HashMap<Integer, String> jumps = new HashMap<Integer, String>();
-		HashMap<Integer, String> refs = new HashMap<Integer, String>();
-		HashMap<String, ArrayList<Byte>> data = new HashMap<String, ArrayList<Byte>>();
-		HashMap<String, Integer> labels = new HashMap<String, Integer>();
-		
-		// Instruction counter
-		int ic = 0;
-		
-		String currentDataLabel = null;
-		ArrayList<Byte> currentData = null;
-		boolean readingData = false;
-		
-		for(int ln = 0; ln < src.size(); ln++) {
-			String line = src.get(ln);
-			// Clean the line
-			if(line.contains(";")) {
-				line = line.substring(0, line.indexOf(";"));
-			}
-			line = line.replace('\t', ' ').trim().toUpperCase();
-			if(line.isEmpty()) {
-				continue;
-			}
-			
-			String opcode = line.split(" ")[0].trim();
-			String[] rawargs = line.contains(" ") ? line.substring(line.indexOf(" ")).split(",") : new String[] { "" };
-			String[] args = new String[rawargs.length];
-			for(int i = 0; i < rawargs.length; i++) {
-				args[i] = rawargs[i].trim().toLowerCase();
-			}
-			
-			try {
-				if(opcode.equals("CLS")) {
-					code.add((byte) 0x00);
-					code.add((byte) 0xE0);
-				}
-				else if(opcode.equals("RET")) {
-					code.add((byte) 0x00);
-					code.add((byte) 0xEE);
-				}
-				else if(opcode.equals("JP")) {
-					if(args[0].equals("v0")) {
-						short addr = parseShort(args[1]);
-						code.add((byte) (0xB0 | (addr >> 8)));
-						code.add((byte) (addr & 0x00FF));
-					}
-					else if(args[0].startsWith("$")) {
-						code.add((byte) (0x10 | (parseShort(args[0].substring(1)) >> 8)));
-						code.add((byte) (parseShort(args[0].substring(1)) & 0x00FF));
-					}
-					else {
-						code.add((byte) 0x10);
-						code.add((byte) 0x00);
-						jumps.put(ic, args[0]);
-					}
-				}
-				else if(opcode.equals("CALL")) {
-					if(args[0].startsWith("$")) {
-						code.add((byte) (0x20 | (parseShort(args[0].substring(1)) >> 8)));
-						code.add((byte) (parseShort(args[0].substring(1)) & 0x00FF));
-					}
-					else {
-						code.add((byte) 0x20);
-						code.add((byte) 0x00);
-						jumps.put(ic, args[0]);
-					}
-				}
-				else if(opcode.equals("SE")) {
-					byte nyb = 0x30;
-					if(args[1].startsWith("v")) {
-						nyb = 0x50;
-					}
-					code.add((byte) (nyb | parseByte(args[0].substring(1))));
-					if(nyb == 0x30) {
-						code.add(parseByte(args[1]));
-					}
-					else {
-						code.add((byte) (parseByte(args[1].substring(1)) << 4));
-					}
-				}
-				else if(opcode.equals("SNE")) {
-					byte nyb = 0x40;
-					if(args[1].startsWith("v")) {
-						nyb = (byte) 0x90;
-					}
-					code.add((byte) (nyb | Byte.parseByte(args[0].substring(1), 16)));
-					if(nyb == 0x40) {
-						code.add(parseByte(args[1]));
-					}
-					else {
-						code.add((byte) (parseByte(args[1].substring(1)) << 4));
-					}
-				}
-				else if(opcode.equals("LD")) {
-					if(args[0].startsWith("v")) {
-						if(args[1].startsWith("v")) {
-							code.add((byte) (0x80 | parseByte(args[0].substring(1))));
-							code.add((byte) (parseByte(args[1].substring(1)) << 4));
-						}
-						else if(args[1].equals("dt")) {
-							code.add((byte) (0xF0 | parseByte(args[0].substring(1))));
-							code.add((byte) 0x07);
-						}
-						else if(args[1].equals("k")) {
-							code.add((byte) (0xF0 | parseByte(args[0].substring(1))));
-							code.add((byte) 0x0A);
-						}
-						else if(args[1].equals("[i]")) {
-							code.add((byte) (0xF0 | parseByte(args[0].substring(1))));
-							code.add((byte) 0x65);
-						}
-						else {
-							code.add((byte) (0x60 | parseByte(args[0].substring(1))));
-							code.add(parseByte(args[1]));
-						}
-					}
-					else if(args[0].equals("i")) {
-						if(args[1].startsWith("$")) {
-							code.add((byte) (0xA0 | (parseShort(args[1].substring(1)) >> 8)));
-							code.add((byte) (parseShort(args[1].substring(1)) & 0x00FF));
-						}
-						else {
-							refs.put(ic, args[1]);
-							code.add((byte) 0xA0);
-							code.add((byte) 0x00);
-						}
-					}
-					else if(args[0].equals("dt")) {
-						code.add((byte) (0xF0 | parseByte(args[1].substring(1))));
-						code.add((byte) 0x15);
-					}
-					else if(args[0].equals("st")) {
-						code.add((byte) (0xF0 | parseByte(args[1].substring(1))));
-						code.add((byte) 0x18);
-					}
-					else if(args[0].equals("f")) {
-						code.add((byte) (0xF0 | parseByte(args[1].substring(1))));
-						code.add((byte) 0x29);
-					}
-					else if(args[0].equals("b")) {
-						code.add((byte) (0xF0 | parseByte(args[1].substring(1))));
-						code.add((byte) 0x33);
-					}
-					else if(args[0].equals("[i]")) {
-						code.add((byte) (0xF0 | parseByte(args[1].substring(1))));
-						code.add((byte) 0x55);
-					}
-					else {
-						System.out.println("Unrecognized LD syntax at line " + (ln+1));
-						System.out.println("> " + opcode + " " + args[0] + ", " + args[1]);
-						return null;
-					}
-				}
-				else if(opcode.equals("ADD")) {
-					if(args[0].startsWith("v")) {
-						if(args[1].startsWith("v")) {
-							code.add((byte) (0x80 | parseByte(args[0].substring(1))));
-							code.add((byte) ((parseByte(args[1].substring(1)) << 4) | 0x04));
-						}
-						else {
-							code.add((byte) (0x70 | parseByte(args[0].substring(1))));
-							code.add(parseByte(args[1]));
-						}
-					}
-					else if(args[0].equals("i")) {
-						if (!args[1].startsWith("v")) {
-							System.out.println("Unrecognized ADD syntax at line " + (ln+1));
-							System.out.println("> " + opcode + " " + args[0] + ", " + args[1]);
-							return null;
-						}
-						
-						code.add((byte) (0xF0 | parseByte(args[1].substring(1))));
-						code.add((byte) 0x1E);
-					}
-				}
-				else if(opcode.equals("OR")) {
-					code.add((byte) (0x80 | parseByte(args[0].substring(1))));
-					code.add((byte) ((parseByte(args[1].substring(1)) << 4) | 0x01));
-				}
-				else if(opcode.equals("AND")) {
-					code.add((byte) (0x80 | parseByte(args[0].substring(1))));
-					code.add((byte) ((parseByte(args[1].substring(1)) << 4) | 0x02));
-				}
-				else if(opcode.equals("XOR")) {
-					code.add((byte) (0x80 | parseByte(args[0].substring(1))));
-					code.add((byte) ((parseByte(args[1].substring(1)) << 4) | 0x03));
-				}
-				else if(opcode.equals("SUB")) {
-					code.add((byte) (0x80 | parseByte(args[0].substring(1))));
-					code.add((byte) ((parseByte(args[1].substring(1)) << 4) | 0x05));
-				}
-				else if(opcode.equals("SHR")) {
-					code.add((byte) (0x80 | parseByte(args[0].substring(1))));
-					code.add((byte) ((parseByte(args[1].substring(1)) << 4) | 0x06));
-				}
-				else if(opcode.equals("SUBN")) {
-					code.add((byte) (0x80 | parseByte(args[0].substring(1))));
-					code.add((byte) ((parseByte(args[1].substring(1)) << 4) | 0x07));
+		return assemble(src, null);
+	}
+
+	/**
+	 * Assembles src, recording the address of each line and label into map if it is non-null.
+	 * Errors are printed; returns null if there were any.
+	 */
+	public static byte[] assemble(ArrayList<String> src, SourceMap map) {
+		ArrayList<Diagnostic> errors = new ArrayList<Diagnostic>();
+		byte[] rom = assemble(src, map, errors);
+		for(Diagnostic d : errors) {
+			System.out.println(d);
+		}
+		return rom;
+	}
+
+	/**
+	 * Assembles src, adding every error found to errors.  Returns null if there were any.
+	 * INCLUDE paths are resolved against the working directory.
+	 */
+	public static byte[] assemble(List<String> src, SourceMap map, List<Diagnostic> errors) {
+		return assemble(src, null, map, errors);
+	}
+
+	/**
+	 * Assembles src, read from file, adding every error found to errors.  Returns null if there were
+	 * any.  INCLUDE paths are resolved against the directory of file, which may be null.
+	 */
+	public static byte[] assemble(List<String> src, Path file, SourceMap map, List<Diagnostic> errors) {
+		Assembler asm = new Assembler(map);
+		Module root = parse(src);
+		String name = null;
+		asm.dir = null;
+		if(file != null) {
+			file = file.toAbsolutePath().normalize();
+			asm.included.add(file);
+			if(map != null) map.addFile(file);
+			asm.dir = file.getParent();
+			name = file.getFileName().toString();
+		}
+		asm.module(root, name, true);
+		byte[] rom = asm.finish();
+		// Undefined labels are only found at the end; put them back in source order
+		Collections.sort(asm.found);
+		for(Found f : asm.found) {
+			errors.add(f.diagnostic);
+		}
+		return asm.found.isEmpty() ? rom : null;
+	}
+
+	private void error(int column, String message) {
+		found.add(new Found(seq, column + 1, new Diagnostic(file, ln, column + 1, message + context)));
+	}
+
+	/**
+	 * Splits src into statements and macro definitions.  Lines inside MACRO ... ENDM are taken out of
+	 * the statements; all other lines are kept with their line numbers.
+	 */
+	private static Module parse(List<String> src) {
+		Module module = new Module();
+		Macro macro = null;
+		for(int i = 0; i < src.size(); i++) {
+			String text = src.get(i);
+			int end = text.indexOf(';');
+			if(end < 0) end = text.length();
+			int p = 0;
+			while(p < end && isSpace(text.charAt(p))) p++;
+			int wordEnd = p;
+			while(wordEnd < end && !isSpace(text.charAt(wordEnd))) wordEnd++;
+			int directive = pack(text, p, wordEnd);
+
+			if(directive == MACRO) {
+				if(macro != null) {
+					module.errors.add(new Diagnostic(i + 1, 1, "MACRO inside macro '" + macro.name + "'"));
+					continue;
 				}
-				else if(opcode.equals("SHL")) {
-					code.add((byte) (0x80 | parseByte(args[0].substring(1))));
-					code.add((byte) ((parseByte(args[1].substring(1)) << 4) | 0x08));
+				macro = new Macro();
+				macro.line = i + 1;
+				String rest = text.substring(wordEnd, end).trim();
+				String[] params = !rest.isEmpty() ? rest.split("[\\s,]+", 2) : new String[] { "" };
+				macro.name = params[0].toLowerCase();
+				macro.params = params.length > 1 ? params[1].trim().toLowerCase().split("\\s*,\\s*") : new String[0];
+				if(macro.name.isEmpty() || lookup(pack(macro.name, 0, macro.name.length())) != 0 || isReserved(macro.name)) {
+					module.errors.add(new Diagnostic(i + 1, 1, "Invalid macro name '" + macro.name + "'"));
 				}
-				else if(opcode.equals("RND")) {
-					code.add((byte) (0xC0 | parseByte(args[0].substring(1))));
-					code.add(parseByte(args[1]));
+				else {
+					module.macros.add(macro);
 				}
-				else if(opcode.equals("DRW")) {
-					code.add((byte) (0xD0 | parseByte(args[0].substring(1))));
-					code.add((byte) ((parseByte(args[1].substring(1)) << 4) | parseByte(args[2])));
+			}
+			else if(directive == ENDM) {
+				if(macro == null) module.errors.add(new Diagnostic(i + 1, 1, "ENDM without MACRO"));
+				macro = null;
+			}
+			else if(macro != null) {
+				macro.body.add(text);
+				macro.numbers.add(i + 1);
+			}
+			else if(p < end) {
+				module.lines.add(text);
+				module.numbers.add(i + 1);
+			}
+		}
+		if(macro != null) {
+			module.errors.add(new Diagnostic(macro.line, 1, "MACRO '" + macro.name + "' has no ENDM"));
+		}
+		return module;
+	}
+
+	// Assembles a parsed file; output is attributed to its lines in the source map if top is set
+	private void module(Module module, String name, boolean top) {
+		for(Diagnostic d : module.errors) {
+			found.add(new Found(seq, d.getColumn(), new Diagnostic(name, d.getLine(), d.getColumn(), d.getMessage())));
+		}
+		for(Macro m : module.macros) {
+			if(macros.containsKey(m.name)) {
+				found.add(new Found(seq, 1, new Diagnostic(name, m.line, 1, "Duplicate macro '" + m.name + "'")));
+				continue;
+			}
+			Macro defined = new Macro();
+			defined.name = m.name;
+			defined.params = m.params;
+			defined.file = name;
+			defined.line = m.line;
+			defined.body.addAll(m.body);
+			defined.numbers.addAll(m.numbers);
+			macros.put(m.name, defined);
+		}
+		for(int i = 0; i < module.lines.size(); i++) {
+			int number = module.numbers.get(i);
+			line(module.lines.get(i), name, number, top ? number : -1);
+		}
+	}
+
+	private void line(String text, String name, int number, int attributeTo) {
+		line = text;
+		file = name;
+		ln = number;
+		mapLine = attributeTo;
+		seq++;
+		int end = text.indexOf(';');
+		if(end < 0) end = text.length();
+		int p = skipSpace(0, end);
+		if(p == end) return;
+
+		int wordEnd = p;
+		while(wordEnd < end && !isSpace(text.charAt(wordEnd))) wordEnd++;
+
+		// some_label: [statement]
+		if(text.charAt(wordEnd - 1) == ':') {
+			label(p, wordEnd - 1);
+			p = skipSpace(wordEnd, end);
+			if(p == end) return;
+			wordEnd = p;
+			while(wordEnd < end && !isSpace(text.charAt(wordEnd))) wordEnd++;
+		}
+
+		int mnemonic = lookup(pack(text, p, wordEnd));
+		if(mnemonic == 0) {
+			String word = text.substring(p, wordEnd).toLowerCase();
+			Macro macro = macros.get(word);
+			if(macro != null) {
+				expand(macro, wordEnd, end);
+			}
+			else if(word.equals("include")) {
+				include(wordEnd, end);
+			}
+			else {
+				error(p, "Unknown instruction '" + text.substring(p, wordEnd) + "'");
+			}
+			return;
+		}
+		if(!parseOperands(wordEnd, end)) return;
+		statement(mnemonic, p);
+	}
+
+	private void include(int start, int end) {
+		String name = line.substring(start, end).trim();
+		if(name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) name = name.substring(1, name.length() - 1);
+		if(name.isEmpty()) {
+			error(start, "INCLUDE needs a file name");
+			return;
+		}
+		if(depth == MAX_DEPTH) {
+			error(start, "Includes nested too deeply");
+			return;
+		}
+		Path path = (dir != null ? dir.resolve(name) : Paths.get(name)).toAbsolutePath().normalize();
+		if(!included.add(path)) return; // Already included
+		if(map != null) map.addFile(path);
+
+		Module module;
+		try {
+			module = load(path);
+		}
+		catch(IOException ex) {
+			error(start, "Unable to read " + name);
+			return;
+		}
+		String savedFile = file;
+		Path savedDir = dir;
+		int savedLine = ln, savedMapLine = mapLine;
+		String savedContext = context;
+		dir = path.getParent();
+		context = "";
+		depth++;
+		module(module, path.getFileName().toString(), false);
+		depth--;
+		file = savedFile;
+		dir = savedDir;
+		ln = savedLine;
+		mapLine = savedMapLine;
+		context = savedContext;
+	}
+
+	// Reads and parses a file, reusing the parse of any file with the same contents
+	private static Module load(Path path) throws IOException {
+		byte[] bytes = Files.readAllBytes(path);
+		String key;
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+			StringBuilder sb = new StringBuilder();
+			for(byte b : digest) {
+				sb.append(Disassembler.hex(b));
+			}
+			key = sb.toString();
+		}
+		catch(NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex); // Every JVM has SHA-256
+		}
+		Module module = modules.get(key);
+		if(module == null) {
+			String text = new String(bytes, StandardCharsets.UTF_8);
+			module = parse(Arrays.asList(text.split("\r?\n", -1)));
+			modules.putIfAbsent(key, module);
+		}
+		return module;
+	}
+
+	// Assembles a macro's body with its parameters replaced by the arguments in [start, end)
+	private void expand(Macro macro, int start, int end) {
+		String[] args = new String[0];
+		String rest = line.substring(start, end).trim();
+		if(!rest.isEmpty()) {
+			args = rest.split("\\s*,\\s*");
+		}
+		if(args.length != macro.params.length) {
+			error(start, "Macro '" + macro.name + "' takes " + macro.params.length + " argument" + (macro.params.length == 1 ? "" : "s") + " but was given " + args.length);
+			return;
+		}
+		if(depth == MAX_DEPTH) {
+			error(start, "Macro expansion nested too deeply; is '" + macro.name + "' recursive?");
+			return;
+		}
+		if(expanded + macro.body.size() > MAX_EXPANDED) {
+			error(start, "Macro expansion too large; is '" + macro.name + "' recursive?");
+			return;
+		}
+		expanded += macro.body.size();
+
+		String savedFile = file;
+		int savedLine = ln, savedMapLine = mapLine;
+		String savedContext = context;
+		String unique = "_" + (++expansions);
+		if(context.isEmpty()) context = " (in macro '" + macro.name + "' expanded at " + (file != null ? file + ":" : "line ") + ln + ")";
+		depth++;
+		for(int i = 0; i < macro.body.size(); i++) {
+			line(substitute(macro.body.get(i), macro.params, args, unique), macro.file, macro.numbers.get(i), savedMapLine);
+		}
+		depth--;
+		file = savedFile;
+		ln = savedLine;
+		mapLine = savedMapLine;
+		context = savedContext;
+	}
+
+	// Replaces whole-word, case-insensitive occurrences of params with args, and \@ with unique
+	private static String substitute(String text, String[] params, String[] args, String unique) {
+		int comment = text.indexOf(';');
+		if(comment >= 0) text = text.substring(0, comment);
+		StringBuilder sb = new StringBuilder(text.length() + 16);
+		int i = 0;
+		while(i < text.length()) {
+			char c = text.charAt(i);
+			if(c == '\\' && i + 1 < text.length() && text.charAt(i + 1) == '@') {
+				sb.append(unique);
+				i += 2;
+			}
+			else if(Character.isLetterOrDigit(c) || c == '_' || c == '.') {
+				int j = i;
+				while(j < text.length() && (Character.isLetterOrDigit(text.charAt(j)) || text.charAt(j) == '_' || text.charAt(j) == '.')) j++;
+				String word = text.substring(i, j);
+				int k = 0;
+				while(k < params.length && !params[k].equalsIgnoreCase(word)) k++;
+				sb.append(k < params.length ? args[k] : word);
+				i = j;
+			}
+			else {
+				sb.append(c);
+				i++;
+			}
+		}
+		return sb.toString();
+	}
+
+	private void label(int start, int end) {
+		if(start == end) {
+			error(start, "Empty label");
+			return;
+		}
+		String name = line.substring(start, end).toLowerCase();
+		if(isReserved(name)) {
+			error(start, "Invalid label name '" + name + "'");
+			return;
+		}
+		definePending();
+		pendingLabel = name;
+		pendingFile = file;
+		pendingLine = ln;
+		pendingCol = start + 1;
+		pendingSeq = seq;
+	}
+
+	private void definePending() {
+		if(pendingLabel == null) return;
+		if(symbols.containsKey(pendingLabel)) {
+			found.add(new Found(pendingSeq, pendingCol, new Diagnostic(pendingFile, pendingLine, pendingCol, "Duplicate label '" + pendingLabel + "'")));
+		}
+		else {
+			define(pendingLabel, 0x200 + codeLen, pendingCol - 1);
+		}
+		pendingLabel = null;
+	}
+
+	// Defines a label found at column on the current line
+	private void define(String name, int value, int column) {
+		if(symbols.containsKey(name)) {
+			error(column, "Duplicate label '" + name + "'");
+			return;
+		}
+		symbols.put(name, value);
+		if(map != null && (value & DATA) == 0) map.addLabel(name, value);
+	}
+
+	private void statement(int mnemonic, int column) {
+		boolean isData = mnemonic == M_DB || mnemonic == M_DW;
+		boolean startsBlock = isData && opCount == 1 && pendingLabel != null;
+
+		if(startsBlock) {
+			if(symbols.containsKey(pendingLabel)) {
+				found.add(new Found(pendingSeq, pendingCol, new Diagnostic(pendingFile, pendingLine, pendingCol, "Duplicate label '" + pendingLabel + "'")));
+			}
+			else {
+				symbols.put(pendingLabel, DATA | dataLen);
+			}
+			dataLabel = pendingLabel;
+			dataLabelStart = dataLen;
+			blockLabels.add(dataLabel);
+			blockStarts.add(dataLen);
+			pendingLabel = null;
+		}
+		else {
+			definePending();
+		}
+		if(!isData) dataLabel = null;
+
+		int x = opCount > 0 ? opValue[0] : 0;
+		int y = opCount > 1 ? opValue[1] : 0;
+		switch(mnemonic) {
+			case M_CLS:
+				if(operands(0, column)) emit(0x00E0);
+				break;
+			case M_RET:
+				if(operands(0, column)) emit(0x00EE);
+				break;
+			case M_SCD:
+				if(operands(1, column)) {
+					if(opType[0] != T_NUM || x < 0 || x > 15) error(opStart[0], "Scroll distance must be 0-15");
+					else emit(0x00C0 | x);
 				}
-				else if(opcode.equals("SKP")) {
-					code.add((byte) (0xE0 | parseByte(args[0].substring(1))));
-					code.add((byte) 0x9E);
+				break;
+			case M_SCR:
+				if(operands(0, column)) emit(0x00FB);
+				break;
+			case M_SCL:
+				if(operands(0, column)) emit(0x00FC);
+				break;
+			case M_EXIT:
+				if(operands(0, column)) emit(0x00FD);
+				break;
+			case M_LOW:
+				if(operands(0, column)) emit(0x00FE);
+				break;
+			case M_HIGH:
+				if(operands(0, column)) emit(0x00FF);
+				break;
+			case M_JP:
+				if(opCount == 2 && opType[0] == T_REG) {
+					if(x != 0) error(opStart[0], "Indexed JP only works with V0");
+					else address(0xB000, 1);
 				}
-				else if(opcode.equals("SKNP")) {
-					code.add((byte) (0xE0 | parseByte(args[0].substring(1))));
-					code.add((byte) 0xA1);
+				else if(operands(1, column)) {
+					address(0x1000, 0);
 				}
-				else if(opcode.equals("DB")) {
-					if(reservedRefs.contains(args[0])) {
-						System.out.println("Invalid reference name at line " + (ln+1));
-						return null;
-					}
-					else if(args.length == 2) {
-						ArrayList<Byte> single = new ArrayList<Byte>();
-						single.add(parseByte(args[1]));
-						data.put(args[0], single);
-						if(readingData) {
-							readingData = false;
-							data.put(currentDataLabel, currentData);
-							currentDataLabel = null;
-							currentData = null;
-						}
-					}
-					else if(readingData) {
-						currentData.add(parseByte(args[0]));
-					}
+				break;
+			case M_CALL:
+				if(operands(1, column)) address(0x2000, 0);
+				break;
+			case M_SE:
+			case M_SNE:
+				if(!operands(2, column) || !register(0)) break;
+				if(opType[1] == T_REG) emit((mnemonic == M_SE ? 0x5000 : 0x9000) | (x << 8) | (y << 4));
+				else if(byteOperand(1)) emit((mnemonic == M_SE ? 0x3000 : 0x4000) | (x << 8) | (y & 0xFF));
+				break;
+			case M_LD:
+				if(operands(2, column)) load();
+				break;
+			case M_ADD:
+				if(!operands(2, column)) break;
+				if(opType[0] == T_I) {
+					if(register(1)) emit(0xF01E | (y << 8));
 				}
-				else if(opcode.equals("DW")) {
-					if(reservedRefs.contains(args[0])) {
-						System.out.println("Invalid reference name at line " + (ln+1));
-						return null;
-					}
-					else if(args.length == 2) {
-						short d = parseShort(args[1]);
-						ArrayList<Byte> single = new ArrayList<Byte>();
-						single.add((byte) (d >> 8));
-						single.add((byte) (d & 0x00FF));
-						data.put(args[0], single);
-						if(readingData) {
-							readingData = false;
-							data.put(currentDataLabel, currentData);
-							currentDataLabel = null;
-							currentData = null;
-						}
-					}
-					else if(readingData) {
-						currentData.add((byte) (parseShort(args[0]) >> 8));
-						currentData.add((byte) (parseShort(args[0]) & 0x00FF));
-					}
+				else if(register(0)) {
+					if(opType[1] == T_REG) emit(0x8004 | (x << 8) | (y << 4));
+					else if(byteOperand(1)) emit(0x7000 | (x << 8) | (y & 0xFF));
 				}
-				else if(opcode.equals("LABEL")) {
-					if(reservedRefs.contains(args[0])) {
-						System.out.println("Invalid reference name at line " + (ln+1));
-						return null;
-					}
-					labels.put(args[0], ic);
+				break;
+			case M_OR:
+			case M_AND:
+			case M_XOR:
+			case M_SUB:
+			case M_SUBN:
+				if(operands(2, column) && register(0) && register(1)) {
+					int n = mnemonic == M_OR ? 1 : mnemonic == M_AND ? 2 : mnemonic == M_XOR ? 3 : mnemonic == M_SUB ? 5 : 7;
+					emit(0x8000 | (x << 8) | (y << 4) | n);
 				}
-				// Handle syntax of the form some_label:
-				else if(opcode.endsWith(":")) {
-					args[0] = opcode.substring(0, opcode.indexOf(":")).toLowerCase();
-					if(reservedRefs.contains(args[0])) {
-						System.out.println("Invalid reference name at line " + (ln+1));
-						return null;
-					}
-					else if(readingData) {
-						readingData = false;
-						data.put(currentDataLabel, currentData);
-						currentDataLabel = null;
-						currentData = null;
-					}
-					String next = "";
-					for(int i = ln+1; i < src.size(); i++) {
-						next = src.get(i);
-						if(next.contains(";")) {
-							next = next.substring(0, next.indexOf(";"));
-						}
-						next = next.replace('\t', ' ').trim().toUpperCase();
-						if(next.isEmpty()) {
-							continue;
-						}
-						else {
-							break;
-						}
-					}
-					if(opcodes.contains(next.split(" ")[0].trim())) {
-						labels.put(args[0], ic);
-						if(readingData) {
-							readingData = false;
-							data.put(currentDataLabel, currentData);
-							currentDataLabel = null;
-							currentData = null;
-						}
-					}
-					else {
-						currentDataLabel = args[0];
-						currentData = new ArrayList<Byte>();
-						readingData = true;
+				break;
+			case M_SHR:
+			case M_SHL:
+				// Vy is optional and defaults to Vx, so the result is the same whether or not the
+				// SHIFT_VX quirk makes the VCPU ignore Vy
+				if(opCount == 1 || opCount == 2) {
+					if(register(0) && (opCount == 1 || register(1))) {
+						emit(0x8000 | (x << 8) | (opCount == 2 ? y : x) << 4 | (mnemonic == M_SHR ? 0x6 : 0xE));
 					}
 				}
 				else {
-					System.out.println("Unrecognized token at line " + (ln+1));
-					System.out.println(line);
-					return null;
-				}
-				
-				if(opcodes.contains(opcode)) {
-					ic += 2;
-					if(readingData) {
-						readingData = false;
-						data.put(currentDataLabel, currentData);
-						currentDataLabel = null;
-						currentData = null;
-					}
-				}
-
-				if(ln+1 >= src.size() && readingData) {
-					readingData = false;
-					data.put(currentDataLabel, currentData);
-					currentDataLabel = null;
-					currentData = null;
+					error(column, MNEMONICS[mnemonic] + " takes 1 or 2 operands");
 				}
-				
-			}
-			catch(NumberFormatException e) {
-				System.out.println("Number format error at line " + (ln+1));
-				return null;
-			}
-			catch(ArrayIndexOutOfBoundsException e) {
-				System.out.println("Parameter error for instruction '" + opcode + " " + args[0] +  "' at line " + (ln+1));
-				e.printStackTrace();
-				return null;
-			}
-			catch(Exception e) {
-				System.out.println("Assembly failure at line " + (ln+1));
-				return null;
-			}
-		}
-		code.add((byte) 0x00);
-		code.add((byte) 0x00);
-		ic += 2;
-		
-		// Tie up JP and CALL references
-		for(int k : jumps.keySet()) {
-			if(!labels.containsKey(jumps.get(k))) {
-				System.out.println("Invalid reference '" + jumps.get(k) + "' at line " + (k+1));
-				return null;
-			}
-			short dest = (short)(labels.get(jumps.get(k)) + 0x200);
-			byte b1 = code.get(k);
-			byte b2 = code.get(k+1);
-			b1 |= (dest >> 8);
-			b2 = (byte) (dest & 0x00FF);
-			code.set(k, b1);
-			code.set(k+1, b2);
-		}
-		
-		// Take care of addressing references
-		HashMap<String, Short> locations = new HashMap<String, Short>();
-		for(String k : data.keySet()) {
-			if(k != null) {
-				locations.put(k, (short) (ic + 0x200));
-				if(data.get(k) == null) {
-					System.out.println("Null reference for " + k);
+				break;
+			case M_RND:
+				if(operands(2, column) && register(0) && byteOperand(1)) emit(0xC000 | (x << 8) | (y & 0xFF));
+				break;
+			case M_DRW:
+				if(operands(3, column) && register(0) && register(1)) {
+					if(opType[2] != T_NUM || opValue[2] < 0 || opValue[2] > 15) error(opStart[2], "Sprite height must be 0-15");
+					else emit(0xD000 | (x << 8) | (y << 4) | opValue[2]);
 				}
-				for(byte b : data.get(k)) {
-					code.add(b);
-					ic++;
+				break;
+			case M_SKP:
+				if(operands(1, column) && register(0)) emit(0xE09E | (x << 8));
+				break;
+			case M_SKNP:
+				if(operands(1, column) && register(0)) emit(0xE0A1 | (x << 8));
+				break;
+			case M_DB:
+			case M_DW:
+				dataStatement(mnemonic == M_DW, column);
+				break;
+			case M_LABEL:
+				if(operands(1, column)) {
+					if(opType[0] != T_SYM) error(opStart[0], "Invalid label name");
+					else define(symbol(0), 0x200 + codeLen, opStart[0]);
 				}
+				break;
+		}
+	}
+
+	private void load() {
+		int a = opType[0], b = opType[1];
+		int x = opValue[0], y = opValue[1];
+		if(a == T_REG) {
+			switch(b) {
+				case T_REG: emit(0x8000 | (x << 8) | (y << 4)); break;
+				case T_DT: emit(0xF007 | (x << 8)); break;
+				case T_K: emit(0xF00A | (x << 8)); break;
+				case T_IND_I: emit(0xF065 | (x << 8)); break;
+				case T_R: emit(0xF085 | (x << 8)); break;
+				default:
+					if(byteOperand(1)) emit(0x6000 | (x << 8) | (y & 0xFF));
 			}
 		}
-		
-		// Use the produced label/memory location map to fill in code that depended on a reference
-		for(int k : refs.keySet()) {
-			if(!locations.containsKey(refs.get(k))) {
-				System.out.println("Invalid reference '" + refs.get(k) + "' at line " + (k+1));
-				return null;
+		else if(a == T_I) {
+			address(0xA000, 1);
+		}
+		else if(a == T_DT || a == T_ST || a == T_F || a == T_HF || a == T_B || a == T_R || a == T_IND_I) {
+			if(!register(1)) return;
+			int low = a == T_DT ? 0x15 : a == T_ST ? 0x18 : a == T_F ? 0x29 : a == T_HF ? 0x30 : a == T_B ? 0x33
+					: a == T_R ? 0x75 : 0x55;
+			emit(0xF000 | (y << 8) | low);
+		}
+		else {
+			error(opStart[0], "Unrecognized LD syntax");
+		}
+	}
+
+	private void dataStatement(boolean word, int column) {
+		int size = word ? 2 : 1;
+		if(opCount == 2) {
+			// DB name, value
+			if(opType[0] != T_SYM) {
+				error(opStart[0], "Invalid reference name");
+				return;
 			}
-			byte b1 = code.get(k);
-			byte b2 = code.get(k+1);
-			short dest = locations.get(refs.get(k));
-			b1 |= (dest >> 8);
-			b2 = (byte) (dest & 0x00FF);
-			code.set(k, b1);
-			code.set(k+1, b2);
+			if(!dataValue(1, word)) return;
+			String name = symbol(0);
+			define(name, DATA | dataLen, opStart[0]);
+			blockLabels.add(name);
+			blockStarts.add(dataLen);
+			if(map != null && mapLine > 0) map.addDataLine(name, mapLine, 0, size);
+			putData(opValue[1], word);
+			dataLabel = null;
 		}
-		
-		byte[] array = new byte[code.size()];
-		for(int i = 0; i < code.size(); i++) {
-			array[i] = code.get(i);
+		else if(opCount == 1) {
+			if(!dataValue(0, word)) return;
+			if(dataLabel != null) {
+				if(map != null && mapLine > 0) map.addDataLine(dataLabel, mapLine, dataLen - dataLabelStart, size);
+				putData(opValue[0], word);
+			}
+			else {
+				if(map != null && mapLine > 0) map.addLine(mapLine, 0x200 + codeLen, size);
+				if(word) {
+					emitRaw(opValue[0] >> 8);
+				}
+				emitRaw(opValue[0]);
+			}
+		}
+		else {
+			error(column, (word ? "DW" : "DB") + " takes 1 or 2 operands");
 		}
-		return array;
 	}
-	
-	// Wrapper that will parse numerals in a variety of formats
-	public static byte parseByte(String num) {
-		if(num.startsWith("0x")) {
-			return (byte) Integer.parseInt(num, 16);
+
+	private boolean dataValue(int n, boolean word) {
+		if(opType[n] != T_NUM && opType[n] != T_ADDR) {
+			error(opStart[n], "Expected a number");
+			return false;
 		}
-		else if(num.startsWith("0b")) {
-			num = num.substring(2);
-			if(!num.startsWith("0")) num = "0" + num;
-			return (byte) Integer.parseInt(num, 2);
+		int limit = word ? 0xFFFF : 0xFF;
+		if(opValue[n] < -(limit + 1) / 2 || opValue[n] > limit) {
+			error(opStart[n], "Value out of range");
+			return false;
 		}
-		else if(num.startsWith("#")) {
-			return (byte) Integer.parseInt(num.substring(1));
+		return true;
+	}
+
+	private void putData(int value, boolean word) {
+		if(dataLen + 2 > data.length) data = Arrays.copyOf(data, data.length * 2);
+		if(word) data[dataLen++] = (byte) (value >> 8);
+		data[dataLen++] = (byte) value;
+	}
+
+	private boolean operands(int count, int column) {
+		if(opCount != count) {
+			error(column, "Expected " + count + " operand" + (count == 1 ? "" : "s") + " but found " + opCount);
+			return false;
+		}
+		return true;
+	}
+
+	private boolean register(int n) {
+		if(opType[n] != T_REG) {
+			error(opStart[n], "Expected a register V0-VF");
+			return false;
+		}
+		return true;
+	}
+
+	private boolean byteOperand(int n) {
+		if(opType[n] != T_NUM) {
+			error(opStart[n], "Expected a number");
+			return false;
+		}
+		if(opValue[n] < -128 || opValue[n] > 255) {
+			error(opStart[n], "Value out of range for a byte");
+			return false;
+		}
+		return true;
+	}
+
+	// Emits a 12-bit address instruction from operand n: $addr, a plain number or a label
+	private void address(int base, int n) {
+		if(opType[n] == T_ADDR || opType[n] == T_NUM) {
+			if(opValue[n] < 0 || opValue[n] > 0xFFF) {
+				error(opStart[n], "Address out of range");
+				return;
+			}
+			emit(base | opValue[n]);
+		}
+		else if(opType[n] == T_SYM) {
+			if(fixupCount == fixupPos.length) {
+				int len = fixupCount * 2;
+				fixupPos = Arrays.copyOf(fixupPos, len);
+				fixupLine = Arrays.copyOf(fixupLine, len);
+				fixupCol = Arrays.copyOf(fixupCol, len);
+				fixupSeq = Arrays.copyOf(fixupSeq, len);
+				fixupFile = Arrays.copyOf(fixupFile, len);
+				fixupSym = Arrays.copyOf(fixupSym, len);
+			}
+			fixupPos[fixupCount] = codeLen;
+			fixupLine[fixupCount] = ln;
+			fixupCol[fixupCount] = opStart[n] + 1;
+			fixupSeq[fixupCount] = seq;
+			fixupFile[fixupCount] = file;
+			fixupSym[fixupCount] = symbol(n);
+			fixupCount++;
+			emit(base);
 		}
 		else {
-			return (byte) Integer.parseInt(num);
+			error(opStart[n], "Expected an address or label");
+		}
+	}
+
+	private void emit(int word) {
+		if(map != null && mapLine > 0) map.addLine(mapLine, 0x200 + codeLen, 2);
+		emitRaw(word >> 8);
+		emitRaw(word);
+	}
+
+	private void emitRaw(int b) {
+		if(codeLen == code.length) code = Arrays.copyOf(code, code.length * 2);
+		code[codeLen++] = (byte) b;
+	}
+
+	private String symbol(int n) {
+		return line.substring(opStart[n], opEnd[n]).toLowerCase();
+	}
+
+	/**
+	 * Splits [start, end) on commas and classifies each operand.  Returns false (after reporting)
+	 * if an operand is malformed.
+	 */
+	private boolean parseOperands(int start, int end) {
+		opCount = 0;
+		int p = skipSpace(start, end);
+		if(p == end) return true;
+		while(true) {
+			int comma = p;
+			while(comma < end && line.charAt(comma) != ',') comma++;
+			int e = comma;
+			while(e > p && isSpace(line.charAt(e - 1))) e--;
+			if(opCount == MAX_OPERANDS) {
+				error(p, "Too many operands");
+				return false;
+			}
+			if(e == p) {
+				error(p, "Missing operand");
+				return false;
+			}
+			if(!classify(opCount, p, e)) return false;
+			opCount++;
+			if(comma == end) return true;
+			p = skipSpace(comma + 1, end);
+		}
+	}
+
+	private boolean classify(int n, int s, int e) {
+		opStart[n] = s;
+		opEnd[n] = e;
+		opValue[n] = 0;
+		int len = e - s;
+		char c0 = Character.toLowerCase(line.charAt(s));
+		char c1 = len > 1 ? Character.toLowerCase(line.charAt(s + 1)) : 0;
+
+		if(c0 == '$') {
+			opType[n] = T_ADDR;
+			return number(n, s + 1, e);
 		}
+		if(c0 == '[' && len == 3 && c1 == 'i' && line.charAt(s + 2) == ']') {
+			opType[n] = T_IND_I;
+			return true;
+		}
+		if(len == 1) {
+			switch(c0) {
+				case 'i': opType[n] = T_I; return true;
+				case 'k': opType[n] = T_K; return true;
+				case 'f': opType[n] = T_F; return true;
+				case 'b': opType[n] = T_B; return true;
+				case 'r': opType[n] = T_R; return true;
+			}
+		}
+		if(len == 2) {
+			if(c0 == 'v' && Character.digit(c1, 16) >= 0) {
+				opType[n] = T_REG;
+				opValue[n] = Character.digit(c1, 16);
+				return true;
+			}
+			if(c0 == 'd' && c1 == 't') {
+				opType[n] = T_DT;
+				return true;
+			}
+			if(c0 == 's' && c1 == 't') {
+				opType[n] = T_ST;
+				return true;
+			}
+			if(c0 == 'h' && c1 == 'f') {
+				opType[n] = T_HF;
+				return true;
+			}
+		}
+		if(Character.isDigit(c0) || c0 == '#' || c0 == '-') {
+			opType[n] = T_NUM;
+			return number(n, s, e);
+		}
+		for(int i = s; i < e; i++) {
+			char c = line.charAt(i);
+			if(!Character.isLetterOrDigit(c) && c != '_' && c != '.') {
+				error(i, "Unexpected character '" + c + "'");
+				return false;
+			}
+		}
+		opType[n] = T_SYM;
+		return true;
 	}
-	
+
+	// Parses 0x.., 0b.., #decimal or decimal (optionally negative) into opValue[n]
+	private boolean number(int n, int s, int e) {
+		int radix = 10;
+		int p = s;
+		boolean negative = false;
+		if(p < e && line.charAt(p) == '#') {
+			p++;
+		}
+		else if(p < e && line.charAt(p) == '-') {
+			negative = true;
+			p++;
+		}
+		if(p + 1 < e && line.charAt(p) == '0') {
+			char r = Character.toLowerCase(line.charAt(p + 1));
+			if(r == 'x') radix = 16;
+			else if(r == 'b') radix = 2;
+			if(radix != 10) p += 2;
+		}
+		if(p == e) {
+			error(s, "Expected a number");
+			return false;
+		}
+		int value = 0;
+		for(int i = p; i < e; i++) {
+			int d = Character.digit(line.charAt(i), radix);
+			if(d < 0) {
+				error(i, "Invalid digit in number");
+				return false;
+			}
+			value = value * radix + d;
+			if(value > 0xFFFF) {
+				error(s, "Number too large");
+				return false;
+			}
+		}
+		opValue[n] = negative ? -value : value;
+		return true;
+	}
+
+	private byte[] finish() {
+		definePending();
+		emitRaw(0x00);
+		emitRaw(0x00);
+
+		int dataBase = 0x200 + codeLen;
+		if(dataBase + dataLen > 0x1000) {
+			found.add(new Found(seq, 1, new Diagnostic(file, ln, 1, "Program is " + (dataBase + dataLen - 0x1000) + " bytes too large for memory")));
+		}
+		for(int i = 0; i < fixupCount; i++) {
+			Integer value = symbols.get(fixupSym[i]);
+			if(value == null) {
+				found.add(new Found(fixupSeq[i], fixupCol[i], new Diagnostic(fixupFile[i], fixupLine[i], fixupCol[i], "Undefined label '" + fixupSym[i] + "'")));
+				continue;
+			}
+			int addr = (value & DATA) != 0 ? dataBase + (value & ~DATA) : value;
+			code[fixupPos[i]] |= (byte) ((addr >> 8) & 0x0F);
+			code[fixupPos[i] + 1] = (byte) addr;
+		}
+		if(map != null) {
+			for(int i = 0; i < blockLabels.size(); i++) {
+				map.placeData(blockLabels.get(i), dataBase + blockStarts.get(i));
+			}
+		}
+
+		byte[] rom = Arrays.copyOf(code, codeLen + dataLen);
+		System.arraycopy(data, 0, rom, codeLen, dataLen);
+		return rom;
+	}
+
+	private int skipSpace(int p, int end) {
+		while(p < end && isSpace(line.charAt(p))) p++;
+		return p;
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+
+	private static boolean isReserved(String name) {
+		for(String r : reservedRefs) {
+			if(r.equals(name)) return true;
+		}
+		return false;
+	}
+
+	// Packs up to 5 letters case-insensitively into an int; anything else packs to -1
+	private static int pack(String s, int start, int end) {
+		if(end - start > 5) return -1;
+		int key = 0;
+		for(int i = start; i < end; i++) {
+			char c = Character.toUpperCase(s.charAt(i));
+			if(c < 'A' || c > 'Z') return -1;
+			key = (key << 5) | (c - 'A' + 1);
+		}
+		return key;
+	}
+
+	private static int lookup(int key) {
+		if(key < 0) return 0;
+		int i = Arrays.binarySearch(MNEMONIC_KEYS, key);
+		return i < 0 ? 0 : MNEMONIC_IDS[i];
+	}
+
+	// Wrapper that will parse numerals in a variety of formats
+	public static byte parseByte(String num) {
+		return (byte) parseShort(num);
+	}
+
 	// Wrapper that will parse numerals in a variety of formats
 	public static short parseShort(String num) {
 		if(num.startsWith("0x")) {
@@ -0,0 +1,240 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Assembles or disassembles many files in one JVM.  Files are processed in
+ * parallel, one task per file, and results are printed in file order followed
+ * by a summary.
+ */
+public class Batch {
+
+	private final boolean assemble;
+	private final Path outputDir;
+	private boolean linear = false;
+
+	/**
+	 * A batch that assembles (or disassembles) each file next to its input, or into outputDir if it
+	 * is non-null
+	 */
+	public Batch(boolean assemble, Path outputDir) {
+		this.assemble = assemble;
+		this.outputDir = outputDir;
+	}
+
+	/**
+	 * Disassembles with the linear Disassembler instead of recovering control flow
+	 */
+	public void setLinear(boolean linear) {
+		this.linear = linear;
+	}
+
+	/**
+	 * True if path names more than one file: a directory or a glob pattern
+	 */
+	public static boolean isBatch(String path) {
+		return isGlob(path) || Files.isDirectory(Paths.get(path));
+	}
+
+	private static boolean isGlob(String path) {
+		for(char c : "*?[{".toCharArray()) {
+			if(path.indexOf(c) >= 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Lists the files matched by a glob (e.g. roms/**.ch8), or every file with the given extension
+	 * under a directory.  Sorted by path.
+	 */
+	public static List<Path> find(String pattern, final String extension) throws IOException {
+		final ArrayList<Path> files = new ArrayList<Path>();
+		Path base;
+		int depth = Integer.MAX_VALUE;
+		final PathMatcher matcher;
+		if(isGlob(pattern)) {
+			// Walk from the deepest directory without wildcards, only as deep as the pattern reaches
+			pattern = pattern.replace('\\', '/');
+			String[] parts = pattern.split("/");
+			StringBuilder dir = new StringBuilder();
+			int fixed = 0;
+			while(fixed < parts.length && !isGlob(parts[fixed])) {
+				dir.append(parts[fixed++]).append('/');
+			}
+			base = Paths.get(dir.length() == 0 ? "." : dir.toString());
+			if(!pattern.contains("**")) depth = parts.length - fixed;
+			matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		}
+		else {
+			base = Paths.get(pattern);
+			matcher = null;
+		}
+		final Path root = base;
+		Files.walkFileTree(base, Collections.<FileVisitOption>emptySet(), depth, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if(!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+				if(matcher != null) {
+					// A pattern without a directory matches paths without the leading ./
+					if(matcher.matches(root.toString().equals(".") ? root.relativize(file) : file)) files.add(file);
+				}
+				else if(file.getFileName().toString().toLowerCase().endsWith(extension)) {
+					files.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Processes every file on the given number of threads, printing one line per file and a summary.
+	 * Returns the number of files that failed.
+	 */
+	public int run(List<Path> files, int threads) {
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+		// With an output directory, same-named files from different directories would overwrite each other
+		HashMap<Path, Path> claimed = new HashMap<Path, Path>();
+		String[] clashes = new String[files.size()];
+		for(int i = 0; i < files.size(); i++) {
+			final Path file = files.get(i);
+			Path dest = output(file, assemble ? ".ch8" : ".asm").toAbsolutePath().normalize();
+			Path first = claimed.get(dest);
+			if(first != null) {
+				clashes[i] = "output " + dest + " is already written for " + first;
+				results.add(null);
+				continue;
+			}
+			claimed.put(dest, file);
+			results.add(pool.submit(new Callable<String>() {
+				@Override
+				public String call() throws IOException {
+					return assemble ? assemble(file) : disassemble(file);
+				}
+			}));
+		}
+		int failures = 0;
+		StringBuilder out = new StringBuilder();
+		for(int i = 0; i < files.size(); i++) {
+			String result;
+			try {
+				result = clashes[i] != null ? clashes[i] : results.get(i).get();
+			}
+			catch(Exception ex) {
+				result = "unable to process: " + ex.getCause();
+			}
+			if(result != null) {
+				failures++;
+				out.append("FAIL  ").append(files.get(i)).append("  ").append(result).append('\n');
+			}
+			else {
+				out.append("OK    ").append(files.get(i)).append('\n');
+			}
+		}
+		pool.shutdown();
+		System.out.print(out);
+		System.out.println(String.format("%d of %d files %s in %.2f s", files.size() - failures, files.size(),
+				assemble ? "assembled" : "disassembled", (System.nanoTime() - start) / 1e9));
+		return failures;
+	}
+
+	// Where the output for file goes: its name with the extension replaced
+	private Path output(Path file, String extension) {
+		String name = file.getFileName().toString();
+		if(name.contains(".")) name = name.substring(0, name.lastIndexOf('.'));
+		Path dir = outputDir != null ? outputDir : file.toAbsolutePath().getParent();
+		return dir.resolve(name + extension);
+	}
+
+	// Returns null on success, otherwise what went wrong
+	private String assemble(Path file) throws IOException {
+		String text = new String(read(file), StandardCharsets.UTF_8);
+		List<String> src = Arrays.asList(text.split("\\r?\\n", -1));
+		ArrayList<Diagnostic> errors = new ArrayList<Diagnostic>();
+		byte[] rom = Assembler.assemble(src, file, null, errors);
+		if(rom == null) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(errors.size()).append(errors.size() == 1 ? " error" : " errors");
+			for(Diagnostic d : errors) {
+				sb.append("\n      ").append(d);
+			}
+			return sb.toString();
+		}
+		write(output(file, ".ch8"), rom);
+		return null;
+	}
+
+	private String disassemble(Path file) throws IOException {
+		byte[] rom = read(file);
+		try (Writer out = Files.newBufferedWriter(output(file, ".asm"), StandardCharsets.UTF_8)) {
+			if(linear) Disassembler.disassemble(rom, out);
+			else new ControlFlow(rom).write(out);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads a whole file through a single channel read into an exactly sized buffer
+	 */
+	public static byte[] read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE) throw new IOException(file + " is too large");
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+			return buffer.array();
+		}
+	}
+
+	/**
+	 * Writes a whole file through a single channel, replacing anything already there
+	 */
+	public static void write(Path file, byte[] data) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+}
@@ -0,0 +1,361 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Recursive-descent analysis of a ROM.  Starting at $200, every reachable
+ * instruction is found by following fall-through, both outcomes of skips,
+ * jump and call targets and the return from each call.  Bytes that are never
+ * reached are data; LD I targets are labelled as data.  The result is split
+ * into basic blocks grouped into functions (the entry point and every CALL
+ * target) with a call graph between them.
+ *
+ * write() produces labelled assembly that reassembles to the same ROM (plus
+ * the assembler's two-byte terminator), which the linear Disassembler can't
+ * do once a ROM mixes sprites in with its code.
+ */
+public class ControlFlow {
+
+	// What each byte of the ROM is
+	public static final byte DATA = 0;
+	public static final byte CODE = 1; // First byte of an instruction
+	public static final byte OPERAND = 2; // Second byte of an instruction
+
+	/**
+	 * A straight-line run of instructions [start, end) entered only at start
+	 */
+	public static class Block {
+		public final int start;
+		public int end;
+		public final TreeSet<Integer> successors = new TreeSet<Integer>();
+		public int function = -1; // Entry of the function this block was first reached from
+
+		Block(int start) {
+			this.start = start;
+		}
+	}
+
+	private final byte[] rom;
+	private final byte[] kind;
+	private final boolean[] leader;
+	private final boolean[] lineStart; // Where write() starts a line
+	private final TreeSet<Integer> calls = new TreeSet<Integer>(); // Function entries
+	private final TreeSet<Integer> jumps = new TreeSet<Integer>();
+	private final TreeSet<Integer> dataRefs = new TreeSet<Integer>();
+	private final TreeMap<Integer, Block> blocks = new TreeMap<Integer, Block>();
+	private final TreeMap<Integer, TreeSet<Integer>> callGraph = new TreeMap<Integer, TreeSet<Integer>>();
+
+	public ControlFlow(byte[] rom) {
+		this.rom = rom;
+		kind = new byte[rom.length];
+		leader = new boolean[rom.length];
+		trace();
+		buildBlocks();
+		assignFunctions();
+		lineStart = new boolean[rom.length];
+		for(int i = 0; i < rom.length; ) {
+			lineStart[i] = true;
+			i += kind[i] == CODE && i + 1 < rom.length ? 2 : 1;
+		}
+	}
+
+	private int opcode(int addr) {
+		return ((rom[addr - 0x200] & 0xFF) << 8) | (rom[addr - 0x200 + 1] & 0xFF);
+	}
+
+	private boolean inRom(int addr) {
+		return addr >= 0x200 && addr - 0x200 + 1 < rom.length;
+	}
+
+	/**
+	 * Successors of the valid instruction at addr within its function: fall-through, skip and jump
+	 * targets, but not call targets.  Returns how many were written into out.
+	 */
+	private int successors(int addr, int[] out) {
+		int op = opcode(addr);
+		int nnn = op & 0xFFF;
+		switch(op >> 12) {
+			case 0x0:
+				if(op == 0x00EE || op == 0x00FD) return 0; // RET, EXIT
+				break;
+			case 0x1:
+				out[0] = nnn;
+				return 1;
+			case 0xB:
+				out[0] = nnn; // Assume V0 = 0; the rest of a jump table can't be found statically
+				return 1;
+			case 0x3:
+			case 0x4:
+			case 0x5:
+			case 0x9:
+			case 0xE:
+				out[0] = addr + 2;
+				out[1] = addr + 4;
+				return 2;
+		}
+		out[0] = addr + 2;
+		return 1;
+	}
+
+	private static boolean endsBlock(int op) {
+		int high = op >> 12;
+		return op == 0x00EE || op == 0x00FD || high == 0x1 || high == 0xB || high == 0x3 || high == 0x4 || high == 0x5 || high == 0x9 || high == 0xE;
+	}
+
+	// Marks every reachable instruction, from the entry point and every call target
+	private void trace() {
+		ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+		int[] next = new int[2];
+		work.add(0x200);
+		markLeader(0x200);
+		while(!work.isEmpty()) {
+			int addr = work.poll();
+			if(!inRom(addr) || kind[addr - 0x200] == CODE) continue;
+			int op = opcode(addr);
+			if(!Disassembler.isInstruction(op >> 8, op & 0xFF)) continue;
+			kind[addr - 0x200] = CODE;
+			if(kind[addr - 0x200 + 1] != CODE) kind[addr - 0x200 + 1] = OPERAND;
+
+			int high = op >> 12;
+			if(high == 0x2) {
+				int target = op & 0xFFF;
+				calls.add(target);
+				markLeader(target);
+				work.add(target);
+			}
+			else if(high == 0xA) {
+				dataRefs.add(op & 0xFFF);
+			}
+			if(high == 0x1 || high == 0xB) jumps.add(op & 0xFFF);
+
+			int n = successors(addr, next);
+			for(int i = 0; i < n; i++) {
+				if(endsBlock(op)) markLeader(next[i]);
+				work.add(next[i]);
+			}
+		}
+	}
+
+	private void markLeader(int addr) {
+		if(inRom(addr)) leader[addr - 0x200] = true;
+	}
+
+	private void buildBlocks() {
+		int[] next = new int[2];
+		for(int i = 0; i < rom.length; i++) {
+			if(kind[i] != CODE) continue;
+			// Blocks start at leaders and wherever the previous instruction doesn't flow straight in
+			if(!leader[i] && i >= 2 && kind[i - 2] == CODE && !endsBlock(opcode(0x200 + i - 2))) continue;
+			Block block = new Block(0x200 + i);
+			int addr = block.start;
+			while(true) {
+				int op = opcode(addr);
+				int after = addr + 2;
+				if(endsBlock(op) || !inRom(after) || kind[after - 0x200] != CODE || leader[after - 0x200]) {
+					int n = successors(addr, next);
+					for(int j = 0; j < n; j++) {
+						if(inRom(next[j]) && kind[next[j] - 0x200] == CODE) block.successors.add(next[j]);
+					}
+					block.end = after;
+					break;
+				}
+				addr = after;
+			}
+			blocks.put(block.start, block);
+		}
+	}
+
+	// Walks each function's blocks from its entry without following calls, collecting its callees
+	private void assignFunctions() {
+		TreeSet<Integer> entries = new TreeSet<Integer>(calls);
+		entries.add(0x200);
+		for(int entry : entries) {
+			TreeSet<Integer> callees = new TreeSet<Integer>();
+			callGraph.put(entry, callees);
+			ArrayDeque<Block> work = new ArrayDeque<Block>();
+			Block first = blocks.get(entry);
+			if(first == null) continue;
+			work.add(first);
+			TreeSet<Integer> seen = new TreeSet<Integer>();
+			while(!work.isEmpty()) {
+				Block b = work.poll();
+				if(!seen.add(b.start)) continue;
+				if(b.function < 0) b.function = entry;
+				for(int addr = b.start; addr < b.end; addr += 2) {
+					int op = opcode(addr);
+					if(op >> 12 == 0x2) callees.add(op & 0xFFF);
+				}
+				for(int s : b.successors) {
+					Block succ = blocks.get(s);
+					if(succ != null) work.add(succ);
+				}
+			}
+		}
+	}
+
+	public byte getKind(int addr) {
+		return addr >= 0x200 && addr - 0x200 < rom.length ? kind[addr - 0x200] : DATA;
+	}
+
+	public TreeMap<Integer, Block> getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * Function entry points mapped to the entries of the functions they call
+	 */
+	public TreeMap<Integer, TreeSet<Integer>> getCallGraph() {
+		return callGraph;
+	}
+
+	// Names every address something refers to that can carry a label in the output
+	private TreeMap<Integer, String> labels() {
+		TreeMap<Integer, String> labels = new TreeMap<Integer, String>();
+		for(int addr : dataRefs) {
+			if(labelable(addr)) labels.put(addr, (getKind(addr) == CODE ? "loc_" : "data_") + Disassembler.hex(addr));
+		}
+		for(int addr : jumps) {
+			if(labelable(addr)) labels.put(addr, "loc_" + Disassembler.hex(addr));
+		}
+		for(int addr : calls) {
+			if(labelable(addr)) labels.put(addr, "sub_" + Disassembler.hex(addr));
+		}
+		return labels;
+	}
+
+	// An address can be labelled if write() starts a line there.  Code that overlaps another
+	// instruction can't be, and is referred to by address instead.
+	private boolean labelable(int addr) {
+		return addr >= 0x200 && addr - 0x200 < rom.length && lineStart[addr - 0x200];
+	}
+
+	/**
+	 * Writes labelled assembly: instructions with jump, call and LD I targets replaced by labels, and
+	 * data as one commented DB per byte
+	 */
+	public void write(Appendable out) throws IOException {
+		TreeMap<Integer, String> labels = labels();
+		String nl = System.lineSeparator();
+		out.append("; ").append(Integer.toString(blocks.size())).append(" basic blocks in ")
+				.append(Integer.toString(callGraph.size())).append(" functions").append(nl);
+		int addr = 0x200;
+		int end = 0x200 + rom.length;
+		while(addr < end) {
+			String label = labels.get(addr);
+			boolean code = kind[addr - 0x200] == CODE && inRom(addr);
+			if(code && callGraph.containsKey(addr)) {
+				out.append(nl).append("; function $").append(Disassembler.hex(addr));
+				TreeSet<Integer> callees = callGraph.get(addr);
+				if(!callees.isEmpty()) {
+					out.append(", calls");
+					for(int c : callees) {
+						out.append(" $").append(Disassembler.hex(c));
+					}
+				}
+				out.append(nl);
+			}
+			if(label != null) {
+				// A code label followed by DB would start a separately placed data block
+				if(code) out.append(label).append(':').append(nl);
+				else out.append("LABEL ").append(label).append(nl);
+			}
+
+			out.append('\t');
+			if(code) {
+				instruction(out, opcode(addr), labels);
+				out.append("\t; ").append(Disassembler.hex(addr)).append(nl);
+				addr += 2;
+			}
+			else {
+				int b = rom[addr - 0x200] & 0xFF;
+				out.append("DB 0x").append(Disassembler.hex((byte) b)).append("\t; ").append(Disassembler.hex(addr)).append(' ');
+				for(int bit = 7; bit >= 0; bit--) {
+					out.append((b & (1 << bit)) != 0 ? '#' : '.');
+				}
+				out.append(nl);
+				addr++;
+			}
+		}
+	}
+
+	private void instruction(Appendable out, int op, TreeMap<Integer, String> labels) throws IOException {
+		String target = labels.get(op & 0xFFF);
+		if(target != null) {
+			switch(op >> 12) {
+				case 0x1: out.append("JP ").append(target); return;
+				case 0x2: out.append("CALL ").append(target); return;
+				case 0xA: out.append("LD I, ").append(target); return;
+				case 0xB: out.append("JP V0, ").append(target); return;
+			}
+		}
+		Disassembler.instruction(out, op >> 8, op & 0xFF);
+	}
+
+	/**
+	 * Writes the basic blocks and call graph in Graphviz DOT format: one cluster per function, solid
+	 * edges for control flow and dashed edges for calls
+	 */
+	public void writeGraph(Appendable out) throws IOException {
+		String nl = System.lineSeparator();
+		out.append("digraph rom {").append(nl);
+		out.append("\tnode [shape=box, fontname=monospace];").append(nl);
+		for(Map.Entry<Integer, TreeSet<Integer>> f : callGraph.entrySet()) {
+			out.append("\tsubgraph cluster_").append(Disassembler.hex(f.getKey())).append(" {").append(nl);
+			out.append("\t\tlabel=\"$").append(Disassembler.hex(f.getKey())).append("\";").append(nl);
+			for(Block b : blocks.values()) {
+				if(b.function != f.getKey()) continue;
+				out.append("\t\tb").append(Disassembler.hex(b.start)).append(" [label=\"");
+				for(int addr = b.start; addr < b.end; addr += 2) {
+					int op = opcode(addr);
+					out.append(Disassembler.hex(addr)).append(": ");
+					Disassembler.instruction(out, op >> 8, op & 0xFF);
+					out.append("\\l");
+				}
+				out.append("\"];").append(nl);
+			}
+			out.append("\t}").append(nl);
+		}
+		for(Block b : blocks.values()) {
+			for(int s : b.successors) {
+				out.append("\tb").append(Disassembler.hex(b.start)).append(" -> b").append(Disassembler.hex(s)).append(';').append(nl);
+			}
+			for(int addr = b.start; addr < b.end; addr += 2) {
+				int op = opcode(addr);
+				if(op >> 12 == 0x2 && blocks.containsKey(op & 0xFFF)) {
+					out.append("\tb").append(Disassembler.hex(b.start)).append(" -> b").append(Disassembler.hex(op & 0xFFF))
+							.append(" [style=dashed];").append(nl);
+				}
+			}
+		}
+		out.append("}").append(nl);
+	}
+
+	/**
+	 * Addresses of every instruction found, for callers that translate or cache whole blocks
+	 */
+	public ArrayList<Integer> instructions() {
+		ArrayList<Integer> list = new ArrayList<Integer>();
+		for(int i = 0; i + 1 < rom.length; i++) {
+			if(kind[i] == CODE) list.add(0x200 + i);
+		}
+		return list;
+	}
+}
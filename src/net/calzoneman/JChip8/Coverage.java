@@ -0,0 +1,136 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A per-address bitmap of what the VCPU did with each byte of memory, and
+ * reporting of that bitmap against a SourceMap.
+ */
+public class Coverage {
+
+	public static final byte EXECUTED = 0x1;
+	public static final byte READ = 0x2;
+	public static final byte WRITTEN = 0x4;
+
+	private byte[] bitmap;
+
+	public Coverage() {
+		this(new byte[4096]);
+	}
+
+	public Coverage(byte[] bitmap) {
+		this.bitmap = bitmap;
+	}
+
+	public byte[] getBitmap() {
+		return bitmap;
+	}
+
+	/**
+	 * Merges another run's coverage into this one
+	 */
+	public void merge(Coverage other) {
+		for(int i = 0; i < bitmap.length; i++) {
+			bitmap[i] |= other.bitmap[i];
+		}
+	}
+
+	public void save(String filename) throws IOException {
+		try (FileOutputStream fos = new FileOutputStream(filename)) {
+			fos.write(bitmap);
+		}
+	}
+
+	public static Coverage load(String filename) {
+		byte[] raw;
+		try {
+			raw = Batch.read(Paths.get(filename));
+		}
+		catch(IOException | InvalidPathException ex) {
+			System.out.println("Error loading coverage " + filename + ": " + ex.getMessage());
+			return null;
+		}
+		if(raw.length != 4096) {
+			System.out.println(filename + " is " + raw.length + " bytes; coverage files are 4096");
+			return null;
+		}
+		return new Coverage(raw);
+	}
+
+	// A line counts as covered if code on it was executed or data on it was touched
+	private boolean covered(int address, int length) {
+		for(int i = address; i < address + length && i < bitmap.length; i++) {
+			if(bitmap[i] != 0) return true;
+		}
+		return false;
+	}
+
+	private static String flags(byte b) {
+		return ((b & EXECUTED) != 0 ? "X" : "-") + ((b & READ) != 0 ? "R" : "-") + ((b & WRITTEN) != 0 ? "W" : "-");
+	}
+
+	/**
+	 * Prints every source line annotated with its coverage flags, then a per-label
+	 * summary.  Labels cover every line from their address up to the next label.
+	 */
+	public void report(ArrayList<String> src, SourceMap map, PrintStream out) {
+		TreeMap<Integer, int[]> lines = map.getLines();
+		int total = 0, hit = 0;
+		for(int ln = 1; ln <= src.size(); ln++) {
+			int[] entry = lines.get(ln);
+			if(entry == null) {
+				out.println(String.format("%5d        %s", ln, src.get(ln-1)));
+				continue;
+			}
+			total++;
+			if(covered(entry[0], entry[1])) hit++;
+			byte b = 0;
+			for(int i = 0; i < entry[1]; i++) b |= bitmap[entry[0] + i];
+			out.println(String.format("%5d  %s  %s", ln, flags(b), src.get(ln-1)));
+		}
+		out.println();
+
+		// Invert label -> address into address -> label, in address order
+		TreeMap<Integer, String> byAddress = new TreeMap<Integer, String>();
+		for(Map.Entry<String, Integer> e : map.getLabels().entrySet()) {
+			byAddress.put(e.getValue(), e.getKey());
+		}
+		for(Map.Entry<Integer, String> e : byAddress.entrySet()) {
+			Integer next = byAddress.higherKey(e.getKey());
+			int end = next == null ? Integer.MAX_VALUE : next;
+			int labelTotal = 0, labelHit = 0;
+			for(int[] entry : lines.values()) {
+				if(entry[0] >= e.getKey() && entry[0] < end) {
+					labelTotal++;
+					if(covered(entry[0], entry[1])) labelHit++;
+				}
+			}
+			out.println(String.format("%-20s $0x%03X  %4d/%-4d %5.1f%%", e.getValue(), e.getKey(), labelHit, labelTotal, percent(labelHit, labelTotal)));
+		}
+		out.println(String.format("%-20s         %4d/%-4d %5.1f%%", "TOTAL", hit, total, percent(hit, total)));
+	}
+
+	private static double percent(int hit, int total) {
+		return total == 0 ? 0.0 : 100.0 * hit / total;
+	}
+}
@@ -0,0 +1,324 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Line-based debug server on a local TCP port.  The VCPU starts stopped; one
+ * client at a time sends commands and gets back one line per command starting
+ * with OK or ERR.  Whenever the machine stops, the client is sent
+ * "STOPPED <reason> PC=<addr>".
+ *
+ * Commands (addresses and values in hex):
+ *   break <addr>            clear <addr>
+ *   watch <lo>[-<hi>] [r|w|rw]                unwatch <lo>
+ *   continue (c)   step (s)   next (n, steps over CALL)   pause
+ *   regs   mem <addr> [<len>]   poke <addr> <byte>...   set <V0-VF|I|PC> <value>
+ *   detach (clears breakpoints and keeps running)
+ *
+ * While the machine is running only pause is accepted.  All other commands are
+ * executed on the emulation thread while it is stopped, so the VCPU never needs
+ * locking.  With no breakpoints or watchpoints set the VCPU's checks reduce to
+ * a null test per instruction and nothing per memory access.
+ */
+public class Debugger implements Runnable {
+
+	private static final byte[] EVERYWHERE = new byte[4096];
+	static {
+		Arrays.fill(EVERYWHERE, (byte) 1);
+	}
+
+	private static final int WATCH_READ = 1;
+	private static final int WATCH_WRITE = 2;
+
+	private VCPU vcpu;
+	private ServerSocket server;
+	private BlockingQueue<String> commands = new LinkedBlockingQueue<String>();
+	private volatile PrintWriter client = null;
+	private volatile boolean stopped = false;
+	private volatile String lastStop = null; // Repeated to clients that connect while stopped
+	private volatile boolean stepping = true; // Breaking everywhere, for step or pause
+
+	private byte[] userBreaks = new byte[4096];
+	private int breakCount = 0;
+	private ArrayList<int[]> watches = new ArrayList<int[]>(); // { lo, hi, flags }
+	private byte[] state = new byte[VCPU.STATE_SIZE];
+
+	public Debugger(VCPU vcpu, int port) throws IOException {
+		this.vcpu = vcpu;
+		server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+		vcpu.setDebugger(this);
+		vcpu.setBreakpoints(EVERYWHERE); // Stop before the first instruction
+		Thread t = new Thread(this, "debugger");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	// Socket thread: accepts clients and forwards their commands
+	@Override
+	public void run() {
+		while(!server.isClosed()) {
+			try (Socket socket = server.accept()) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+				client = new PrintWriter(socket.getOutputStream(), true);
+				client.println("OK JChip8 debugger " + JChip8.version + (stopped ? "" : " (running)"));
+				if(stopped) client.println(lastStop);
+				String line;
+				while((line = in.readLine()) != null) {
+					line = line.trim();
+					if(line.isEmpty()) continue;
+					if(line.equals("pause")) {
+						if(!stopped) {
+							stepping = true;
+							vcpu.setBreakpoints(EVERYWHERE);
+						}
+						client.println("OK");
+					}
+					else if(!stopped) {
+						client.println("ERR running; pause first");
+					}
+					else {
+						commands.add(line);
+					}
+				}
+			}
+			catch(IOException ex) {
+				if(server.isClosed()) break;
+			}
+			client = null;
+			commands.add("detach");
+		}
+	}
+
+	public void close() {
+		try {
+			server.close();
+		}
+		catch(IOException ex) {
+			// Already closed
+		}
+	}
+
+	private void send(String line) {
+		PrintWriter out = client;
+		if(out != null) out.println(line);
+	}
+
+	/**
+	 * Called by the VCPU on a matching access to a watched page.  Returns a stop reason, or null if
+	 * no watchpoint actually covers the access.
+	 */
+	String watched(int addr, int length, boolean write) {
+		int flag = write ? WATCH_WRITE : WATCH_READ;
+		for(int[] w : watches) {
+			if((w[2] & flag) != 0 && addr <= w[1] && addr + length - 1 >= w[0]) {
+				return (write ? "write $" : "read $") + Disassembler.hex(addr);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Called on the emulation thread when the VCPU stops.  Blocks, executing client commands,
+	 * until the client resumes execution or the VCPU is shut down.
+	 */
+	void stopped(String reason) {
+		vcpu.saveState(state);
+		int pc = VCPU.bytesToShort(state[VCPU.STATE_PC], state[VCPU.STATE_PC + 1]) & 0xFFFF;
+		if(stepping && reason.equals("break")) reason = "step";
+		lastStop = "STOPPED " + reason + " PC=" + Disassembler.hex(pc);
+		stopped = true;
+		send(lastStop);
+		try {
+			while(vcpu.isRunning()) {
+				String line = commands.poll(100, TimeUnit.MILLISECONDS);
+				if(line == null) continue;
+				String[] args = line.split("\\s+");
+				try {
+					if(execute(args, pc)) break;
+				}
+				catch(NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+					send("ERR bad arguments for " + args[0]);
+				}
+			}
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		stopped = false;
+	}
+
+	// Runs one command while stopped at pc; returns true if execution should resume
+	private boolean execute(String[] args, int pc) {
+		String cmd = args[0];
+		if(cmd.equals("continue") || cmd.equals("c")) {
+			resume(-1, false);
+			send("OK");
+			return true;
+		}
+		else if(cmd.equals("step") || cmd.equals("s")) {
+			resume(-1, true);
+			send("OK");
+			return true;
+		}
+		else if(cmd.equals("next") || cmd.equals("n")) {
+			boolean call = (state[VCPU.STATE_MEMORY + pc] & 0xF0) == 0x20;
+			resume(call ? pc + 2 : -1, !call);
+			send("OK");
+			return true;
+		}
+		else if(cmd.equals("detach")) {
+			Arrays.fill(userBreaks, (byte) 0);
+			breakCount = 0;
+			watches.clear();
+			vcpu.setWatchPages(0);
+			resume(-1, false);
+			send("OK");
+			return true;
+		}
+		else if(cmd.equals("break")) {
+			int addr = parseHex(args[1]) & 0xFFF;
+			if(userBreaks[addr] == 0) breakCount++;
+			userBreaks[addr] = 1;
+			send("OK break $" + Disassembler.hex(addr));
+		}
+		else if(cmd.equals("clear")) {
+			int addr = parseHex(args[1]) & 0xFFF;
+			if(userBreaks[addr] != 0) breakCount--;
+			userBreaks[addr] = 0;
+			send("OK");
+		}
+		else if(cmd.equals("watch")) {
+			String[] range = args[1].split("-");
+			int lo = parseHex(range[0]) & 0xFFF;
+			int hi = range.length > 1 ? parseHex(range[1]) & 0xFFF : lo;
+			String mode = args.length > 2 ? args[2] : "w";
+			int flags = (mode.contains("r") ? WATCH_READ : 0) | (mode.contains("w") ? WATCH_WRITE : 0);
+			watches.add(new int[] { lo, hi, flags });
+			updateWatchPages();
+			send("OK watch $" + Disassembler.hex(lo) + "-$" + Disassembler.hex(hi) + " " + mode);
+		}
+		else if(cmd.equals("unwatch")) {
+			int lo = parseHex(args[1]) & 0xFFF;
+			for(int i = watches.size() - 1; i >= 0; i--) {
+				if(watches.get(i)[0] == lo) watches.remove(i);
+			}
+			updateWatchPages();
+			send("OK");
+		}
+		else if(cmd.equals("regs")) {
+			StringBuilder sb = new StringBuilder("OK");
+			sb.append(" PC=").append(Disassembler.hex(pc));
+			sb.append(" I=").append(Disassembler.hex(VCPU.bytesToShort(state[VCPU.STATE_I], state[VCPU.STATE_I + 1]) & 0xFFFF));
+			sb.append(" SP=").append(state[VCPU.STATE_SP]);
+			sb.append(" DT=").append(Disassembler.hex(state[VCPU.STATE_DT]));
+			sb.append(" ST=").append(Disassembler.hex(state[VCPU.STATE_ST]));
+			for(int i = 0; i < 16; i++) {
+				sb.append(' ').append(Disassembler.regName((byte) i)).append('=').append(Disassembler.hex(state[VCPU.STATE_V + i]));
+			}
+			send(sb.toString());
+		}
+		else if(cmd.equals("mem")) {
+			int addr = parseHex(args[1]) & 0xFFF;
+			int len = args.length > 2 ? parseHex(args[2]) : 16;
+			StringBuilder sb = new StringBuilder("OK ").append(Disassembler.hex(addr)).append(':');
+			for(int i = addr; i < addr + len && i < 4096; i++) {
+				sb.append(' ').append(Disassembler.hex(state[VCPU.STATE_MEMORY + i]));
+			}
+			send(sb.toString());
+		}
+		else if(cmd.equals("poke")) {
+			int addr = parseHex(args[1]) & 0xFFF;
+			for(int i = 2; i < args.length && addr + i - 2 < 4096; i++) {
+				state[VCPU.STATE_MEMORY + addr + i - 2] = (byte) parseHex(args[i]);
+			}
+			vcpu.loadState(state);
+			send("OK");
+		}
+		else if(cmd.equals("set")) {
+			String reg = args[1].toUpperCase();
+			int value = parseHex(args[2]);
+			if(reg.equals("PC")) value &= 0xFFF;
+			if(reg.equals("I") || reg.equals("PC")) {
+				int off = reg.equals("I") ? VCPU.STATE_I : VCPU.STATE_PC;
+				state[off] = (byte) (value >> 8);
+				state[off + 1] = (byte) value;
+			}
+			else if(reg.length() == 2 && reg.charAt(0) == 'V' && Character.digit(reg.charAt(1), 16) >= 0) {
+				state[VCPU.STATE_V + Character.digit(reg.charAt(1), 16)] = (byte) value;
+			}
+			else {
+				send("ERR unknown register " + args[1]);
+				return false;
+			}
+			vcpu.loadState(state);
+			send("OK");
+		}
+		else {
+			send("ERR unknown command " + cmd);
+		}
+		return false;
+	}
+
+	/**
+	 * Installs the breakpoint map for the next run: everywhere when stepping, the user's breakpoints
+	 * plus an optional temporary one, or nothing at all.
+	 */
+	private void resume(int temporary, boolean step) {
+		stepping = step;
+		if(step) {
+			vcpu.setBreakpoints(EVERYWHERE);
+		}
+		else if(temporary >= 0) {
+			byte[] map = Arrays.copyOf(userBreaks, 4096);
+			map[temporary & 0xFFF] = 1;
+			vcpu.setBreakpoints(map);
+		}
+		else {
+			vcpu.setBreakpoints(breakCount > 0 ? Arrays.copyOf(userBreaks, 4096) : null);
+		}
+	}
+
+	private void updateWatchPages() {
+		int pages = 0;
+		for(int[] w : watches) {
+			for(int page = w[0] >> 8; page <= w[1] >> 8; page++) {
+				pages |= 1 << page;
+			}
+		}
+		vcpu.setWatchPages(pages);
+	}
+
+	private static int parseHex(String s) {
+		if(s.startsWith("$")) s = s.substring(1);
+		if(s.startsWith("0x") || s.startsWith("0X")) s = s.substring(2);
+		return Integer.parseInt(s, 16);
+	}
+}
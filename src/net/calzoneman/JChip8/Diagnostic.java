@@ -0,0 +1,58 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+/**
+ * An error found while assembling, at a 1-based line and column of a file
+ * (null for source that didn't come from a file)
+ */
+public class Diagnostic {
+
+	private final String file;
+	private final int line;
+	private final int column;
+	private final String message;
+
+	public Diagnostic(int line, int column, String message) {
+		this(null, line, column, message);
+	}
+
+	public Diagnostic(String file, int line, int column, String message) {
+		this.file = file;
+		this.line = line;
+		this.column = column;
+		this.message = message;
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	public int getLine() {
+		return line;
+	}
+
+	public int getColumn() {
+		return column;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return (file != null ? file + ":" : "") + line + ":" + column + ": " + message;
+	}
+}
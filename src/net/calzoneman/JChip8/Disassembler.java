@@ -13,186 +13,249 @@ package net.calzoneman.JChip8;
  *                                                                            *
  ******************************************************************************/
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
+/**
+ * Linear disassembler.  Instructions are decoded from $200 until the first
+ * word that isn't a valid opcode; everything from there on is written as DW.
+ * Output is appended straight into an Appendable (a StringBuilder, Writer or
+ * CharBuffer) from constant strings and lookup tables, so disassembling
+ * allocates nothing per instruction.
+ */
 public class Disassembler {
+
+	private static final String NEWLINE = System.lineSeparator();
+
+	// Two uppercase hex digits for every byte value, and register names
+	private static final char[] HEX = new char[512];
+	private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+	private static final String[] REGISTERS = new String[16];
+	private static final String[] DECIMAL = new String[16];
+	static {
+		for(int i = 0; i < 256; i++) {
+			HEX[i * 2] = DIGITS[i >> 4];
+			HEX[i * 2 + 1] = DIGITS[i & 0xF];
+		}
+		for(int i = 0; i < 16; i++) {
+			REGISTERS[i] = "V" + DIGITS[i];
+			DECIMAL[i] = Integer.toString(i);
+		}
+	}
+
+	// Mnemonics of 8XYN by N, or null if invalid
+	private static final String[] ALU = { "LD ", "OR ", "AND ", "XOR ", "ADD ", "SUB ", "SHR ", "SUBN ",
+			null, null, null, null, null, null, "SHL ", null };
+
 	public static ArrayList<String> disassemble(byte[] rom) {
-		ArrayList<String> code = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder(rom.length * 12);
+		try {
+			disassemble(rom, sb);
+		}
+		catch(IOException ex) {
+			throw new IllegalStateException(ex); // StringBuilder doesn't throw
+		}
+		ArrayList<String> code = new ArrayList<String>(Arrays.asList(sb.toString().split(NEWLINE)));
+		if(sb.length() == 0) code.clear();
+		return code;
+	}
+
+	/**
+	 * Appends one line per instruction of rom to out, each prefixed with its address
+	 */
+	public static void disassemble(byte[] rom, Appendable out) throws IOException {
 		int pc = 0x200;
 		boolean keepParsingCode = true;
-		
-		while(pc - 0x200 + 1 < rom.length) {
-			
-			if(!keepParsingCode) {
-				code.add(format(pc, "DW 0x" + hex(rom[pc-0x200]) + hex(rom[pc-0x200+1])));
-				pc += 2;
-				continue;
-			}
-			
-			byte[] nyb = VCPU.getNybbles(VCPU.bytesToShort(rom[pc-0x200], rom[pc-0x200+1]));
-			short addr = VCPU.nybblesToAddress(nyb[1], nyb[2], nyb[3]); // For opcodes with a 3-nybble address
-			byte arg = (byte)((nyb[2] << 4) | nyb[3]); // For opcodes with a 1-byte argument
-			
-			switch(nyb[0]) {
-				case 0x0:
-					if(arg == (byte)0xE0) {
-						code.add(format(pc, "CLS"));
-					}
-					else if(arg == (byte)0xEE) {
-						code.add(format(pc, "RET"));
-					}
-					else {
-						code.add(format(pc, "DW 0x" + hex(rom[pc-0x200]) + hex(rom[pc-0x200+1])));
-						keepParsingCode = false;
-					}
-					break;
-				case 0x1:
-					code.add(format(pc, "JP $0x" + hex(addr)));
-					break;
-				case 0x2:
-					code.add(format(pc, "CALL $0x" + hex(addr)));
-					break;
-				case 0x3:
-					code.add(format(pc, "SE " + regName(nyb[1]) + ", " + arg));
-					break;
-				case 0x4:
-					code.add(format(pc, "SNE " + regName(nyb[1]) + ", " + arg));
-					break;
-				case 0x5:
-					code.add(format(pc, "SE " + regName(nyb[1]) + ", " + regName(nyb[2])));
-					break;
-				case 0x6:
-					code.add(format(pc, "LD " + regName(nyb[1]) + ", " + arg));
-					break;
-				case 0x7:
-					code.add(format(pc, "ADD " + regName(nyb[1]) + ", " + arg));
-					break;
-				case 0x8:
-					switch(nyb[3]) {
-						case 0x0:
-							code.add(format(pc, "LD " + regName(nyb[1]) + ", " + regName(nyb[2])));
-							break;
-						case 0x1:
-							code.add(format(pc, "OR " + regName(nyb[1]) + ", " + regName(nyb[2])));
-							break;
-						case 0x2:
-							code.add(format(pc, "AND " + regName(nyb[1]) + ", " + regName(nyb[2])));
-							break;
-						case 0x3:
-							code.add(format(pc, "XOR " + regName(nyb[1]) + ", " + regName(nyb[2])));
-							break;
-						case 0x4:
-							code.add(format(pc, "ADD " + regName(nyb[1]) + ", " + regName(nyb[2])));
-							break;
-						case 0x5:
-							code.add(format(pc, "SUB " + regName(nyb[1]) + ", " + regName(nyb[2])));
-							break;
-						case 0x6:
-							code.add(format(pc, "SHR " + regName(nyb[1])));
-							break;
-						case 0x7:
-							code.add(format(pc, "SUBN " + regName(nyb[1]) + ", " + regName(nyb[2])));
-							break;
-						case 0xE:
-							code.add(format(pc, "SHL " + regName(nyb[1])));
-							break;
-						default: 
-							code.add(format(pc, "DW 0x" + hex(rom[pc-0x200]) + hex(rom[pc-0x200+1])));
-							keepParsingCode = false;
-							break;
-					}
-					break;
-				case 0x9:
-					code.add(format(pc, "SNE " + regName(nyb[1]) + ", " + regName(nyb[2])));
-					break;
-				case 0xA:
-					code.add(format(pc, "LD I, $0x" + hex(addr)));
-					break;
-				case 0xB:
-					code.add(format(pc, "JP V0, $0x" + hex(addr)));
-					break;
-				case 0xC:
-					code.add(format(pc, "RND " + regName(nyb[1]) + ", " + arg));
-					break;
-				case 0xD:
-					code.add(format(pc, "DRW " + regName(nyb[1]) + ", " + regName(nyb[2]) + ", " + nyb[3]));
-					break;
-				case 0xE:
-					if(arg == (byte)0x9E) {
-						code.add(format(pc, "SKP " + regName(nyb[1])));
-					}
-					else if(arg == (byte)0xA1) {
-						code.add(format(pc, "SKNP " + regName(nyb[1])));
-					}
-					else {
-						code.add(format(pc, "DW $" + hex(rom[pc-0x200]) + hex(rom[pc-0x200+1])));
-						keepParsingCode = false;
-					}
-					break;
-				case 0xF:
-					switch(arg) {
-						case 0x07:
-							code.add(format(pc, "LD " + regName(nyb[1]) + ", DT"));
-							break;
-						case 0x0A:
-							code.add(format(pc, "LD " + regName(nyb[1]) + ", K"));
-							break;
-						case 0x15:
-							code.add(format(pc, "LD DT, " + regName(nyb[1])));
-							break;
-						case 0x18:
-							code.add(format(pc, "LD ST, " + regName(nyb[1])));
-							break;
-						case 0x1E:
-							code.add(format(pc, "ADD I, " + regName(nyb[1])));
-							break;
-						case 0x29:
-							code.add(format(pc, "LD F, " + regName(nyb[1])));
-							break;
-						case 0x33:
-							code.add(format(pc, "LD B, " + regName(nyb[1])));
-							break;
-						case 0x55:
-							code.add(format(pc, "LD [I], " + regName(nyb[1])));
-							break;
-						case 0x65:
-							code.add(format(pc, "LD " + regName(nyb[1]) + ", [I]"));
-							break;
-						default:
-							code.add(format(pc, "DW $" + hex(rom[pc-0x200]) + hex(rom[pc-0x200+1])));
-							keepParsingCode = false;
-							break;
-					}
-					break;
-				default:
-					keepParsingCode = false;
-					code.add(format(pc, "DW $" + hex(rom[pc-0x200]) + hex(rom[pc-0x200+1])));
-					break;
+		int end = 0x200 + rom.length;
+
+		while(pc + 1 < end) {
+			int hi = rom[pc - 0x200] & 0xFF;
+			int lo = rom[pc - 0x200 + 1] & 0xFF;
+			address(out, pc);
+			if(!keepParsingCode || !instruction(out, hi, lo)) {
+				keepParsingCode = false;
+				out.append("DW 0x");
+				hex(out, hi);
+				hex(out, lo);
 			}
+			out.append(NEWLINE);
 			pc += 2;
 		}
-		return code;
+		if(pc < end) {
+			address(out, pc);
+			out.append("DB 0x");
+			hex(out, rom[pc - 0x200] & 0xFF);
+			out.append(NEWLINE);
+		}
 	}
-	
+
+	/**
+	 * Appends the mnemonic for the opcode hi:lo to out.  Returns false, having appended nothing, if it
+	 * isn't a valid instruction.
+	 */
+	public static boolean instruction(Appendable out, int hi, int lo) throws IOException {
+		int x = hi & 0xF;
+		int y = lo >> 4;
+		int n = lo & 0xF;
+		int addr = (x << 8) | lo;
+		switch(hi >> 4) {
+			case 0x0:
+				if(lo == 0xE0) out.append("CLS");
+				else if(lo == 0xEE) out.append("RET");
+				else if(x != 0) return false;
+				else if((lo & 0xF0) == 0xC0) out.append("SCD ").append(DECIMAL[n]);
+				else if(lo == 0xFB) out.append("SCR");
+				else if(lo == 0xFC) out.append("SCL");
+				else if(lo == 0xFD) out.append("EXIT");
+				else if(lo == 0xFE) out.append("LOW");
+				else if(lo == 0xFF) out.append("HIGH");
+				else return false;
+				break;
+			case 0x1:
+				out.append("JP $0x");
+				address12(out, addr);
+				break;
+			case 0x2:
+				out.append("CALL $0x");
+				address12(out, addr);
+				break;
+			case 0x3:
+				regByte(out, "SE ", x, lo);
+				break;
+			case 0x4:
+				regByte(out, "SNE ", x, lo);
+				break;
+			case 0x5:
+				regReg(out, "SE ", x, y);
+				break;
+			case 0x6:
+				regByte(out, "LD ", x, lo);
+				break;
+			case 0x7:
+				regByte(out, "ADD ", x, lo);
+				break;
+			case 0x8:
+				if(ALU[n] == null) return false;
+				if(n == 0x6 || n == 0xE) {
+					out.append(ALU[n]).append(REGISTERS[x]);
+					if(x != y) out.append(", ").append(REGISTERS[y]);
+				}
+				else {
+					regReg(out, ALU[n], x, y);
+				}
+				break;
+			case 0x9:
+				regReg(out, "SNE ", x, y);
+				break;
+			case 0xA:
+				out.append("LD I, $0x");
+				address12(out, addr);
+				break;
+			case 0xB:
+				out.append("JP V0, $0x");
+				address12(out, addr);
+				break;
+			case 0xC:
+				regByte(out, "RND ", x, lo);
+				break;
+			case 0xD:
+				regReg(out, "DRW ", x, y);
+				out.append(", ").append(DECIMAL[n]);
+				break;
+			case 0xE:
+				if(lo == 0x9E) out.append("SKP ").append(REGISTERS[x]);
+				else if(lo == 0xA1) out.append("SKNP ").append(REGISTERS[x]);
+				else return false;
+				break;
+			case 0xF:
+				switch(lo) {
+					case 0x07: out.append("LD ").append(REGISTERS[x]).append(", DT"); break;
+					case 0x0A: out.append("LD ").append(REGISTERS[x]).append(", K"); break;
+					case 0x15: out.append("LD DT, ").append(REGISTERS[x]); break;
+					case 0x18: out.append("LD ST, ").append(REGISTERS[x]); break;
+					case 0x1E: out.append("ADD I, ").append(REGISTERS[x]); break;
+					case 0x29: out.append("LD F, ").append(REGISTERS[x]); break;
+					case 0x30: out.append("LD HF, ").append(REGISTERS[x]); break;
+					case 0x33: out.append("LD B, ").append(REGISTERS[x]); break;
+					case 0x55: out.append("LD [I], ").append(REGISTERS[x]); break;
+					case 0x65: out.append("LD ").append(REGISTERS[x]).append(", [I]"); break;
+					case 0x75: out.append("LD R, ").append(REGISTERS[x]); break;
+					case 0x85: out.append("LD ").append(REGISTERS[x]).append(", R"); break;
+					default: return false;
+				}
+				break;
+		}
+		return true;
+	}
+
+	/**
+	 * True if hi:lo is an instruction the disassembler can name
+	 */
+	public static boolean isInstruction(int hi, int lo) {
+		try {
+			return instruction(DISCARD, hi, lo);
+		}
+		catch(IOException ex) {
+			return false; // DISCARD doesn't throw
+		}
+	}
+
+	private static final Appendable DISCARD = new Appendable() {
+		@Override
+		public Appendable append(CharSequence csq) {
+			return this;
+		}
+
+		@Override
+		public Appendable append(CharSequence csq, int start, int end) {
+			return this;
+		}
+
+		@Override
+		public Appendable append(char c) {
+			return this;
+		}
+	};
+
+	private static void regByte(Appendable out, String mnemonic, int x, int value) throws IOException {
+		out.append(mnemonic).append(REGISTERS[x]).append(", 0x");
+		hex(out, value);
+	}
+
+	private static void regReg(Appendable out, String mnemonic, int x, int y) throws IOException {
+		out.append(mnemonic).append(REGISTERS[x]).append(", ").append(REGISTERS[y]);
+	}
+
+	// Appends [0xAAA] with the address in (at least) three hex digits
+	private static void address(Appendable out, int addr) throws IOException {
+		out.append("[0x");
+		if(addr > 0xFFF) out.append(DIGITS[(addr >> 12) & 0xF]); // Past the end of memory in oversized ROMs
+		address12(out, addr);
+		out.append("] ");
+	}
+
+	private static void address12(Appendable out, int addr) throws IOException {
+		out.append(DIGITS[(addr >> 8) & 0xF]);
+		hex(out, addr & 0xFF);
+	}
+
+	private static void hex(Appendable out, int b) throws IOException {
+		out.append(HEX[b * 2]).append(HEX[b * 2 + 1]);
+	}
+
 	public static String hex(int i) {
 		return Integer.toHexString(i).toUpperCase();
 	}
-	
+
 	public static String hex(byte i) {
-		char upper = (char) ((i & 0xF0) >> 4);
-		if(upper > 9) upper += 55;
-		else upper += 48;
-		char lower = (char)(i & 0x0F);
-		if(lower > 9) lower += 55;
-		else lower += 48;
-
-		return String.format("%c%c", upper, lower);
+		return new String(HEX, (i & 0xFF) * 2, 2);
 	}
-	
+
 	public static String regName(byte i) {
-		return "V" + Integer.toHexString(i).toUpperCase();
+		return REGISTERS[i & 0xF];
 	}
-	
+
 	public static String format(int addr, String value) {
 		return "[0x" + hex(addr) + "] " + value;
 	}
@@ -0,0 +1,534 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Static count of the instructions a ROM can execute between frame syncs,
+ * for checking a main loop against a fixed number of instructions per frame.
+ *
+ * A frame sync is a DT wait (LD Vx, DT, a skip on Vx, then JP back to the
+ * LD) or a key wait (LD Vx, K).  Every path from the entry point or from the
+ * end of a wait to the next wait is a region.  Subroutines that never wait
+ * are counted at their worst (or best) each time they are called; a call to
+ * one that does wait continues into it.  A loop is bounded only if an exit
+ * skip tests a counter that it loads with LD before the loop and changes
+ * with a single ADD inside it; any other loop makes its region unbounded.
+ * JP V0 is assumed to jump to its base, as ControlFlow does.
+ */
+public class FrameBudget {
+
+	public static final long UNBOUNDED = Long.MAX_VALUE / 4;
+	public static final int MEASURE_FRAMES = 120;
+	public static final int MEASURE_LIMIT = 1 << 20; // Instructions in one region before measuring gives up
+
+	/**
+	 * The paths from one start to the next sync
+	 */
+	public static class Region {
+		public final int start;
+		public final String from;
+		public long worst, best;
+		public long total = 0; // Instructions measured over every sample
+		public int samples = 0;
+
+		Region(int start, String from) {
+			this.start = start;
+			this.from = from;
+		}
+
+		/**
+		 * Mean measured instructions, or -1 if the region was never measured
+		 */
+		public long typical() {
+			return samples > 0 ? total / samples : -1;
+		}
+	}
+
+	private final byte[] rom;
+	private final ControlFlow flow;
+	private final int end;
+	private final int[] waitExit = new int[4096]; // Where each DT wait's LD Vx, DT loop exits to, otherwise 0
+	private final int[] function = new int[4096]; // Function each instruction was first reached from
+	private final TreeMap<Integer, TreeSet<Integer>> returnSites = new TreeMap<Integer, TreeSet<Integer>>();
+	private final TreeSet<Integer> waiting = new TreeSet<Integer>(); // Functions that can reach a sync
+	private final HashMap<Integer, long[]> summaries = new HashMap<Integer, long[]>(); // Function entry: {worst, best} to RET
+	private final HashMap<Integer, Integer> writes = new HashMap<Integer, Integer>(); // Function entry: registers it may write
+	private final TreeMap<Integer, Region> regions = new TreeMap<Integer, Region>();
+	private boolean jumpTable = false;
+
+	public FrameBudget(byte[] rom) {
+		this.rom = rom;
+		this.end = 0x200 + rom.length;
+		flow = new ControlFlow(rom);
+		for(ControlFlow.Block b : flow.getBlocks().values()) {
+			for(int addr = b.start; addr < b.end; addr += 2) {
+				function[addr] = b.function;
+			}
+		}
+		for(int entry : flow.getCallGraph().keySet()) {
+			returnSites.put(entry, new TreeSet<Integer>());
+		}
+		for(int addr : flow.instructions()) {
+			int op = opcode(addr);
+			if(op >> 12 == 0x2 && returnSites.containsKey(op & 0xFFF)) returnSites.get(op & 0xFFF).add(addr + 2);
+			if(op >> 12 == 0xB) jumpTable = true;
+			if((op & 0xF0FF) == 0xF007) findWait(addr);
+		}
+		findWaiting();
+
+		regions.put(0x200, new Region(0x200, "the entry point"));
+		for(int addr : flow.instructions()) {
+			if(waitExit[addr] != 0) regions.put(waitExit[addr], new Region(waitExit[addr], "the DT wait at $" + Disassembler.hex(addr)));
+			else if((opcode(addr) & 0xF0FF) == 0xF00A && isCode(addr + 2)) regions.put(addr + 2, new Region(addr + 2, "the key wait at $" + Disassembler.hex(addr)));
+		}
+		for(Region region : regions.values()) {
+			long[] paths = paths(region.start, null, true);
+			region.worst = paths[0];
+			region.best = paths[1];
+		}
+	}
+
+	private int opcode(int addr) {
+		return ((rom[addr - 0x200] & 0xFF) << 8) | (rom[addr - 0x200 + 1] & 0xFF);
+	}
+
+	private boolean isCode(int addr) {
+		return addr >= 0x200 && addr + 1 < end && flow.getKind(addr) == ControlFlow.CODE;
+	}
+
+	private static boolean isSkip(int op) {
+		int high = op >> 12;
+		return high == 0x3 || high == 0x4 || high == 0x5 || high == 0x9 || high == 0xE;
+	}
+
+	// LD Vx, DT at addr, then a skip on Vx, then JP addr as either outcome
+	private void findWait(int addr) {
+		int x = (opcode(addr) >> 8) & 0xF;
+		int skip = addr + 2;
+		if(!isCode(skip) || !isCode(skip + 2)) return;
+		int op = opcode(skip);
+		if((op >> 12 != 0x3 && op >> 12 != 0x4) || ((op >> 8) & 0xF) != x) return;
+		int back = 0x1000 | addr;
+		if(opcode(skip + 2) == back) waitExit[addr] = skip + 4;
+		else if(isCode(skip + 4) && opcode(skip + 4) == back) waitExit[addr] = skip + 2;
+	}
+
+	// A sync ends a region; the instructions before it are all that count
+	private boolean isSync(int addr) {
+		int op = opcode(addr);
+		return waitExit[addr] != 0 || (op & 0xF0FF) == 0xF00A || op == (0x1000 | addr) || op == 0x00FD;
+	}
+
+	// Functions that reach a sync themselves or through a callee, to a fixed point
+	private void findWaiting() {
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			for(int entry : returnSites.keySet()) {
+				if(waiting.contains(entry)) continue;
+				for(int addr : reach(entry)) {
+					int op = opcode(addr);
+					if(isSync(addr) || (op >> 12 == 0x2 && waiting.contains(op & 0xFFF))) {
+						waiting.add(entry);
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	// Instructions reachable from entry without following calls or returns
+	private TreeSet<Integer> reach(int entry) {
+		TreeSet<Integer> seen = new TreeSet<Integer>();
+		ArrayList<Integer> work = new ArrayList<Integer>();
+		ArrayList<Integer> next = new ArrayList<Integer>();
+		work.add(entry);
+		while(!work.isEmpty()) {
+			int addr = work.remove(work.size() - 1);
+			if(!isCode(addr) || !seen.add(addr)) continue;
+			successors(addr, false, next);
+			work.addAll(next);
+		}
+		return seen;
+	}
+
+	/**
+	 * Successors of addr.  With frame set, calls to functions that wait are followed and RET goes
+	 * back to every call of its function; otherwise calls are stepped over and RET ends the path.
+	 */
+	private void successors(int addr, boolean frame, ArrayList<Integer> out) {
+		out.clear();
+		if(isSync(addr)) return;
+		int op = opcode(addr);
+		int high = op >> 12;
+		if(op == 0x00EE) {
+			TreeSet<Integer> sites = returnSites.get(function[addr]);
+			if(frame && sites != null) out.addAll(sites);
+		}
+		else if(high == 0x1 || high == 0xB) {
+			out.add(op & 0xFFF);
+		}
+		else if(high == 0x2 && frame && waiting.contains(op & 0xFFF)) {
+			out.add(op & 0xFFF);
+		}
+		else if(isSkip(op)) {
+			out.add(addr + 2);
+			out.add(addr + 4);
+		}
+		else {
+			out.add(addr + 2);
+		}
+		for(int i = out.size() - 1; i >= 0; i--) {
+			if(!isCode(out.get(i))) out.remove(i);
+		}
+	}
+
+	// Instructions executed at addr itself: {worst, best}, including any call it steps over
+	private long[] cost(int addr, boolean frame) {
+		if(isSync(addr)) return new long[] { 0, 0 };
+		int op = opcode(addr);
+		if(op >> 12 == 0x2 && !(frame && waiting.contains(op & 0xFFF))) {
+			long[] callee = summary(op & 0xFFF);
+			return new long[] { add(1, callee[0]), add(1, callee[1]) };
+		}
+		return new long[] { 1, 1 };
+	}
+
+	// Worst and best instructions from a non-waiting function's entry to its RET
+	private long[] summary(int entry) {
+		long[] result = summaries.get(entry);
+		if(result != null) return result;
+		summaries.put(entry, new long[] { UNBOUNDED, 0 }); // Recursion can't be bounded
+		result = isCode(entry) ? paths(entry, null, false) : new long[] { 0, 0 };
+		summaries.put(entry, result);
+		return result;
+	}
+
+	/**
+	 * Worst and best instructions on the paths from start until they end, reach a sync or, if
+	 * within is given, leave it or return to start.  Loops are found as strongly connected
+	 * components and bounded one nesting level at a time.
+	 */
+	private long[] paths(int start, TreeSet<Integer> within, boolean frame) {
+		// The graph reachable from start
+		TreeMap<Integer, ArrayList<Integer>> graph = new TreeMap<Integer, ArrayList<Integer>>();
+		TreeSet<Integer> ends = new TreeSet<Integer>(); // Instructions that can end here or have a sync after them
+		ArrayList<Integer> work = new ArrayList<Integer>();
+		work.add(start);
+		while(!work.isEmpty()) {
+			int addr = work.remove(work.size() - 1);
+			if(graph.containsKey(addr)) continue;
+			ArrayList<Integer> next = new ArrayList<Integer>();
+			successors(addr, frame, next);
+			for(int i = next.size() - 1; i >= 0; i--) {
+				int s = next.get(i);
+				if(within != null && (s == start || !within.contains(s))) {
+					next.remove(i); // Ends this iteration
+					ends.add(addr);
+				}
+			}
+			if(next.isEmpty()) ends.add(addr);
+			graph.put(addr, next);
+			work.addAll(next);
+		}
+
+		HashMap<Integer, long[]> value = new HashMap<Integer, long[]>();
+		for(TreeSet<Integer> scc : new Tarjan(graph).components) {
+			int first = scc.first();
+			if(scc.size() == 1 && !graph.get(first).contains(first)) {
+				long[] c = cost(first, frame);
+				long worst = 0, best = ends.contains(first) ? 0 : UNBOUNDED;
+				for(int s : graph.get(first)) {
+					worst = Math.max(worst, value.get(s)[0]);
+					best = Math.min(best, value.get(s)[1]);
+				}
+				value.put(first, new long[] { add(c[0], worst), add(c[1], best) });
+				continue;
+			}
+			long[] loop = loop(scc, start, graph, ends, value, frame);
+			for(int addr : scc) {
+				value.put(addr, loop);
+			}
+		}
+		return value.get(start);
+	}
+
+	// Worst and best for a loop, from its header through its iterations and out
+	private long[] loop(TreeSet<Integer> scc, int start, TreeMap<Integer, ArrayList<Integer>> graph, TreeSet<Integer> ends,
+			HashMap<Integer, long[]> value, boolean frame) {
+		long exitWorst = -1, exitBest = UNBOUNDED;
+		TreeSet<Integer> headers = new TreeSet<Integer>();
+		if(scc.contains(start)) headers.add(start);
+		for(Map.Entry<Integer, ArrayList<Integer>> e : graph.entrySet()) {
+			boolean inside = scc.contains(e.getKey());
+			for(int s : e.getValue()) {
+				if(!inside && scc.contains(s)) headers.add(s);
+				if(inside && !scc.contains(s)) {
+					exitWorst = Math.max(exitWorst, value.get(s)[0]);
+					exitBest = Math.min(exitBest, value.get(s)[1]);
+				}
+			}
+			if(inside && ends.contains(e.getKey())) {
+				// Ends inside the loop, at a sync or RET, or leaves an enclosing loop
+				exitWorst = Math.max(exitWorst, 0);
+				exitBest = 0;
+			}
+		}
+		if(exitWorst < 0 || headers.size() != 1) return new long[] { UNBOUNDED, UNBOUNDED };
+		int header = headers.first();
+		long[] iteration = paths(header, scc, frame);
+		long bound = bound(scc, header, graph);
+		long worst = bound < 0 ? UNBOUNDED : add(mul(bound, iteration[0]), exitWorst);
+		return new long[] { worst, add(iteration[1], exitBest) };
+	}
+
+	/**
+	 * Most times a loop's header can run, from a counter: a register loaded with a constant
+	 * before the loop, changed only by one ADD inside it and tested against a constant by a
+	 * skip that leaves the loop.  -1 if no counter is found.
+	 */
+	private long bound(TreeSet<Integer> scc, int header, TreeMap<Integer, ArrayList<Integer>> graph) {
+		long best = -1;
+		for(int skip : scc) {
+			int op = opcode(skip);
+			if(op >> 12 != 0x3 && op >> 12 != 0x4) continue;
+			int x = (op >> 8) & 0xF, n = op & 0xFF;
+			boolean skipLeaves = !scc.contains(skip + 4), nextLeaves = !scc.contains(skip + 2);
+			if(x == 0xF || skipLeaves == nextLeaves) continue;
+			boolean exitWhenEqual = (op >> 12 == 0x3) == skipLeaves;
+
+			int add = -1;
+			boolean other = false;
+			for(int addr : scc) {
+				int mask = written(addr);
+				if((mask & (1 << x)) == 0) continue;
+				if(opcode(addr) >> 12 == 0x7 && add < 0) add = addr;
+				else other = true;
+			}
+			if(add < 0 || other || (opcode(add) & 0xFF) == 0) continue;
+			int k = opcode(add) & 0xFF;
+
+			int initial = -1;
+			for(Map.Entry<Integer, ArrayList<Integer>> e : graph.entrySet()) {
+				if(scc.contains(e.getKey()) || !e.getValue().contains(header)) continue;
+				int c = constantBefore(e.getKey() + 2, x);
+				if(c < 0 || (initial >= 0 && c != initial)) {
+					initial = -2;
+					break;
+				}
+				initial = c;
+			}
+			if(initial < 0) continue;
+
+			// Within one block, the order of the ADD and the test is known; otherwise allow either
+			ControlFlow.Block block = flow.getBlocks().floorEntry(skip).getValue();
+			boolean sameBlock = add >= block.start && add < block.end;
+			int from = sameBlock && add > skip ? 0 : 1;
+			int j = from;
+			while(j <= 256 && (((initial + j * k) & 0xFF) == n) != exitWhenEqual) {
+				j++;
+			}
+			if(j > 256) continue;
+			long iterations = sameBlock ? (add > skip ? j + 1 : j) : j + 1;
+			if(best < 0 || iterations < best) best = iterations;
+		}
+		return best;
+	}
+
+	// The constant LD Vx, kk leaves in Vx on the way into addr within its block, or -1
+	private int constantBefore(int addr, int x) {
+		ControlFlow.Block block = flow.getBlocks().floorEntry(addr - 2).getValue();
+		for(int a = addr - 2; a >= block.start; a -= 2) {
+			if((written(a) & (1 << x)) == 0) continue;
+			int op = opcode(a);
+			return op >> 12 == 0x6 ? op & 0xFF : -1;
+		}
+		return -1;
+	}
+
+	// Registers the instruction at addr may write, including through a call
+	private int written(int addr) {
+		int op = opcode(addr);
+		int x = (op >> 8) & 0xF;
+		switch(op >> 12) {
+			case 0x2:
+				return writes(op & 0xFFF);
+			case 0x6:
+			case 0x7:
+			case 0xC:
+				return 1 << x;
+			case 0x8:
+				return (op & 0xF) == 0 ? 1 << x : (1 << x) | 0x8000;
+			case 0xD:
+				return 0x8000;
+			case 0xF:
+				switch(op & 0xFF) {
+					case 0x07:
+					case 0x0A:
+						return 1 << x;
+					case 0x65:
+					case 0x85:
+						return (2 << x) - 1;
+				}
+		}
+		return 0;
+	}
+
+	private int writes(int entry) {
+		Integer mask = writes.get(entry);
+		if(mask != null) return mask;
+		writes.put(entry, 0xFFFF); // Until known, recursion may write anything
+		int m = 0;
+		for(int addr : reach(entry)) {
+			m |= written(addr);
+		}
+		writes.put(entry, m);
+		return m;
+	}
+
+	private static long add(long a, long b) {
+		return Math.min(a + b, UNBOUNDED);
+	}
+
+	private static long mul(long a, long b) {
+		return b != 0 && a > UNBOUNDED / b ? UNBOUNDED : Math.min(a * b, UNBOUNDED);
+	}
+
+	// Strongly connected components in reverse topological order, so successors come first
+	private static class Tarjan {
+		final ArrayList<TreeSet<Integer>> components = new ArrayList<TreeSet<Integer>>();
+		private final TreeMap<Integer, ArrayList<Integer>> graph;
+		private final HashMap<Integer, Integer> index = new HashMap<Integer, Integer>();
+		private final HashMap<Integer, Integer> low = new HashMap<Integer, Integer>();
+		private final ArrayList<Integer> stack = new ArrayList<Integer>();
+		private final TreeSet<Integer> onStack = new TreeSet<Integer>();
+
+		Tarjan(TreeMap<Integer, ArrayList<Integer>> graph) {
+			this.graph = graph;
+			for(int node : graph.keySet()) {
+				if(!index.containsKey(node)) visit(node);
+			}
+		}
+
+		private void visit(int node) {
+			index.put(node, index.size());
+			low.put(node, index.get(node));
+			stack.add(node);
+			onStack.add(node);
+			for(int s : graph.get(node)) {
+				if(!index.containsKey(s)) {
+					visit(s);
+					low.put(node, Math.min(low.get(node), low.get(s)));
+				}
+				else if(onStack.contains(s)) {
+					low.put(node, Math.min(low.get(node), index.get(s)));
+				}
+			}
+			if(low.get(node).equals(index.get(node))) {
+				TreeSet<Integer> scc = new TreeSet<Integer>();
+				int n;
+				do {
+					n = stack.remove(stack.size() - 1);
+					onStack.remove(n);
+					scc.add(n);
+				} while(n != node);
+				components.add(scc);
+			}
+		}
+	}
+
+	public TreeMap<Integer, Region> getRegions() {
+		return regions;
+	}
+
+	/**
+	 * Runs the ROM headless for up to MEASURE_FRAMES syncs, recording how many instructions each
+	 * region actually took.  Key waits get a different key each time; DT waits are skipped by
+	 * ticking the timers.
+	 */
+	public void measure(Quirks quirks) {
+		VCPU vcpu = new VCPU(rom, quirks);
+		vcpu.setQuiet(true);
+		vcpu.setSeed(0);
+		Region region = regions.get(0x200);
+		long count = 0;
+		for(int syncs = 0; syncs < MEASURE_FRAMES && vcpu.isRunning() && count <= MEASURE_LIMIT; ) {
+			int pc = vcpu.getPC();
+			if(!isCode(pc) || !isSync(pc)) {
+				vcpu.step();
+				count++;
+				continue;
+			}
+			region.total += count;
+			region.samples++;
+			syncs++;
+			count = 0;
+			int resume;
+			if(waitExit[pc] != 0) {
+				resume = waitExit[pc];
+				for(int i = 0; i < 1024 && vcpu.isRunning() && vcpu.getPC() != resume; i++) {
+					vcpu.step();
+					vcpu.tickTimers();
+				}
+			}
+			else if((opcode(pc) & 0xF0FF) == 0xF00A) {
+				resume = pc + 2;
+				vcpu.step(); // Starts waiting
+				vcpu.getInput().setC8KeyMask(1 << (syncs & 0xF));
+				vcpu.step();
+				vcpu.getInput().setC8KeyMask(0);
+			}
+			else {
+				break; // Halted
+			}
+			region = regions.get(resume);
+			if(region == null || vcpu.getPC() != resume) break;
+		}
+	}
+
+	/**
+	 * Prints every region, or with overOnly just those whose worst case is over budget.
+	 * Returns how many are over.
+	 */
+	public int report(int budget, boolean overOnly, PrintStream out) {
+		int over = 0;
+		if(!overOnly) {
+			int waits = regions.size() - 1;
+			if(waits == 0) out.println("No DT or key wait found, so nothing limits how much runs per frame");
+			else out.println(waits + " frame sync" + (waits == 1 ? "" : "s") + " found; budget " + budget + " instructions per frame");
+			if(jumpTable) out.println("JP V0 is assumed to jump to its base address");
+		}
+		for(Region region : regions.values()) {
+			boolean isOver = region.worst > budget;
+			if(isOver) over++;
+			if(overOnly && !isOver) continue;
+			StringBuilder sb = new StringBuilder();
+			sb.append("$").append(Disassembler.hex(region.start)).append(", after ").append(region.from).append(": worst ")
+					.append(region.worst >= UNBOUNDED ? "unbounded" : Long.toString(region.worst)).append(", best ")
+					.append(region.best >= UNBOUNDED ? "never reaches a sync" : Long.toString(region.best));
+			if(region.typical() >= 0) sb.append(", typical ").append(region.typical());
+			if(isOver) sb.append("  OVER BUDGET");
+			out.println(sb);
+		}
+		return over;
+	}
+}
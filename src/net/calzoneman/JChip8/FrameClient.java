@@ -0,0 +1,129 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reference viewer for FrameServer.  Frames are drawn on a VCPU that never
+ * executes, so the usual window and key mapping are reused; key changes are
+ * sent back from a second thread while this one reads frames.
+ */
+public class FrameClient {
+
+	private final SocketChannel channel;
+	private final VCPU display;
+	private final byte[] frame = new byte[VCPU.FRAME_SIZE];
+	private int width = 64, height = 32;
+
+	public FrameClient(String host, int port, VCPU display) throws IOException {
+		this.display = display;
+		channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.socket().setTcpNoDelay(true);
+	}
+
+	/**
+	 * Asks for romname and shows its frames until the display stops or the server disconnects.
+	 * Returns the server's error message if it refused, otherwise null.
+	 */
+	public String view(String romname) throws IOException {
+		byte[] name = romname.getBytes(StandardCharsets.UTF_8);
+		send(FrameServer.HELLO, name);
+		Thread keys = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				sendKeys();
+			}
+		}, "FrameClient keys");
+		keys.setDaemon(true);
+		keys.start();
+
+		ByteBuffer header = ByteBuffer.allocate(FrameServer.HEADER_SIZE);
+		try {
+			while(display.isRunning()) {
+				header.clear();
+				readFully(header);
+				int type = header.get(0) & 0xFF;
+				int length = header.getShort(1) & 0xFFFF;
+				if(length > FrameServer.MAX_PAYLOAD) throw new IOException("message too long");
+				ByteBuffer payload = ByteBuffer.allocate(length);
+				readFully(payload);
+				payload.flip();
+				if(type == FrameServer.ERROR) {
+					return new String(payload.array(), StandardCharsets.UTF_8);
+				}
+				if(type == FrameServer.KEYFRAME) {
+					if(length < 2) throw new IOException("truncated keyframe");
+					width = payload.get() & 0xFF;
+					height = payload.get() & 0xFF;
+					if(!(width == 64 && height == 32) && !(width == VCPU.MAX_WIDTH && height == VCPU.MAX_HEIGHT)) {
+						throw new IOException("unsupported display size " + width + "x" + height);
+					}
+					Arrays.fill(frame, (byte) 0);
+				}
+				else if(type != FrameServer.DELTA) {
+					throw new IOException("unexpected message " + type);
+				}
+				if(!FrameServer.apply(payload, frame, width * height / 8)) throw new IOException("corrupt frame");
+				display.showFrame(frame, width, height);
+			}
+		}
+		catch(IOException ex) {
+			if(display.isRunning()) throw ex; // Otherwise the key thread closed the channel on the way out
+		}
+		finally {
+			channel.close();
+		}
+		return null;
+	}
+
+	// Sends the key mask whenever it changes, and closes the connection once the window is closed
+	private void sendKeys() {
+		int sent = 0;
+		try {
+			while(display.isRunning()) {
+				int keys = display.getInput().getState() & 0xFFFF;
+				if(keys != sent) {
+					send(FrameServer.KEYS, new byte[] { (byte) (keys >> 8), (byte) keys });
+					sent = keys;
+				}
+				Thread.sleep(5);
+			}
+			channel.close();
+		}
+		catch(IOException | InterruptedException ex) {
+			// Connection closed
+		}
+	}
+
+	private synchronized void send(int type, byte[] payload) throws IOException {
+		ByteBuffer m = ByteBuffer.allocate(FrameServer.HEADER_SIZE + payload.length);
+		m.put((byte) type).putShort((short) payload.length).put(payload).flip();
+		while(m.hasRemaining()) {
+			channel.write(m);
+		}
+	}
+
+	private void readFully(ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			if(channel.read(buf) < 0) throw new EOFException("server closed the connection");
+		}
+	}
+}
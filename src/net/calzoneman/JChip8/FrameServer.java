@@ -0,0 +1,371 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Hosts headless machines and streams their displays to remote viewers.
+ *
+ * Everything runs on one thread around a Selector: between selects, every
+ * session is advanced one frame at 60Hz.  A session is one machine per ROM,
+ * shared by all viewers of that ROM; their key masks are ORed together.
+ *
+ * Messages in both directions are [type][length, 2 bytes][payload].
+ *   Client: HELLO with the ROM name, KEYS with a 2-byte key mask
+ *   Server: KEYFRAME with width, height and the RLE-encoded frame, DELTA with
+ *           the RLE-encoded XOR of the frame and the one before it, or ERROR
+ *           with a message before closing.  A change of resolution (SUPER-CHIP
+ *           64x32 / 128x64) sends everyone a keyframe.
+ * Frames are packed by VCPU.packFrame().  A delta is encoded once per session
+ * and the same bytes are queued to every viewer, and nothing is sent when the
+ * frame hasn't changed.  A viewer that falls MAX_QUEUED messages behind has
+ * its queue dropped and gets a keyframe instead.
+ */
+public class FrameServer {
+
+	public static final int DEFAULT_PORT = 6464;
+
+	public static final int HELLO = 1;
+	public static final int KEYS = 2;
+	public static final int KEYFRAME = 3;
+	public static final int DELTA = 4;
+	public static final int ERROR = 5;
+
+	public static final int HEADER_SIZE = 3;
+	public static final int MAX_PAYLOAD = 4096;
+
+	private static final int MAX_QUEUED = 16;
+	private static final long FRAME_NANOS = 1000000000L / 60;
+
+	private class Session {
+		final String name;
+		final VCPU vcpu;
+		final ArrayList<Viewer> viewers = new ArrayList<Viewer>();
+		final byte[] frame = new byte[VCPU.FRAME_SIZE];
+		final byte[] sent = new byte[VCPU.FRAME_SIZE]; // Last frame sent to the viewers
+		int width = 64; // Resolution of sent
+
+		Session(String name, byte[] rom, Quirks quirks) {
+			this.name = name;
+			vcpu = new VCPU(rom, quirks);
+			vcpu.setQuiet(true);
+			vcpu.getInput().clear();
+		}
+	}
+
+	private class Viewer {
+		final SocketChannel channel;
+		final SelectionKey key;
+		final ByteBuffer in = ByteBuffer.allocate(HEADER_SIZE + MAX_PAYLOAD);
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+		Session session = null;
+		boolean needsKeyframe = true;
+		int keys = 0;
+
+		Viewer(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+	}
+
+	private final File library; // Directory or archive that ROM names are looked up in
+	private final boolean archive;
+	private final int ipf;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final HashMap<String, Session> sessions = new HashMap<String, Session>();
+	private final byte[] delta = new byte[VCPU.FRAME_SIZE];
+	private final byte[] encoded = new byte[VCPU.FRAME_SIZE * 2];
+
+	public FrameServer(String library, int port, int ipf) throws IOException {
+		this.library = new File(library);
+		this.archive = RomLoader.archive(this.library.toPath()) != null;
+		if(!archive && !this.library.isDirectory()) throw new IOException(library + " is not a directory or ROM archive");
+		this.ipf = ipf;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port), 1024);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Serves until the thread is interrupted
+	 */
+	public void serve() throws IOException {
+		long next = System.nanoTime();
+		while(!Thread.currentThread().isInterrupted()) {
+			long wait = (next - System.nanoTime()) / 1000000;
+			if(wait > 0) selector.select(wait);
+			else selector.selectNow();
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while(it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if(!key.isValid()) continue;
+				if(key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				Viewer viewer = (Viewer) key.attachment();
+				try {
+					if(key.isReadable()) read(viewer);
+					if(key.isValid() && key.isWritable()) flush(viewer);
+				}
+				catch(IOException ex) {
+					close(viewer);
+				}
+			}
+
+			long now = System.nanoTime();
+			if(now - next >= 0) {
+				tick();
+				next += FRAME_NANOS;
+				if(now - next > FRAME_NANOS * 6) next = now; // Too far behind to catch up; drop the frames
+			}
+		}
+		selector.close();
+		server.close();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(new Viewer(channel, key));
+		}
+	}
+
+	// Reads whatever has arrived and handles each complete message
+	private void read(Viewer viewer) throws IOException {
+		if(viewer.channel.read(viewer.in) < 0) throw new IOException("closed");
+		ByteBuffer in = viewer.in;
+		in.flip();
+		while(in.remaining() >= HEADER_SIZE) {
+			int type = in.get(in.position()) & 0xFF;
+			int length = in.getShort(in.position() + 1) & 0xFFFF;
+			if(length > MAX_PAYLOAD) throw new IOException("message too long");
+			if(in.remaining() < HEADER_SIZE + length) break;
+			in.position(in.position() + HEADER_SIZE);
+			byte[] payload = new byte[length];
+			in.get(payload);
+			if(type == HELLO && viewer.session == null) {
+				join(viewer, new String(payload, StandardCharsets.UTF_8));
+				if(!viewer.channel.isOpen()) return;
+			}
+			else if(type == KEYS && length == 2) {
+				viewer.keys = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+			}
+			else {
+				throw new IOException("unexpected message " + type);
+			}
+		}
+		in.compact();
+	}
+
+	private void join(Viewer viewer, String name) throws IOException {
+		Session session = sessions.get(name.toLowerCase());
+		if(session == null) {
+			byte[] rom = load(name);
+			if(rom == null) {
+				refuse(viewer, "No ROM named " + name);
+				return;
+			}
+			Quirks quirks = archive ? RomLoader.quirks(library.getPath() + ":" + name) : Quirks.DEFAULT;
+			session = new Session(name, rom, quirks != null ? quirks : Quirks.DEFAULT);
+			sessions.put(name.toLowerCase(), session);
+			System.out.println("Started " + name);
+		}
+		session.viewers.add(viewer);
+		viewer.session = session;
+	}
+
+	// Resolves a requested name inside the library only, never elsewhere on disk
+	private byte[] load(String name) {
+		if(archive) return RomLoader.load(library.getPath() + ":" + name);
+		if(name.isEmpty() || name.contains("/") || name.contains("\\") || name.contains(":") || name.startsWith(".")) return null;
+		File file = new File(library, name);
+		if(!file.isFile()) file = new File(library, name + ".ch8");
+		return file.isFile() ? RomLoader.load(file.getPath()) : null;
+	}
+
+	private void refuse(Viewer viewer, String message) throws IOException {
+		byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer error = ByteBuffer.allocate(HEADER_SIZE + text.length);
+		error.put((byte) ERROR).putShort((short) text.length).put(text).flip();
+		viewer.channel.write(error);
+		close(viewer);
+	}
+
+	private void close(Viewer viewer) {
+		viewer.key.cancel();
+		try {
+			viewer.channel.close();
+		}
+		catch(IOException ex) {
+			// Already gone
+		}
+		Session session = viewer.session;
+		if(session == null) return;
+		session.viewers.remove(viewer);
+		viewer.session = null;
+		if(session.viewers.isEmpty()) {
+			sessions.remove(session.name.toLowerCase());
+			System.out.println("Stopped " + session.name);
+		}
+	}
+
+	// Advances every session one frame and sends out what changed
+	private void tick() {
+		for(Session session : new ArrayList<Session>(sessions.values())) {
+			int keys = 0;
+			for(Viewer viewer : session.viewers) {
+				keys |= viewer.keys;
+			}
+			session.vcpu.getInput().setC8KeyMask(keys);
+			if(session.vcpu.isRunning()) session.vcpu.runFrame(ipf); // A stopped machine keeps showing its last frame
+			int length = session.vcpu.packFrame(session.frame);
+			int width = session.vcpu.getDisplayWidth();
+
+			ByteBuffer deltaMessage = null;
+			if(width != session.width) {
+				// Deltas only make sense within one resolution
+				session.width = width;
+				for(Viewer viewer : session.viewers) {
+					viewer.needsKeyframe = true;
+				}
+				System.arraycopy(session.frame, 0, session.sent, 0, length);
+			}
+			else if(!equal(session.frame, session.sent, length)) {
+				for(int i = 0; i < length; i++) {
+					delta[i] = (byte) (session.frame[i] ^ session.sent[i]);
+				}
+				deltaMessage = message(DELTA, delta, length, 0, 0);
+				System.arraycopy(session.frame, 0, session.sent, 0, length);
+			}
+			ByteBuffer keyframe = null;
+			for(Viewer viewer : new ArrayList<Viewer>(session.viewers)) {
+				ByteBuffer m = deltaMessage;
+				if(viewer.needsKeyframe) {
+					if(keyframe == null) keyframe = message(KEYFRAME, session.frame, length, width, session.vcpu.getDisplayHeight());
+					m = keyframe;
+					viewer.needsKeyframe = false;
+				}
+				if(m != null) send(viewer, m.duplicate());
+			}
+		}
+	}
+
+	private static boolean equal(byte[] a, byte[] b, int length) {
+		for(int i = 0; i < length; i++) {
+			if(a[i] != b[i]) return false;
+		}
+		return true;
+	}
+
+	// Encodes the first length bytes of frame as a message, with the resolution if width isn't 0
+	private ByteBuffer message(int type, byte[] frame, int length, int width, int height) {
+		int size = encode(frame, length, encoded);
+		ByteBuffer m = ByteBuffer.allocate(HEADER_SIZE + (width != 0 ? 2 : 0) + size);
+		m.put((byte) type).putShort((short) (m.capacity() - HEADER_SIZE));
+		if(width != 0) m.put((byte) width).put((byte) height);
+		m.put(encoded, 0, size).flip();
+		return m.asReadOnlyBuffer();
+	}
+
+	private void send(Viewer viewer, ByteBuffer m) {
+		try {
+			if(viewer.out.size() >= MAX_QUEUED) {
+				// Can't keep up; keep any half-written message so the stream stays intact, drop the rest
+				ByteBuffer head = viewer.out.peek();
+				viewer.out.clear();
+				if(head.position() > 0) viewer.out.add(head);
+				viewer.needsKeyframe = true;
+				return;
+			}
+			viewer.out.add(m);
+			flush(viewer);
+		}
+		catch(IOException ex) {
+			close(viewer);
+		}
+	}
+
+	// Writes queued messages until the socket would block
+	private void flush(Viewer viewer) throws IOException {
+		while(!viewer.out.isEmpty()) {
+			ByteBuffer head = viewer.out.peek();
+			viewer.channel.write(head);
+			if(head.hasRemaining()) break;
+			viewer.out.poll();
+		}
+		viewer.key.interestOps(viewer.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Run-length encodes data into out as [zero count][literal count][literals] groups, which suits
+	 * XOR deltas where most bytes are zero.  Returns the encoded length; out must hold 2x length.
+	 */
+	public static int encode(byte[] data, int length, byte[] out) {
+		int i = 0, p = 0;
+		while(i < length) {
+			int zeros = 0;
+			while(i < length && data[i] == 0 && zeros < 255) {
+				i++;
+				zeros++;
+			}
+			int start = i;
+			while(i < length && data[i] != 0 && i - start < 255) {
+				i++;
+			}
+			out[p++] = (byte) zeros;
+			out[p++] = (byte) (i - start);
+			System.arraycopy(data, start, out, p, i - start);
+			p += i - start;
+		}
+		return p;
+	}
+
+	/**
+	 * XORs the encoded bytes remaining in in onto frame.  Returns false if they don't fit the frame.
+	 */
+	public static boolean apply(ByteBuffer in, byte[] frame, int length) {
+		int i = 0;
+		while(in.remaining() >= 2) {
+			i += in.get() & 0xFF;
+			int literals = in.get() & 0xFF;
+			if(i + literals > length || in.remaining() < literals) return false;
+			for(int k = 0; k < literals; k++) {
+				frame[i++] ^= in.get();
+			}
+		}
+		return !in.hasRemaining();
+	}
+}
@@ -0,0 +1,280 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coverage-guided fuzzer for ROMs.  Each worker thread owns a headless VCPU
+ * and repeatedly plays mutated InputLogs on it.  Inputs that hit a new control
+ * flow edge (or edge hit-count bucket) or a new register state are added to
+ * the shared corpus; inputs that fault the VCPU are minimized and saved.
+ */
+public class Fuzzer {
+
+	private static final int STATE_BITS = 1 << 20;
+
+	private byte[] rom;
+	private Quirks quirks;
+	private int instructionsPerFrame;
+	private int maxFrames;
+	private String outputDir;
+
+	// Edge hit-count buckets and register states seen by any worker
+	private byte[] virgin = new byte[65536];
+	private long[] states = new long[STATE_BITS / 64];
+
+	private ArrayList<InputLog> corpus = new ArrayList<InputLog>();
+	private HashSet<String> crashes = new HashSet<String>();
+	private AtomicLong execs = new AtomicLong();
+	private volatile boolean keepRunning = true;
+
+	public Fuzzer(byte[] rom, Quirks quirks, int instructionsPerFrame, int maxFrames, String outputDir) {
+		this.rom = rom;
+		this.quirks = quirks;
+		this.instructionsPerFrame = instructionsPerFrame;
+		this.maxFrames = maxFrames;
+		this.outputDir = outputDir;
+		InputLog seed = new InputLog(0, instructionsPerFrame, maxFrames);
+		seed.setQuirks(quirks);
+		corpus.add(seed);
+	}
+
+	/**
+	 * Fuzzes on the given number of threads for the given time, printing progress every second.
+	 * Returns the number of unique crashes found.
+	 */
+	public int run(int threads, long millis) {
+		Thread[] workers = new Thread[threads];
+		for(int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Worker(i), "fuzz-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+
+		long start = System.currentTimeMillis();
+		long end = start + millis;
+		try {
+			while(System.currentTimeMillis() < end) {
+				Thread.sleep(1000);
+				long elapsed = Math.max(1, System.currentTimeMillis() - start);
+				System.out.println(String.format("[%4ds] %d execs (%d/s), corpus %d, edges %d, crashes %d",
+						elapsed / 1000, execs.get(), execs.get() * 1000 / elapsed, corpusSize(), edgeCount(), crashCount()));
+			}
+			keepRunning = false;
+			for(Thread t : workers) {
+				t.join();
+			}
+		}
+		catch(InterruptedException ex) {
+			keepRunning = false;
+		}
+		return crashCount();
+	}
+
+	private int corpusSize() {
+		synchronized(corpus) {
+			return corpus.size();
+		}
+	}
+
+	private int crashCount() {
+		synchronized(crashes) {
+			return crashes.size();
+		}
+	}
+
+	private int edgeCount() {
+		int n = 0;
+		for(byte b : virgin) {
+			if(b != 0) n++;
+		}
+		return n;
+	}
+
+	// AFL-style hit count classes: 1, 2, 3, 4-7, 8-15, 16-31, 32-127, 128+
+	private static int bucket(int hits) {
+		if(hits <= 3) return 1 << (hits - 1);
+		if(hits < 8) return 0x08;
+		if(hits < 16) return 0x10;
+		if(hits < 32) return 0x20;
+		if(hits < 128) return 0x40;
+		return 0x80;
+	}
+
+	/**
+	 * Merges one execution's edges into the global map.  Returns true if anything was new.
+	 * The unsynchronized scan is only a filter; merging happens under the lock.
+	 */
+	private boolean mergeEdges(byte[] edges) {
+		boolean candidate = false;
+		for(int i = 0; i < edges.length; i++) {
+			if(edges[i] != 0 && (virgin[i] & bucket(edges[i] & 0xFF)) == 0) {
+				candidate = true;
+				break;
+			}
+		}
+		if(!candidate) return false;
+
+		boolean found = false;
+		synchronized(virgin) {
+			for(int i = 0; i < edges.length; i++) {
+				if(edges[i] == 0) continue;
+				int b = bucket(edges[i] & 0xFF);
+				if((virgin[i] & b) == 0) {
+					virgin[i] |= b;
+					found = true;
+				}
+			}
+		}
+		return found;
+	}
+
+	private boolean mergeState(int hash) {
+		int bit = (hash ^ (hash >>> 12)) & (STATE_BITS - 1);
+		synchronized(states) {
+			long mask = 1L << (bit & 63);
+			if((states[bit >> 6] & mask) != 0) return false;
+			states[bit >> 6] |= mask;
+			return true;
+		}
+	}
+
+	private class Worker implements Runnable {
+		private VCPU vcpu = new VCPU(rom, quirks);
+		private byte[] edges = new byte[65536];
+		private Random random;
+		private int lastFrame; // Frame the last execution stopped in
+
+		public Worker(int id) {
+			random = new Random(id * 0x9E3779B97F4A7C15L + System.nanoTime());
+			vcpu.setQuiet(true);
+			vcpu.setEdgeMap(edges);
+		}
+
+		@Override
+		public void run() {
+			while(keepRunning) {
+				InputLog parent;
+				synchronized(corpus) {
+					parent = corpus.get(random.nextInt(corpus.size()));
+				}
+				InputLog input = mutate(parent.copy());
+
+				Arrays.fill(edges, (byte) 0);
+				String fault = execute(input);
+				execs.incrementAndGet();
+
+				if(fault != null) {
+					crashed(input, fault);
+				}
+				else if(mergeEdges(edges) | mergeState(vcpu.registerHash())) {
+					synchronized(corpus) {
+						corpus.add(input);
+					}
+				}
+			}
+		}
+
+		// Plays input and returns the fault it caused, or null
+		private String execute(InputLog input) {
+			try {
+				lastFrame = input.play(vcpu);
+				return vcpu.getFault();
+			}
+			catch(RuntimeException ex) {
+				lastFrame = -1;
+				return "[JChip8] Emulator exception " + ex;
+			}
+		}
+
+		private InputLog mutate(InputLog input) {
+			int rounds = 1 + random.nextInt(4);
+			for(int r = 0; r < rounds; r++) {
+				int len = input.length();
+				int f = len == 0 ? 0 : random.nextInt(len);
+				switch(random.nextInt(6)) {
+					case 0: // Flip one key
+						if(len > 0) input.setKeys(f, input.getKeys(f) ^ (1 << random.nextInt(16)));
+						break;
+					case 1: // Press a single random key, or nothing
+						if(len > 0) input.setKeys(f, random.nextInt(4) == 0 ? 0 : 1 << random.nextInt(16));
+						break;
+					case 2: // Hold a frame's keys for a while
+						int hold = f + 1 + random.nextInt(30);
+						for(int i = f + 1; i < len && i < hold; i++) {
+							input.setKeys(i, input.getKeys(f));
+						}
+						break;
+					case 3: // Splice a span from another corpus entry
+						InputLog other;
+						synchronized(corpus) {
+							other = corpus.get(random.nextInt(corpus.size()));
+						}
+						int span = f + random.nextInt(60);
+						for(int i = f; i < len && i < other.length() && i < span; i++) {
+							input.setKeys(i, other.getKeys(i));
+						}
+						break;
+					case 4:
+						input.setSeed(random.nextLong());
+						break;
+					case 5: // Change the length
+						input.setLength(1 + random.nextInt(maxFrames));
+						break;
+				}
+			}
+			return input;
+		}
+
+		private void crashed(InputLog input, String fault) {
+			int number;
+			synchronized(crashes) {
+				if(!crashes.add(fault)) return;
+				number = crashes.size(); // Taken here so workers finishing at once don't share a file
+			}
+			InputLog min = minimize(input, fault);
+			String name = outputDir + File.separator + "crash-" + number + ".log";
+			try {
+				min.save(name);
+				System.out.println(fault + " (" + min.length() + " frames) saved to " + name);
+			}
+			catch(IOException ex) {
+				System.out.println(fault + "; unable to save " + name);
+			}
+		}
+
+		// Truncates after the faulting frame, then clears every key press that isn't needed to reproduce it
+		private InputLog minimize(InputLog input, String fault) {
+			InputLog min = input.copy();
+			execute(min);
+			if(lastFrame >= 0) min.setLength(lastFrame + 1);
+			for(int f = min.length() - 1; f >= 0; f--) {
+				int keys = min.getKeys(f);
+				if(keys == 0) continue;
+				min.setKeys(f, 0);
+				if(!fault.equals(execute(min))) {
+					min.setKeys(f, keys);
+				}
+			}
+			return min;
+		}
+	}
+}
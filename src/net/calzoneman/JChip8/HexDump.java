@@ -0,0 +1,122 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Canonical hex+ASCII dump of any file, e.g.
+ *
+ *   00000200  A2 04 12 07 F0 90 F0 D0  13 30 05 22 11 70 01 12  |.........0.".p..|
+ *
+ * The file is memory-mapped a window at a time and rows are formatted as
+ * bytes into one reusable buffer that is written out whenever it fills, so
+ * files of any size dump at I/O speed without per-byte allocation.
+ */
+public class HexDump {
+
+	private static final int ROW = 16;
+	private static final long WINDOW = 64L << 20; // Bytes mapped at a time
+	private static final int CHUNK = 1 << 16; // Output buffer size
+
+	private static final byte[] DIGITS = "0123456789ABCDEF".getBytes();
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[CHUNK];
+	private final byte[] input = new byte[CHUNK / 8]; // Bulk copy of mapped bytes being formatted
+	private int used = 0;
+	private int offsetDigits = 8;
+
+	public HexDump(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Dumps length bytes of file starting at offset (length < 0 for the rest of the file)
+	 */
+	public void dump(Path file, long offset, long length) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(offset < 0 || offset > size) throw new IOException("offset " + offset + " is outside the file (" + size + " bytes)");
+			long end = length < 0 ? size : Math.min(size, offset + length);
+			offsetDigits = Math.max(8, (64 - Long.numberOfLeadingZeros(end) + 3) / 4);
+			// Windows start on a row boundary relative to offset so rows never straddle two mappings
+			for(long pos = offset; pos < end; pos += WINDOW) {
+				long len = Math.min(WINDOW, end - pos);
+				dump(channel.map(FileChannel.MapMode.READ_ONLY, pos, len), pos);
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * Dumps the remaining bytes of data, numbering rows from base
+	 */
+	public void dump(ByteBuffer data, long base) throws IOException {
+		long address = base;
+		while(data.hasRemaining()) {
+			int n = Math.min(input.length, data.remaining());
+			data.get(input, 0, n);
+			for(int row = 0; row < n; row += ROW) {
+				if(used + 128 > buffer.length) flush();
+				row(row, Math.min(ROW, n - row), address);
+				address += ROW;
+			}
+		}
+	}
+
+	private void row(int from, int count, long address) {
+		byte[] data = input;
+		byte[] b = buffer;
+		int p = used;
+		for(int shift = (offsetDigits - 1) * 4; shift >= 0; shift -= 4) {
+			b[p++] = DIGITS[(int) (address >>> shift) & 0xF];
+		}
+		b[p++] = ' ';
+		for(int i = 0; i < ROW; i++) {
+			b[p++] = ' ';
+			if(i == 8) b[p++] = ' ';
+			if(i < count) {
+				int v = data[from + i] & 0xFF;
+				b[p++] = DIGITS[v >> 4];
+				b[p++] = DIGITS[v & 0xF];
+			}
+			else {
+				b[p++] = ' ';
+				b[p++] = ' ';
+			}
+		}
+		b[p++] = ' ';
+		b[p++] = ' ';
+		b[p++] = '|';
+		for(int i = 0; i < count; i++) {
+			int v = data[from + i] & 0xFF;
+			b[p++] = (byte) (v >= 0x20 && v < 0x7F ? v : '.');
+		}
+		b[p++] = '|';
+		b[p++] = '\n';
+		used = p;
+	}
+
+	public void flush() throws IOException {
+		out.write(buffer, 0, used);
+		out.flush();
+		used = 0;
+	}
+}
@@ -0,0 +1,161 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches an assembly source and the files it INCLUDEs, and hot loads it into
+ * a running VCPU whenever one of them is saved.  The source is only
+ * reassembled when one of those files actually changes.
+ * If every label is still at the same address the changed bytes are patched
+ * in and registers and the screen are kept; otherwise the machine restarts
+ * from the new ROM.
+ */
+public class HotReload implements Runnable {
+
+	private static final long SETTLE_MILLIS = 15; // Editors often write a file in several steps
+
+	private final Path source;
+	private final VCPU vcpu;
+	private final WatchService watcher;
+	private byte[] rom;
+	private TreeMap<String, Integer> labels;
+	private Set<Path> files; // Every source file of the last assembly
+	private final HashSet<Path> watched = new HashSet<Path>(); // Their directories
+
+	/**
+	 * Starts watching source, which must already have assembled to rom with the given source map,
+	 * and the files it includes
+	 */
+	public HotReload(Path source, VCPU vcpu, byte[] rom, SourceMap map) throws IOException {
+		this.source = source.toAbsolutePath().normalize();
+		this.vcpu = vcpu;
+		this.rom = rom;
+		this.labels = map.getLabels();
+		watcher = FileSystems.getDefault().newWatchService();
+		watch(map.getFiles());
+		Thread t = new Thread(this, "hot-reload");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void close() {
+		try {
+			watcher.close();
+		}
+		catch(IOException ex) {
+			// Already closed
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				WatchKey key = watcher.take();
+				boolean changed = touched(key);
+				// Swallow the rest of a burst of events before reading the file
+				while((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+					changed |= touched(key);
+				}
+				if(changed) reload();
+			}
+		}
+		catch(InterruptedException | ClosedWatchServiceException ex) {
+			// Shutting down
+		}
+	}
+
+	// Watches the directories of files, which replace the files watched before
+	private void watch(Set<Path> files) throws IOException {
+		this.files = files;
+		for(Path file : files) {
+			Path dir = file.getParent();
+			if(watched.contains(dir) || !Files.isDirectory(dir)) continue;
+			dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+			watched.add(dir);
+		}
+	}
+
+	private boolean touched(WatchKey key) {
+		boolean found = false;
+		Path dir = (Path) key.watchable();
+		for(WatchEvent<?> event : key.pollEvents()) {
+			Object name = event.context();
+			if(name instanceof Path && files.contains(dir.resolve((Path) name))) found = true;
+		}
+		key.reset();
+		return found;
+	}
+
+	private void reload() {
+		long start = System.nanoTime();
+		List<String> src;
+		try {
+			src = Files.readAllLines(source, StandardCharsets.UTF_8);
+		}
+		catch(IOException ex) {
+			System.out.println("Unable to read " + source);
+			return;
+		}
+		SourceMap map = new SourceMap();
+		ArrayList<Diagnostic> errors = new ArrayList<Diagnostic>();
+		byte[] assembled = Assembler.assemble(src, source, map, errors);
+		// INCLUDEs may have been added or removed, even if there are errors
+		try {
+			watch(map.getFiles());
+		}
+		catch(IOException ex) {
+			System.out.println("Unable to watch the files " + source.getFileName() + " includes: " + ex.getMessage());
+		}
+		if(assembled == null) {
+			for(Diagnostic d : errors) {
+				System.out.println(d);
+			}
+			System.out.println("Keeping the running program");
+			return;
+		}
+
+		int changed = 0;
+		for(int i = 0; i < Math.max(assembled.length, rom.length); i++) {
+			byte a = i < assembled.length ? assembled[i] : 0;
+			byte b = i < rom.length ? rom[i] : 0;
+			if(a != b) changed++;
+		}
+		if(changed == 0) return;
+
+		boolean restart = !labels.equals(map.getLabels());
+		vcpu.hotLoad(assembled, restart);
+		rom = assembled;
+		labels = map.getLabels();
+		System.out.println(String.format("Reloaded %s in %.1f ms: %d byte%s changed%s", source.getFileName(),
+				(System.nanoTime() - start) / 1e6, changed, changed == 1 ? "" : "s", restart ? ", labels moved so restarting" : ""));
+	}
+}
@@ -15,6 +15,7 @@ package net.calzoneman.JChip8;
 
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.util.Arrays;
 import java.util.HashMap;
 
 public class InputHandler implements KeyListener {
@@ -25,8 +26,9 @@ public class InputHandler implements KeyListener {
 	private boolean[] c8KeyStates;
 	private HashMap<Integer, Integer> keymap;
 	
-	private boolean waiting = false;
-	private int c8WaitKey = 0;
+	private volatile boolean waiting = false;
+	private volatile int c8WaitKey = -1;
+	private int c8KeyMask = 0;
 	
 	public InputHandler() {
 		this.keyStates = new boolean[NUM_KEYS];
@@ -64,9 +66,9 @@ public class InputHandler implements KeyListener {
 		keyStates[e.getKeyCode()] = true;
 		if(keymap.containsKey(e.getKeyCode())) {
 			c8KeyStates[keymap.get(e.getKeyCode())] = true;
+			c8KeyMask |= 1 << keymap.get(e.getKeyCode());
 			if(waiting) {
 				c8WaitKey = keymap.get(e.getKeyCode());
-				waiting = false;
 			}
 		}
 	}
@@ -76,6 +78,7 @@ public class InputHandler implements KeyListener {
 		keyStates[e.getKeyCode()] = false;
 		if(keymap.containsKey(e.getKeyCode())) {
 			c8KeyStates[keymap.get(e.getKeyCode())] = false;
+			c8KeyMask &= ~(1 << keymap.get(e.getKeyCode()));
 		}
 	}
 	
@@ -94,9 +97,65 @@ public class InputHandler implements KeyListener {
 	}
 	
 	public int waitForC8Key() {
-		waiting = true;
-		while(waiting);
-		return c8WaitKey;
+		int key;
+		while((key = pollC8Key()) < 0);
+		return key;
+	}
+	
+	/**
+	 * Non-blocking version of waitForC8Key().  The first call starts waiting and returns -1; once
+	 * a Chip8 key is newly pressed, the next call returns it and stops waiting.
+	 */
+	public int pollC8Key() {
+		if(!waiting) {
+			c8WaitKey = -1;
+			waiting = true;
+			return -1;
+		}
+		int key = c8WaitKey;
+		if(key >= 0) {
+			waiting = false;
+		}
+		return key;
+	}
+	
+	/**
+	 * Sets the state of all 16 Chip8 keys at once from a bitmask (bit n = key n), for headless input
+	 */
+	public void setC8KeyMask(int mask) {
+		int pressed = mask & ~c8KeyMask;
+		c8KeyMask = mask;
+		for(int i = 0; i < 16; i++) {
+			c8KeyStates[i] = (mask & (1 << i)) != 0;
+		}
+		if(waiting && pressed != 0) {
+			c8WaitKey = Integer.numberOfTrailingZeros(pressed);
+		}
+	}
+	
+	/**
+	 * Packs the Chip8 key mask and key-wait state into an int, for VCPU.saveState()
+	 */
+	public int getState() {
+		return (c8KeyMask & 0xFFFF) | ((c8WaitKey & 0xFF) << 16) | (waiting ? 1 << 24 : 0);
+	}
+	
+	public void setState(int state) {
+		setC8KeyMask(state & 0xFFFF);
+		int key = (state >> 16) & 0xFF;
+		c8WaitKey = key == 0xFF ? -1 : key;
+		waiting = (state & (1 << 24)) != 0;
+	}
+	
+	/**
+	 * Releases all keys and cancels any pending wait
+	 */
+	public void clear() {
+		Arrays.fill(keyStates, false);
+		Arrays.fill(c8KeyStates, false);
+		c8KeyMask = 0;
+		waiting = false;
+		c8WaitKey = -1;
 	}
 
 }
@@ -0,0 +1,166 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * A deterministic recording of a headless run: the RNG seed, the number of
+ * instructions executed per 60Hz frame, and the Chip8 key mask held during
+ * each frame (bit n = key n).
+ *
+ * Saved as text:
+ *   seed <n>
+ *   ipf <n>
+ *   quirks <spec>, if the log was recorded with known quirks (see Quirks.parse())
+ *   one 4-digit hex key mask per line
+ */
+public class InputLog {
+
+	public static final int DEFAULT_IPF = 10;
+
+	private long seed;
+	private int instructionsPerFrame;
+	private Quirks quirks = null; // Null if not recorded
+	private int[] keys;
+	private int length;
+
+	public InputLog(long seed, int instructionsPerFrame, int frames) {
+		this.seed = seed;
+		this.instructionsPerFrame = instructionsPerFrame;
+		this.keys = new int[Math.max(frames, 16)];
+		this.length = frames;
+	}
+
+	public InputLog copy() {
+		InputLog log = new InputLog(seed, instructionsPerFrame, 0);
+		log.quirks = quirks;
+		log.keys = Arrays.copyOf(keys, keys.length);
+		log.length = length;
+		return log;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public int getInstructionsPerFrame() {
+		return instructionsPerFrame;
+	}
+
+	/**
+	 * The quirks the log was recorded with, or null if it doesn't say
+	 */
+	public Quirks getQuirks() {
+		return quirks;
+	}
+
+	public void setQuirks(Quirks quirks) {
+		this.quirks = quirks;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public void setLength(int frames) {
+		if(frames > keys.length) {
+			keys = Arrays.copyOf(keys, Math.max(frames, keys.length * 2));
+		}
+		else if(frames < length) {
+			Arrays.fill(keys, frames, length, 0);
+		}
+		length = frames;
+	}
+
+	public int getKeys(int frame) {
+		return keys[frame];
+	}
+
+	public void setKeys(int frame, int mask) {
+		keys[frame] = mask & 0xFFFF;
+	}
+
+	public void append(int mask) {
+		setLength(length + 1);
+		keys[length - 1] = mask & 0xFFFF;
+	}
+
+	/**
+	 * Resets vcpu and plays this log on it.  Returns the frame the VCPU stopped
+	 * in, or -1 if it was still running at the end of the log.
+	 */
+	public int play(VCPU vcpu) {
+		vcpu.reset();
+		vcpu.getInput().clear();
+		vcpu.setSeed(seed);
+		for(int f = 0; f < length; f++) {
+			vcpu.getInput().setC8KeyMask(keys[f]);
+			if(!vcpu.runFrame(instructionsPerFrame)) {
+				return f;
+			}
+		}
+		return -1;
+	}
+
+	public void save(String filename) throws IOException {
+		try (PrintWriter pw = new PrintWriter(filename)) {
+			pw.println("seed " + seed);
+			pw.println("ipf " + instructionsPerFrame);
+			if(quirks != null) pw.println("quirks " + quirks);
+			for(int f = 0; f < length; f++) {
+				pw.println(String.format("%04X", keys[f]));
+			}
+		}
+	}
+
+	public static InputLog load(String filename) {
+		try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+			InputLog log = new InputLog(0, DEFAULT_IPF, 0);
+			String line;
+			while((line = br.readLine()) != null) {
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith(";")) {
+					continue;
+				}
+				else if(line.startsWith("seed ")) {
+					log.seed = Long.parseLong(line.substring(5).trim());
+				}
+				else if(line.startsWith("ipf ")) {
+					log.instructionsPerFrame = Integer.parseInt(line.substring(4).trim());
+				}
+				else if(line.startsWith("quirks ")) {
+					log.quirks = Quirks.parse(line.substring(7));
+					if(log.quirks == null) return null;
+				}
+				else {
+					log.append(Integer.parseInt(line, 16));
+				}
+			}
+			return log;
+		}
+		catch(IOException | NumberFormatException ex) {
+			System.out.println("Unable to load input log " + filename + ": " + ex.getMessage());
+			return null;
+		}
+	}
+}
@@ -14,13 +14,28 @@ package net.calzoneman.JChip8;
  ******************************************************************************/
 
 import java.awt.Dimension;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
+import javax.sound.sampled.LineUnavailableException;
 import javax.swing.JFrame;
 
 public class JChip8 {
@@ -28,57 +43,161 @@ public class JChip8 {
 	public static final String version = "1.0";
 
 	public static void main(String[] args) {
-		String output = null;
 		if(args.length < 2) {
 			help();
 			return;
 		}
-		else if(args.length == 4 && (args[2].equals("-o") || args[2].equals("--output"))) {
-			output = args[3];
-		}
+		String output = getOption(args, "--output", "-o");
 		
 		if(args[0].equals("hexdump") || args[0].equals("h")) {
-			memdump(RomLoader.load(args[1]));
+			hexdump(args[1], getOption(args, "--offset", null), getOption(args, "--length", null));
 		}
 		else if(args[0].equals("run") || args[0].equals("r")) {
-			run(args[1]);
+			run(args[1], getOption(args, "--trace", "-t"), getOption(args, "--coverage", "-c"), getOption(args, "--debug", null), getOption(args, "--shm", null),
+					getOption(args, "--wav", null), hasFlag(args, "--mute"), getOption(args, "--quirks", "-q"), getOption(args, "--filter", null),
+					getOption(args, "--record", null), getOption(args, "--plugins", null));
+		}
+		else if((args[0].equals("assemble") || args[0].equals("a")) && Batch.isBatch(args[1])) {
+			batch(true, args[1], output, getOption(args, "--threads", null), false);
 		}
 		else if(args[0].equals("assemble") || args[0].equals("a")) {
-			if(output != null) assemble(args[1], output);
-			else assemble(args[1]);
+			boolean ok;
+			int budget = instructionsPerFrame(getOption(args, "--ipf", null));
+			if(budget < 0) System.exit(1);
+			if(output != null) ok = assemble(args[1], output, getOption(args, "--map", "-m"), budget);
+			else ok = assemble(args[1], budget);
+			System.exit(ok ? 0 : 1);
+		}
+		else if((args[0].equals("disassemble") || args[0].equals("d")) && Batch.isBatch(args[1])) {
+			batch(false, args[1], output, getOption(args, "--threads", null), hasFlag(args, "--linear"));
 		}
 		else if(args[0].equals("disassemble") || args[0].equals("d")) {
-			if(output != null) disassemble(args[1], output);
-			else disassemble(args[1]);
+			boolean ok;
+			if(output != null) ok = disassemble(args[1], output, hasFlag(args, "--linear"), getOption(args, "--graph", "-g"));
+			else ok = disassemble(args[1]);
+			System.exit(ok ? 0 : 1);
+		}
+		else if(args[0].equals("trace") || args[0].equals("t")) {
+			trace(args[1], getOption(args, "--pc", null), getOption(args, "--op", null), getOption(args, "--addr", null));
+		}
+		else if(args[0].equals("fuzz") || args[0].equals("f")) {
+			fuzz(args[1], getOption(args, "--time", null), getOption(args, "--frames", null), getOption(args, "--threads", null), output,
+					getOption(args, "--quirks", "-q"));
+		}
+		else if(args[0].equals("replay")) {
+			replay(args[1], getOption(args, "--input", "-i"), getOption(args, "--wav", null), getOption(args, "--quirks", "-q"), getOption(args, "--record", null),
+					getOption(args, "--plugins", null));
+		}
+		else if(args[0].equals("search") || args[0].equals("s")) {
+			search(args[1], getOption(args, "--score", null), getOption(args, "--goal", null), getOption(args, "--steps", null),
+					getOption(args, "--beam", null), getOption(args, "--hold", null), getOption(args, "--seed", null), output, getOption(args, "--quirks", "-q"));
+		}
+		else if(args[0].equals("verify") || args[0].equals("v")) {
+			verify(args[1], getOption(args, "--engines", null), getOption(args, "--input", "-i"), getOption(args, "--frames", null), getOption(args, "--threads", null),
+					getOption(args, "--quirks", "-q"));
+		}
+		else if(args[0].equals("pack")) {
+			pack(args[1], output, getOption(args, "--meta", null));
+		}
+		else if(args[0].equals("list")) {
+			list(args[1]);
+		}
+		else if(args[0].equals("serve")) {
+			serve(args[1], getOption(args, "--port", "-p"), getOption(args, "--ipf", null));
+		}
+		else if(args[0].equals("view")) {
+			view(args[1], getOption(args, "--rom", null), getOption(args, "--filter", null));
+		}
+		else if(args[0].equals("netplay") || args[0].equals("n")) {
+			netplay(args[1], getOption(args, "--join", "-j"), getOption(args, "--port", "-p"), getOption(args, "--delay", null),
+					getOption(args, "--ipf", null), getOption(args, "--seed", null), getOption(args, "--quirks", "-q"), getOption(args, "--filter", null));
+		}
+		else if(args[0].equals("peek")) {
+			peek(args[1], getOption(args, "--addr", null), hasFlag(args, "--follow"));
+		}
+		else if(args[0].equals("dev")) {
+			dev(args[1], getOption(args, "--wav", null), hasFlag(args, "--mute"), getOption(args, "--quirks", "-q"), getOption(args, "--filter", null));
+		}
+		else if(args[0].equals("budget") || args[0].equals("b")) {
+			boolean ok = budget(args[1], getOption(args, "--ipf", null), getOption(args, "--quirks", "-q"));
+			System.exit(ok ? 0 : 1);
+		}
+		else if(args[0].equals("optimize")) {
+			boolean ok = optimize(args[1], output, getOption(args, "--quirks", "-q"));
+			System.exit(ok ? 0 : 1);
+		}
+		else if(args[0].equals("coverage") || args[0].equals("c")) {
+			coverage(args[1], getOption(args, "--coverage", "-c"));
 		}
 		else {
 			help();
 		}
 	}
 	
-	public static void assemble(String srcname) {
+	// Returns the argument following a flag such as --trace, or null if the flag wasn't given
+	private static String getOption(String[] args, String longName, String shortName) {
+		for(int i = 2; i < args.length - 1; i++) {
+			if(args[i].equals(longName) || args[i].equals(shortName)) {
+				return args[i+1];
+			}
+		}
+		return null;
+	}
+	
+	// Returns true if a flag without a value, such as --linear, was given
+	private static boolean hasFlag(String[] args, String name) {
+		for(int i = 2; i < args.length; i++) {
+			if(args[i].equals(name)) return true;
+		}
+		return false;
+	}
+	
+	// Quirks from a --quirks spec if given, otherwise from the ROM's archive metadata.  Null if either is invalid.
+	private static Quirks quirks(String spec, String romname) {
+		return spec != null ? Quirks.parse(spec) : RomLoader.quirks(romname);
+	}
+	
+	// Parses a hex range of the form 200-2FF, or a single hex address
+	private static int[] parseRange(String range) {
+		String[] parts = range.split("-");
+		int low = Integer.parseInt(parts[0].replace("0x", ""), 16);
+		int high = parts.length > 1 ? Integer.parseInt(parts[1].replace("0x", ""), 16) : low;
+		return new int[] { low, high };
+	}
+	
+	public static boolean assemble(String srcname) {
+		return assemble(srcname, InputLog.DEFAULT_IPF);
+	}
+	
+	public static boolean assemble(String srcname, int budget) {
 		String destname = srcname;
 		if(srcname.contains(".")) {
 			destname = srcname.substring(0, srcname.lastIndexOf("."));
 		}
-		assemble(srcname, destname + ".ch8");
+		return assemble(srcname, destname + ".ch8", null, budget);
 	}
 	
-	public static void assemble(String srcname, String destname) {
-		ArrayList<String> src = new ArrayList<String>();
-		try (BufferedReader br = new BufferedReader(new FileReader(srcname))) {
-			String line = "";
-			while(line != null) {
-				src.add(line);
-				line = br.readLine();
-			}
-		}
-		catch(Exception e) {
+	public static boolean assemble(String srcname, String destname) {
+		return assemble(srcname, destname, null);
+	}
+	
+	public static boolean assemble(String srcname, String destname, String mapname) {
+		return assemble(srcname, destname, mapname, InputLog.DEFAULT_IPF);
+	}
+	
+	/**
+	 * Assembles srcname into destname, warning about any path between frame syncs with more than budget
+	 * instructions (see FrameBudget)
+	 */
+	public static boolean assemble(String srcname, String destname, String mapname, int budget) {
+		ArrayList<String> src = loadSource(srcname);
+		if(src == null) {
 			System.out.println("Unable to load " + srcname);
-			return;
+			return false;
 		}
 		
-		byte[] assembled = Assembler.assemble(src);
+		SourceMap map = mapname != null ? new SourceMap() : null;
+		byte[] assembled = assembleSource(srcname, src, map);
 		if(assembled != null) {
 			try (FileOutputStream fis = new FileOutputStream(destname)) {
 				fis.write(assembled);
@@ -86,88 +205,871 @@ public class JChip8 {
 			}
 			catch(Exception e) {
 				System.out.println("Unable to save " + destname);
-				return;
+				return false;
+			}
+			if(map != null) {
+				try {
+					map.save(mapname);
+					System.out.println("Source map saved to " + mapname);
+				}
+				catch(IOException e) {
+					System.out.println("Unable to save " + mapname);
+					return false;
+				}
+			}
+			// Only a warning: the budget depends on how the ROM is run
+			if(new FrameBudget(assembled).report(budget, true, System.out) > 0) {
+				System.out.println("These may not fit in " + budget + " instructions per frame; run budget " + destname + " for details");
 			}
+			return true;
 		}
 		else {
 			System.out.println("Asembly failed");
+			return false;
+		}
+	}
+	
+	// Assembles or disassembles every file matching a glob or under a directory, then exits
+	private static void batch(boolean assemble, String pattern, String outputDir, String threads, boolean linear) {
+		List<Path> files;
+		int workers;
+		try {
+			files = Batch.find(pattern, assemble ? ".asm" : ".ch8");
+			workers = threads != null ? Integer.parseInt(threads) : Runtime.getRuntime().availableProcessors();
+			if(outputDir != null) Files.createDirectories(Paths.get(outputDir));
+		}
+		catch(IOException ex) {
+			System.out.println("Unable to list " + pattern + ": " + ex);
+			System.exit(1);
+			return;
+		}
+		catch(NumberFormatException ex) {
+			System.out.println("Invalid number for --threads");
+			System.exit(1);
+			return;
+		}
+		if(files.isEmpty()) {
+			System.out.println("No files match " + pattern);
+			System.exit(1);
+		}
+		Batch batch = new Batch(assemble, outputDir != null ? Paths.get(outputDir) : null);
+		batch.setLinear(linear);
+		int failures = batch.run(files, workers);
+		System.exit(failures > 0 ? 1 : 0);
+	}
+	
+	// Assembles src, printing each error as file:line:column: message
+	private static byte[] assembleSource(String srcname, ArrayList<String> src, SourceMap map) {
+		ArrayList<Diagnostic> errors = new ArrayList<Diagnostic>();
+		byte[] assembled = Assembler.assemble(src, new File(srcname).toPath(), map, errors);
+		for(Diagnostic d : errors) {
+			System.out.println(d);
+		}
+		if(!errors.isEmpty()) {
+			System.out.println(errors.size() + " error" + (errors.size() == 1 ? "" : "s"));
+		}
+		return assembled;
+	}
+	
+	private static ArrayList<String> loadSource(String srcname) {
+		ArrayList<String> src = new ArrayList<String>();
+		try (BufferedReader br = new BufferedReader(new FileReader(srcname))) {
+			String line;
+			while((line = br.readLine()) != null) {
+				src.add(line);
+			}
+		}
+		catch(Exception e) {
+			return null;
 		}
+		return src;
 	}
 	
-	public static void disassemble(String romname) {
+	public static boolean disassemble(String romname) {
 		String destname = romname;
 		if(romname.contains(".")) {
 			destname = romname.substring(0, romname.lastIndexOf("."));
 		}
-		disassemble(romname, destname);
+		return disassemble(romname, destname + ".asm");
+	}
+	
+	public static boolean disassemble(String romname, String destname) {
+		return disassemble(romname, destname, false, null);
 	}
 	
-	public static void disassemble(String romname, String destname) {
+	/**
+	 * Disassembles with control flow recovery into labelled source, or with the linear disassembler if
+	 * linear is set.  With a graphname, also saves the basic blocks and call graph in DOT format.
+	 */
+	public static boolean disassemble(String romname, String destname, boolean linear, String graphname) {
 		byte[] rom = RomLoader.load(romname);
 		if(rom == null) {
 			System.out.println("Unable to load " + romname + "; are you sure you typed it correctly?");
-			return;
+			return false;
 		}
-		ArrayList<String> code = Disassembler.disassemble(rom);
-		try {
-			PrintWriter pw = new PrintWriter(destname);
-			for(String line : code) {
-				pw.println(line);
-			}
-			pw.close();
+		ControlFlow flow = linear ? null : new ControlFlow(rom);
+		try (Writer out = Files.newBufferedWriter(Paths.get(destname), StandardCharsets.UTF_8)) {
+			if(linear) Disassembler.disassemble(rom, out);
+			else flow.write(out);
 			System.out.println("Disassembly saved to " + destname);
 		}
 		catch(IOException ex) {
 			System.out.println("Unable to save " + destname);
-			return;
+			return false;
+		}
+		if(graphname != null && flow != null) {
+			try (Writer out = Files.newBufferedWriter(Paths.get(graphname), StandardCharsets.UTF_8)) {
+				flow.writeGraph(out);
+				System.out.println("Control flow graph saved to " + graphname);
+			}
+			catch(IOException ex) {
+				System.out.println("Unable to save " + graphname);
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes a smaller, faster copy of a ROM, see Optimizer.  Without a destname it is saved as <romname>.opt.ch8.
+	 */
+	public static boolean optimize(String romname, String destname, String quirkSpec) {
+		byte[] rom = RomLoader.load(romname);
+		if(rom == null) {
+			System.out.println("Unable to load " + romname + "; are you sure you typed it correctly?");
+			return false;
+		}
+		if(rom.length > 4096 - 0x200) {
+			System.out.println(romname + " is too large to fit in memory");
+			return false;
+		}
+		Quirks quirks = quirks(quirkSpec, romname);
+		if(quirks == null) return false;
+		if(destname == null) {
+			destname = romname.contains(".") ? romname.substring(0, romname.lastIndexOf(".")) : romname;
+			destname += ".opt.ch8";
+		}
+		Optimizer optimizer = new Optimizer(rom, quirks);
+		byte[] optimized = optimizer.optimize();
+		try (FileOutputStream fos = new FileOutputStream(destname)) {
+			fos.write(optimized);
+		}
+		catch(IOException ex) {
+			System.out.println("Unable to save " + destname);
+			return false;
+		}
+		System.out.println(optimizer.getReport());
+		System.out.println("Optimized ROM saved to " + destname);
+		return true;
+	}
+	
+	/**
+	 * Prints the worst, best and typical instructions between each pair of frame syncs in a ROM.  Returns
+	 * false if it can't be loaded or some path may exceed ipf instructions.
+	 */
+	public static boolean budget(String romname, String ipf, String quirkSpec) {
+		byte[] rom = RomLoader.load(romname);
+		if(rom == null) {
+			System.out.println("Unable to load " + romname + "; are you sure you typed it correctly?");
+			return false;
+		}
+		Quirks quirks = quirks(quirkSpec, romname);
+		if(quirks == null) return false;
+		int perFrame = instructionsPerFrame(ipf);
+		if(perFrame < 0) return false;
+		FrameBudget budget = new FrameBudget(rom);
+		budget.measure(quirks);
+		return budget.report(perFrame, false, System.out) == 0;
+	}
+	
+	// The --ipf budget, DEFAULT_IPF if not given, or -1 if it isn't a positive number
+	private static int instructionsPerFrame(String ipf) {
+		if(ipf == null) return InputLog.DEFAULT_IPF;
+		try {
+			int n = Integer.parseInt(ipf);
+			if(n > 0) return n;
+		}
+		catch(NumberFormatException ex) {
+			// Reported below
 		}
+		System.out.println("Invalid number for --ipf: " + ipf);
+		return -1;
 	}
 	
 	public static void run(String romname) {
+		run(romname, null, null, null, null, null, false, null, null, null, null);
+	}
+	
+	public static void run(String romname, String tracename, String coveragename, String debugPort, String sharedname, String wavname, boolean mute,
+			String quirkSpec, String filterSpec, String recordname, String pluginDir) {
 		byte[] rom = RomLoader.load(romname);
 		if(rom == null) {
 			System.out.println("Unable to load " + romname + "; are you sure you typed it correctly?");
 			return;
 		}
-		VCPU vcpu = new VCPU(rom);
+		Quirks quirks = quirks(quirkSpec, romname);
+		Upscaler upscaler = Upscaler.parse(filterSpec);
+		if(quirks == null || upscaler == null) return;
+		Plugins plugins = null;
+		if(pluginDir != null) {
+			plugins = Plugins.load(pluginDir);
+			if(plugins == null) return;
+		}
+		final VCPU vcpu = new VCPU(rom, quirks);
+		TraceWriter trace = null;
+		if(tracename != null) {
+			try {
+				trace = new TraceWriter(tracename);
+				vcpu.setTrace(trace);
+			}
+			catch(IOException ex) {
+				System.out.println("Unable to open trace file " + tracename);
+				return;
+			}
+		}
+		Debugger debugger = null;
+		if(debugPort != null) {
+			try {
+				debugger = new Debugger(vcpu, Integer.parseInt(debugPort));
+				System.out.println("Debugger listening on localhost:" + debugger.getPort() + "; execution is paused until a client continues");
+			}
+			catch(IOException | NumberFormatException ex) {
+				System.out.println("Unable to start debugger on port " + debugPort + ": " + ex.getMessage());
+				return;
+			}
+		}
+		Coverage coverage = null;
+		if(coveragename != null) {
+			coverage = new Coverage();
+			vcpu.setCoverage(coverage);
+		}
+		SharedState shared = null;
+		if(sharedname != null) {
+			try {
+				shared = SharedState.create(sharedname);
+				vcpu.setSharedState(shared);
+			}
+			catch(IOException ex) {
+				System.out.println("Unable to open shared state file " + sharedname + ": " + ex.getMessage());
+				return;
+			}
+		}
+		Sound sound = openSound(wavname, mute);
+		vcpu.setSound(sound);
+		Recorder recorder = openRecorder(recordname, false);
+		vcpu.setRecorder(recorder);
+		vcpu.setPlugins(plugins);
+		JFrame appFrame = showWindow(vcpu, upscaler);
+		vcpu.run();
+		if(sound != null) {
+			sound.close();
+		}
+		if(recorder != null) {
+			recorder.close();
+		}
+		if(plugins != null) {
+			plugins.close();
+		}
+		if(shared != null) {
+			shared.close();
+		}
+		if(debugger != null) {
+			debugger.close();
+		}
+		if(trace != null) {
+			trace.close();
+			System.out.println(trace.getWritten() + " instructions traced to " + tracename);
+		}
+		if(coverage != null) {
+			try {
+				coverage.save(coveragename);
+				System.out.println("Coverage saved to " + coveragename);
+			}
+			catch(IOException ex) {
+				System.out.println("Unable to save " + coveragename);
+			}
+		}
+		appFrame.setVisible(false);
+		System.exit(0);
+	}
+	
+	// Records to wavname if given, otherwise plays through the speaker unless muted or there is no audio device
+	private static Sound openSound(String wavname, boolean mute) {
+		try {
+			if(wavname != null) return Sound.wav(wavname);
+			if(!mute) return Sound.speaker();
+		}
+		catch(IOException | LineUnavailableException ex) {
+			System.out.println("Sound disabled: " + ex.getMessage());
+		}
+		return null;
+	}
+	
+	// A recorder for --record <dest>, or null if none was asked for or it can't be opened
+	private static Recorder openRecorder(String recordname, boolean headless) {
+		if(recordname == null) return null;
+		try {
+			return Recorder.open(recordname, headless);
+		}
+		catch(IOException ex) {
+			System.out.println("Recording disabled: " + ex.getMessage());
+			return null;
+		}
+	}
+	
+	// Opens a window around vcpu; closing it stops the VCPU rather than exiting so traces and coverage get saved.
+	// With a filter other than Upscaler.NONE, the display follows the window's size.
+	private static JFrame showWindow(final VCPU vcpu, Upscaler upscaler) {
+		if(upscaler != Upscaler.NONE) vcpu.setUpscaler(upscaler);
 		JFrame appFrame = new JFrame();
 		appFrame.setTitle("JChip8");
 		appFrame.add(vcpu);
-		appFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		appFrame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+		appFrame.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				vcpu.die("Window closed");
+			}
+		});
 		appFrame.setVisible(true);
 		appFrame.getContentPane().setMinimumSize(new Dimension(256, 128));
 		appFrame.getContentPane().setPreferredSize(new Dimension(256, 128));
 		appFrame.getContentPane().setMaximumSize(new Dimension(256, 128));
 		appFrame.pack();
+		return appFrame;
+	}
+	
+	public static void serve(String library, String port, String ipf) {
+		FrameServer server;
+		try {
+			int p = port != null ? Integer.parseInt(port) : FrameServer.DEFAULT_PORT;
+			server = new FrameServer(library, p, ipf != null ? Integer.parseInt(ipf) : InputLog.DEFAULT_IPF);
+			System.out.println("Serving " + library + " on port " + p);
+			server.serve();
+		}
+		catch(NumberFormatException ex) {
+			System.out.println("Invalid number: " + ex.getMessage());
+		}
+		catch(IOException ex) {
+			System.out.println("Server error: " + ex.getMessage());
+		}
+	}
+	
+	public static void view(String address, String romname, String filterSpec) {
+		if(romname == null) {
+			System.out.println("No ROM given; use --rom <name>");
+			return;
+		}
+		Upscaler upscaler = Upscaler.parse(filterSpec);
+		if(upscaler == null) return;
+		String host = address;
+		int port = FrameServer.DEFAULT_PORT;
+		if(address.lastIndexOf(':') > 0) {
+			host = address.substring(0, address.lastIndexOf(':'));
+			port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+		}
+		VCPU display = new VCPU(new byte[0]);
+		display.setQuiet(true);
+		JFrame appFrame = null;
+		try {
+			FrameClient client = new FrameClient(host, port, display);
+			appFrame = showWindow(display, upscaler);
+			appFrame.setTitle("JChip8 - " + romname + " on " + address);
+			String error = client.view(romname);
+			if(error != null) System.out.println(error);
+		}
+		catch(IOException ex) {
+			System.out.println("Connection to " + address + " failed: " + ex.getMessage());
+		}
+		if(appFrame != null) appFrame.setVisible(false);
+		System.exit(0);
+	}
+	
+	public static void netplay(String romname, String join, String port, String delay, String ipf, String seed, String quirkSpec, String filterSpec) {
+		byte[] rom = RomLoader.load(romname);
+		if(rom == null) {
+			System.out.println("Unable to load " + romname + "; are you sure you typed it correctly?");
+			return;
+		}
+		Quirks quirks = quirks(quirkSpec, romname);
+		Upscaler upscaler = Upscaler.parse(filterSpec);
+		if(quirks == null || upscaler == null) return;
+		VCPU vcpu = new VCPU(rom, quirks);
+		// Keys are read between frames from a separate handler; the machine only sees the combined keys of both players
+		InputHandler keyboard = new InputHandler();
+		vcpu.removeKeyListener(vcpu.getInput());
+		vcpu.addKeyListener(keyboard);
+		JFrame appFrame = showWindow(vcpu, upscaler);
+		Netplay netplay;
+		try {
+			if(join != null) {
+				String host = join;
+				int p = Netplay.DEFAULT_PORT;
+				if(join.lastIndexOf(':') > 0) {
+					host = join.substring(0, join.lastIndexOf(':'));
+					p = Integer.parseInt(join.substring(join.lastIndexOf(':') + 1));
+				}
+				appFrame.setTitle("JChip8 - connecting to " + join);
+				netplay = Netplay.join(vcpu, keyboard, rom, host, p);
+			}
+			else {
+				int p = port != null ? Integer.parseInt(port) : Netplay.DEFAULT_PORT;
+				appFrame.setTitle("JChip8 - waiting for a player on port " + p);
+				netplay = Netplay.host(vcpu, keyboard, rom, p, seed != null ? Long.parseLong(seed) : System.nanoTime(),
+						ipf != null ? Integer.parseInt(ipf) : InputLog.DEFAULT_IPF, delay != null ? Integer.parseInt(delay) : Netplay.DEFAULT_DELAY);
+			}
+			appFrame.setTitle("JChip8 - netplay");
+			System.out.println("Playing with seed " + netplay.getSeed());
+			System.out.println(netplay.play());
+			System.out.println(netplay.getStatistics());
+		}
+		catch(NumberFormatException ex) {
+			System.out.println("Invalid number: " + ex.getMessage());
+		}
+		catch(IOException ex) {
+			System.out.println("Netplay failed: " + ex.getMessage());
+		}
+		appFrame.setVisible(false);
+		System.exit(0);
+	}
+	
+	/**
+	 * Prints snapshots of a machine publishing with run --shm, optionally with a memory range
+	 */
+	public static void peek(String sharedname, String addr, boolean follow) {
+		SharedState shared;
+		int[] range = null;
+		try {
+			shared = SharedState.open(sharedname);
+			if(addr != null) range = parseRange(addr);
+		}
+		catch(IOException | NumberFormatException ex) {
+			System.out.println("Unable to open " + sharedname + ": " + ex.getMessage());
+			return;
+		}
+		byte[] state = new byte[VCPU.STATE_SIZE];
+		VCPU vcpu = new VCPU(new byte[0]);
+		vcpu.setQuiet(true);
+		HexDump dump = new HexDump(new FileOutputStream(FileDescriptor.out));
+		long last = -1;
+		do {
+			long frames = shared.snapshot(state);
+			if(frames != last) {
+				last = frames;
+				vcpu.loadState(state);
+				System.out.println("Frame " + frames);
+				vcpu.printState();
+				if(range != null) {
+					try {
+						int low = Math.max(0, Math.min(range[0], range[1]));
+						int high = Math.min(4095, Math.max(range[0], range[1]));
+						dump.dump(ByteBuffer.wrap(state, VCPU.STATE_MEMORY + low, high - low + 1), low);
+						dump.flush();
+					}
+					catch(IOException ex) {
+						return;
+					}
+				}
+			}
+			if(follow) {
+				try {
+					Thread.sleep(250);
+				}
+				catch(InterruptedException ex) {
+					return;
+				}
+			}
+		} while(follow);
+		shared.close();
+	}
+	
+	public static void dev(String srcname, String wavname, boolean mute, String quirkSpec, String filterSpec) {
+		Quirks quirks = Quirks.parse(quirkSpec);
+		Upscaler upscaler = Upscaler.parse(filterSpec);
+		if(quirks == null || upscaler == null) return;
+		ArrayList<String> src = loadSource(srcname);
+		if(src == null) {
+			System.out.println("Unable to load " + srcname);
+			return;
+		}
+		SourceMap map = new SourceMap();
+		byte[] rom = assembleSource(srcname, src, map);
+		if(rom == null) {
+			System.out.println("Asembly failed");
+			return;
+		}
+		VCPU vcpu = new VCPU(rom, quirks);
+		HotReload reload;
+		try {
+			reload = new HotReload(new File(srcname).toPath(), vcpu, rom, map);
+		}
+		catch(IOException ex) {
+			System.out.println("Unable to watch " + srcname + ": " + ex.getMessage());
+			return;
+		}
+		System.out.println("Watching " + srcname + " for changes");
+		Sound sound = openSound(wavname, mute);
+		vcpu.setSound(sound);
+		JFrame appFrame = showWindow(vcpu, upscaler);
 		vcpu.run();
+		if(sound != null) {
+			sound.close();
+		}
+		reload.close();
 		appFrame.setVisible(false);
 		System.exit(0);
 	}
 	
+	public static void fuzz(String romname, String time, String frames, String threads, String outputDir, String quirkSpec) {
+		byte[] rom = RomLoader.load(romname);
+		if(rom == null) {
+			System.out.println("Unable to load " + romname + "; are you sure you typed it correctly?");
+			return;
+		}
+		Quirks quirks = quirks(quirkSpec, romname);
+		if(quirks == null) return;
+		int seconds, maxFrames, workers;
+		try {
+			seconds = time != null ? Integer.parseInt(time) : 60;
+			maxFrames = frames != null ? Integer.parseInt(frames) : 600;
+			workers = threads != null ? Integer.parseInt(threads) : Runtime.getRuntime().availableProcessors();
+		}
+		catch(NumberFormatException ex) {
+			System.out.println("Invalid number for --time, --frames or --threads");
+			return;
+		}
+		if(outputDir == null) outputDir = ".";
+		Fuzzer fuzzer = new Fuzzer(rom, quirks, InputLog.DEFAULT_IPF, maxFrames, outputDir);
+		int crashes = fuzzer.run(workers, seconds * 1000L);
+		System.out.println("Fuzzing finished with " + crashes + " unique crashes");
+		System.exit(crashes > 0 ? 1 : 0);
+	}
+	
+	public static void replay(String romname, String logname, String wavname, String quirkSpec, String recordname, String pluginDir) {
+		byte[] rom = RomLoader.load(romname);
+		if(rom == null) {
+			System.out.println("Unable to load " + romname + "; are you sure you typed it correctly?");
+			return;
+		}
+		if(logname == null) {
+			System.out.println("No input log given; use --input(-i) <log>");
+			return;
+		}
+		InputLog log = InputLog.load(logname);
+		if(log == null) return;
+		// The log's quirks unless overridden, since a recording only replays correctly under the quirks it was made with
+		Quirks quirks = quirkSpec == null && log.getQuirks() != null ? log.getQuirks() : quirks(quirkSpec, romname);
+		if(quirks == null) return;
+		Plugins plugins = null;
+		if(pluginDir != null) {
+			plugins = Plugins.load(pluginDir);
+			if(plugins == null) return;
+		}
+		VCPU vcpu = new VCPU(rom, quirks);
+		Sound sound = null;
+		if(wavname != null) {
+			sound = openSound(wavname, true);
+			vcpu.setSound(sound);
+		}
+		Recorder recorder = openRecorder(recordname, true);
+		vcpu.setRecorder(recorder);
+		vcpu.setPlugins(plugins);
+		int frame = log.play(vcpu);
+		if(sound != null) {
+			sound.close();
+			System.out.println("Sound saved to " + wavname);
+		}
+		if(recorder != null) {
+			recorder.close();
+		}
+		if(plugins != null) {
+			plugins.close();
+		}
+		if(frame >= 0) {
+			System.out.println("Stopped in frame " + frame + " of " + log.length());
+		}
+		else {
+			System.out.println("Played " + log.length() + " frames");
+		}
+		vcpu.printState();
+	}
+	
+	public static void search(String romname, String score, String goal, String steps, String beam, String hold, String seed, String output,
+			String quirkSpec) {
+		byte[] rom = RomLoader.load(romname);
+		if(rom == null) {
+			System.out.println("Unable to load " + romname + "; are you sure you typed it correctly?");
+			return;
+		}
+		Quirks quirks = quirks(quirkSpec, romname);
+		if(quirks == null) return;
+		if(score == null) {
+			System.out.println("No score location given; use --score <addr>[:<bytes>]");
+			return;
+		}
+		Search search;
+		int numSteps;
+		long rngSeed;
+		try {
+			String[] parts = score.split(":");
+			int addr = Integer.parseInt(parts[0].replace("0x", ""), 16);
+			int len = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+			if(addr < 0 || len < 1 || len > 4 || addr + len > 4096) {
+				System.out.println("Score location must be 1 to 4 bytes inside memory");
+				return;
+			}
+			SearchHeuristic heuristic = new Search.MemoryScore(addr, len, "min".equals(goal));
+			numSteps = steps != null ? Integer.parseInt(steps) : 60;
+			int width = beam != null ? Integer.parseInt(beam) : 64;
+			int frames = hold != null ? Integer.parseInt(hold) : 4;
+			rngSeed = seed != null ? Long.parseLong(seed) : 0;
+			search = new Search(rom, quirks, heuristic, width, InputLog.DEFAULT_IPF, frames);
+		}
+		catch(NumberFormatException ex) {
+			System.out.println("Invalid number: " + ex.getMessage());
+			return;
+		}
+		long start = System.currentTimeMillis();
+		InputLog best = search.run(rngSeed, numSteps);
+		System.out.println("Search took " + (System.currentTimeMillis() - start) + "ms");
+		if(output == null) {
+			output = romname.contains(".") ? romname.substring(0, romname.lastIndexOf(".")) + ".log" : romname + ".log";
+		}
+		try {
+			best.save(output);
+			System.out.println("Input log saved to " + output);
+		}
+		catch(IOException ex) {
+			System.out.println("Unable to save " + output);
+		}
+	}
+	
+	public static void verify(String path, String engines, String logname, String frames, String threads, String quirkSpec) {
+		ArrayList<String> roms = new ArrayList<String>();
+		File file = new File(path);
+		RomArchive archive = file.isFile() ? RomLoader.archive(file.toPath()) : null;
+		if(archive != null) {
+			for(int i = 0; i < archive.size(); i++) {
+				roms.add(path + ":" + RomArchive.hex(archive.entry(i).hash));
+			}
+		}
+		else if(file.isDirectory()) {
+			File[] files = file.listFiles();
+			Arrays.sort(files);
+			for(File f : files) {
+				if(f.isFile() && f.getName().toLowerCase().endsWith(".ch8")) roms.add(f.getPath());
+			}
+		}
+		else {
+			roms.add(path);
+		}
+		
+		int engineA = VCPU.ENGINE_INTERPRETER, engineB = VCPU.ENGINE_DECODE_CACHED;
+		if(engines != null) {
+			String[] names = engines.split(",");
+			engineA = names.length == 2 ? Arrays.asList(VCPU.ENGINE_NAMES).indexOf(names[0]) : -1;
+			engineB = names.length == 2 ? Arrays.asList(VCPU.ENGINE_NAMES).indexOf(names[1]) : -1;
+			if(engineA < 0 || engineB < 0) {
+				System.out.println("--engines takes two of: " + Arrays.toString(VCPU.ENGINE_NAMES));
+				return;
+			}
+		}
+		InputLog log = null;
+		if(logname != null) {
+			log = InputLog.load(logname);
+			if(log == null) return;
+		}
+		Quirks quirks = null;
+		if(quirkSpec != null) {
+			quirks = Quirks.parse(quirkSpec);
+			if(quirks == null) return;
+		}
+		int numFrames, workers;
+		try {
+			numFrames = frames != null ? Integer.parseInt(frames) : 3600;
+			workers = threads != null ? Integer.parseInt(threads) : Runtime.getRuntime().availableProcessors();
+		}
+		catch(NumberFormatException ex) {
+			System.out.println("Invalid number for --frames or --threads");
+			return;
+		}
+		int failures = Lockstep.verifyAll(roms, log, quirks, numFrames, engineA, engineB, workers);
+		System.out.println(roms.size() - failures + " of " + roms.size() + " ROMs matched");
+		System.exit(failures > 0 ? 1 : 0);
+	}
+	
+	/**
+	 * Packs the ROMs in a directory or matching a glob into an archive.  metaname optionally names a
+	 * tab-separated file of name, title, instructions per frame and quirks for each ROM.
+	 */
+	public static void pack(String pattern, String archivename, String metaname) {
+		if(archivename == null) {
+			System.out.println("No archive given; use -o <archive>");
+			return;
+		}
+		HashMap<String, String[]> meta = new HashMap<String, String[]>();
+		if(metaname != null) {
+			ArrayList<String> lines = loadSource(metaname);
+			if(lines == null) {
+				System.out.println("Unable to load " + metaname);
+				return;
+			}
+			for(String line : lines) {
+				if(line.trim().isEmpty() || line.startsWith("#")) continue;
+				String[] fields = line.split("\t");
+				meta.put(fields[0].toLowerCase(), fields);
+			}
+		}
+		ArrayList<RomArchive.Entry> entries = new ArrayList<RomArchive.Entry>();
+		try {
+			for(Path file : Batch.find(pattern, ".ch8")) {
+				String name = file.getFileName().toString();
+				RomArchive.Entry entry = new RomArchive.Entry(name, Batch.read(file));
+				String[] fields = meta.get(name.toLowerCase());
+				if(fields != null) {
+					if(fields.length > 1) entry.title = fields[1];
+					if(fields.length > 2 && !fields[2].isEmpty()) entry.instructionsPerFrame = Integer.parseInt(fields[2].trim());
+					if(fields.length > 3) entry.quirks = fields[3].trim();
+					if(Quirks.parse(entry.quirks) == null) {
+						System.out.println("Not packing: bad quirks for " + name);
+						return;
+					}
+				}
+				entries.add(entry);
+			}
+			RomArchive.write(Paths.get(archivename), entries);
+		}
+		catch(IOException | NumberFormatException ex) {
+			System.out.println("Unable to pack " + pattern + ": " + ex.getMessage());
+			return;
+		}
+		System.out.println(entries.size() + " ROMs packed into " + archivename);
+	}
+	
+	public static void list(String archivename) {
+		RomArchive archive = RomLoader.archive(Paths.get(archivename));
+		if(archive == null) {
+			System.out.println(archivename + " is not a ROM archive");
+			return;
+		}
+		for(int i = 0; i < archive.size(); i++) {
+			RomArchive.Entry e = archive.entry(i);
+			System.out.println(RomArchive.hex(e.hash) + "  " + String.format("%5d", archive.slice(i).remaining()) + "  " + e.name
+					+ (e.title.isEmpty() ? "" : "  \"" + e.title + "\"")
+					+ (e.instructionsPerFrame > 0 ? "  ipf=" + e.instructionsPerFrame : "")
+					+ (e.quirks.isEmpty() ? "" : "  quirks=" + e.quirks));
+		}
+		System.out.println(archive.size() + " ROMs");
+	}
+	
+	public static void coverage(String srcname, String coveragename) {
+		if(coveragename == null) {
+			System.out.println("No coverage file given; record one with run <rom> --coverage <file>");
+			return;
+		}
+		ArrayList<String> src = loadSource(srcname);
+		if(src == null) {
+			System.out.println("Unable to load " + srcname);
+			return;
+		}
+		SourceMap map = new SourceMap();
+		if(assembleSource(srcname, src, map) == null) {
+			System.out.println("Asembly failed");
+			return;
+		}
+		Coverage coverage = Coverage.load(coveragename);
+		if(coverage == null) {
+			System.out.println("Unable to load coverage from " + coveragename);
+			return;
+		}
+		coverage.report(src, map, System.out);
+	}
+	
+	public static void trace(String tracename, String pc, String op, String addr) {
+		try {
+			TraceReader reader = new TraceReader(tracename);
+			if(pc != null) {
+				int[] range = parseRange(pc);
+				reader.setPCRange(range[0], range[1]);
+			}
+			if(op != null) {
+				reader.setOpcodePattern(op);
+			}
+			if(addr != null) {
+				int[] range = parseRange(addr);
+				reader.setAddressRange(range[0], range[1]);
+			}
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+			long matched = reader.query(out);
+			System.out.println(matched + " of " + reader.getWritten() + " records matched");
+		}
+		catch(NumberFormatException ex) {
+			System.out.println("Invalid address range");
+		}
+		catch(IOException ex) {
+			System.out.println("Unable to read trace " + tracename + ": " + ex.getMessage());
+		}
+	}
+	
 	public static void memdump(byte[] mem) {
 		if(mem == null) return;
-		for(int i = 0; i < mem.length; i++) {
-			char upper = (char)((mem[i] & 0xF0) >> 4);
-			if(upper > 9) upper += 55;
-			else upper += 48;
-			char lower = (char)(mem[i] & 0x0F);
-			if(lower > 9) lower += 55;
-			else lower += 48;
-
-			System.out.print(String.format("%c%c  ", upper, lower));
-			if(i % 8 == 7) System.out.println();
+		HexDump dump = new HexDump(System.out);
+		try {
+			dump.dump(ByteBuffer.wrap(mem), 0);
+			dump.flush();
+		}
+		catch(IOException ex) {
+			// Output closed
+		}
+	}
+	
+	public static void hexdump(String filename, String offset, String length) {
+		long start, count;
+		try {
+			start = offset != null ? Long.decode(offset) : 0;
+			count = length != null ? Long.decode(length) : -1;
+		}
+		catch(NumberFormatException ex) {
+			System.out.println("Invalid number for --offset or --length");
+			return;
+		}
+		try {
+			new HexDump(new FileOutputStream(FileDescriptor.out)).dump(Paths.get(filename), start, count);
+		}
+		catch(IOException ex) {
+			System.out.println("Unable to dump " + filename + ": " + ex.getMessage());
 		}
-		System.out.println();
 	}
 	
 	public static void help() {
 		System.out.println("--- JChip8 v" + version + " by Calvin Montgomery ---");
 		System.out.println();
-		System.out.println("Usage: java -jar JChip8.jar <run(r)|assemble(a)|disassemble(d)|hexdump(h)> <file> [--output(-o) <dest>]");
+		System.out.println("Usage: java -jar JChip8.jar <run(r)|assemble(a)|disassemble(d)|hexdump(h)|coverage(c)|trace(t)|fuzz(f)|replay|search(s)|verify(v)|budget(b)|optimize|serve|view|netplay(n)|peek|dev> <file> [--output(-o) <dest>]");
 		System.out.println();
-		System.out.println("run <file> loads Chip8 bytecode from <file> and executes it");
-		System.out.println("assemble <file> assembles Chip8 assembly into bytecode.  If the -o flag is specified, it is saved to <dest>, otherwise <file>.ch8");
-		System.out.println("disassemble <file> disassembles Chip8 bytecode from <file>. If the -o flag is specified, it is saved to <dest>, otherwise <file>.asm");
-		System.out.println("hexdump <file> prints the contents of <file> in hexadecimal");
+		System.out.println("run <file> loads Chip8 bytecode from <file> and executes it.  If --trace(-t) <trace> is specified, every instruction is recorded to <trace>.  If --coverage(-c) <cov> is specified, executed/read/written addresses are saved to <cov>.  If --debug <port> is specified, a debugger is served on localhost:<port>.  If --shm <file> is specified, RAM, registers and the display are published to <file> at every 60Hz tick for other processes to read (see peek).  Sound plays through the speaker unless --mute is given; --wav <wav> records it to <wav> instead");
+		System.out.println("assemble <file> assembles Chip8 assembly into bytecode.  If the -o flag is specified, it is saved to <dest>, otherwise <file>.ch8.  With -o, --map(-m) <map> also saves a source map.  Paths between frame syncs that may run more than --ipf <n> instructions are reported");
+		System.out.println("disassemble <file> disassembles Chip8 bytecode from <file>. If the -o flag is specified, it is saved to <dest>, otherwise <file>.asm.  Code is found by following control flow and written with labels so it reassembles; --linear decodes straight through instead.  With -o, --graph(-g) <dot> also saves the basic blocks and call graph for Graphviz");
+		System.out.println("  Given a directory or a glob (e.g. 'roms/**.ch8'), assemble and disassemble process every matching file in parallel on --threads <n> threads, writing results into the -o directory if given, and exit with status 1 if any failed");
+		System.out.println("budget(b) <file> [--ipf <n>] finds the frame syncs (DT and key waits) in a ROM and prints the worst, best and typical number of instructions run between them, flagging any over <n> per frame");
+		System.out.println("optimize <file> [-o <dest>] writes a smaller, faster copy of a ROM to <dest>, otherwise <file>.opt.ch8: jumps to jumps are threaded and redundant loads, jumps to the next instruction and unreachable bytes are removed.  Code that may be read or overwritten as data or reached by JP V0 is left alone.  It reports the bytes saved and the instructions saved in a profiled run");
+		System.out.println("dev <file> assembles and runs <file>, reassembling it and hot loading the result into the running machine every time it or a file it INCLUDEs is saved.  --mute and --wav <wav> work as for run");
+		System.out.println("pack <dir|glob> -o <archive> [--meta <file>] packs ROMs into one archive indexed by SHA-1.  <file> has a tab-separated line of name, title, instructions per frame and quirks per ROM");
+		System.out.println("list <archive> lists the ROMs in an archive.  Any command that loads a ROM accepts <archive>:<name or sha1>, and verify accepts a whole archive");
+		System.out.println("serve <dir|archive> [--port(-p) <port>] [--ipf <n>] hosts ROMs from <dir|archive> and streams their displays to viewers; each ROM runs once, shared by everyone viewing it");
+		System.out.println("view <host[:port]> --rom <name> shows a ROM running on a server and sends it your keys");
+		System.out.println("netplay(n) <file> [--port(-p) <port>] [--delay <frames>] [--ipf <n>] [--seed <n>] hosts a two-player game and waits for the other player");
+		System.out.println("netplay(n) <file> --join(-j) <host[:port]> joins a two-player game hosted with the same ROM.  Only keys are sent; late keys are predicted and corrected by rolling back");
+		System.out.println("peek <file> [--addr <range>] [--follow] prints a consistent snapshot of a machine publishing to <file> with run --shm, and the memory in <range> if given.  --follow keeps printing as it changes");
+		System.out.println("hexdump <file> [--offset <n>] [--length <n>] prints the contents of any file (or part of it) in hexadecimal and ASCII");
+		System.out.println("coverage <file> --coverage(-c) <cov> prints per-line and per-label coverage of the assembly source <file> from a run's <cov>");
+		System.out.println("fuzz <file> [--time <s>] [--frames <n>] [--threads <n>] [-o <dir>] fuzzes the ROM <file> with random key input, saving minimized crashing input logs to <dir>");
+		System.out.println("replay <file> --input(-i) <log> runs the ROM <file> headless with the key input from <log>, recording its sound to <wav> if --wav <wav> is given");
+		System.out.println("search <file> --score <addr>[:<bytes>] [--goal max|min] [--steps <n>] [--beam <n>] [--hold <frames>] [--seed <n>] [-o <log>] searches key input that maximizes (or minimizes) a value in memory, saving the best input log");
+		System.out.println("verify <file|dir> [--engines a,b] [--input(-i) <log>] [--frames <n>] [--threads <n>] runs each ROM on two execution engines in lockstep and reports where they first diverge");
+		System.out.println("  run, dev, replay, fuzz, search, verify, budget, optimize and netplay take --quirks(-q) <spec> to choose how ambiguous instructions behave: a profile (default, chip8, schip, xochip, none), optionally followed by quirks to add or -remove (shift, memory, jump, clip, vfreset), e.g. 'schip,-clip'.  Without it, ROMs from an archive use the quirks in its metadata");
+		System.out.println("  run and replay take --record <dest> to record the display at 60Hz into an animated GIF if <dest> ends in .gif, otherwise PNGs in the directory <dest>.  Runs of identical frames are stored once");
+		System.out.println("  run and replay take --plugins <dir> to load the Plugin implementations that jars in <dir> list in META-INF/services/net.calzoneman.JChip8.Plugin.  Each frame, plugins get the memory writes, key changes, draws and faults they subscribed to");
+		System.out.println("  run, dev, view and netplay take --filter <spec> to smooth the display with scale2x (epx), scale3x or scale4x, and/or add CRT scanlines, e.g. 'scale3x,scanlines'.  The window can then be resized or maximized");
+		System.out.println("trace <trace> [--pc <lo-hi>] [--op <pattern>] [--addr <lo-hi>] prints the records of a trace file, filtered by PC range, opcode (e.g. DXYN) or memory address");
 	}
 }
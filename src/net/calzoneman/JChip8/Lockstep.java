@@ -0,0 +1,191 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Differential testing of two execution engines.  Both run the same ROM and
+ * input log in lockstep; their state hashes are compared at every frame
+ * boundary.  On a mismatch both are rewound to the last matching frame and
+ * re-run one instruction at a time with full state comparison, to report the
+ * first instruction after which they disagree.
+ */
+public class Lockstep {
+
+	private final byte[] rom;
+	private final Quirks quirks;
+	private final int engineA, engineB;
+
+	public Lockstep(byte[] rom, Quirks quirks, int engineA, int engineB) {
+		this.rom = rom;
+		this.quirks = quirks;
+		this.engineA = engineA;
+		this.engineB = engineB;
+	}
+
+	private VCPU machine(int engine, long seed) {
+		VCPU vcpu = new VCPU(rom, quirks);
+		vcpu.setQuiet(true);
+		vcpu.setEngine(engine);
+		vcpu.reset();
+		vcpu.getInput().clear();
+		vcpu.setSeed(seed);
+		return vcpu;
+	}
+
+	/**
+	 * Plays log on both engines.  Returns null if they agree throughout, otherwise a description of
+	 * the first divergence.
+	 */
+	public String compare(InputLog log) {
+		VCPU a = machine(engineA, log.getSeed());
+		VCPU b = machine(engineB, log.getSeed());
+		byte[] checkpoint = new byte[VCPU.STATE_SIZE];
+		int ipf = log.getInstructionsPerFrame();
+
+		for(int f = 0; f < log.length(); f++) {
+			a.getInput().setC8KeyMask(log.getKeys(f));
+			b.getInput().setC8KeyMask(log.getKeys(f));
+			// After the keys, so pinpoint() re-runs the frame with the same input
+			a.saveState(checkpoint);
+			boolean runningA = a.runFrame(ipf);
+			boolean runningB = b.runFrame(ipf);
+			if(runningA == runningB && a.stateHash() == b.stateHash()) {
+				if(!runningA) return null; // Both stopped the same way
+				continue;
+			}
+			a.loadState(checkpoint);
+			b.loadState(checkpoint);
+			return "frame " + f + ": " + pinpoint(a, b, ipf);
+		}
+		return null;
+	}
+
+	// Re-runs one frame instruction by instruction from identical states, comparing after each
+	private String pinpoint(VCPU a, VCPU b, int ipf) {
+		byte[] sa = new byte[VCPU.STATE_SIZE];
+		byte[] sb = new byte[VCPU.STATE_SIZE];
+		for(int i = 0; i < ipf; i++) {
+			a.saveState(sa);
+			int pc = VCPU.bytesToShort(sa[VCPU.STATE_PC], sa[VCPU.STATE_PC + 1]) & 0xFFF;
+			int opcode = VCPU.bytesToShort(sa[pc], sa[pc + 1]) & 0xFFFF;
+			a.step();
+			b.step();
+			a.saveState(sa);
+			b.saveState(sb);
+			String diff = difference(sa, sb);
+			if(diff == null && a.isRunning() != b.isRunning()) {
+				diff = engineName(a) + (a.isRunning() ? " kept running" : " stopped: " + a.getFault()) + ", "
+						+ engineName(b) + (b.isRunning() ? " kept running" : " stopped: " + b.getFault());
+			}
+			if(diff != null) {
+				return "after instruction " + i + " at $" + Disassembler.hex(pc) + " (" + String.format("%04X", opcode) + "): " + diff;
+			}
+			if(!a.isRunning()) break;
+		}
+		a.tickTimers();
+		b.tickTimers();
+		a.saveState(sa);
+		b.saveState(sb);
+		String diff = difference(sa, sb);
+		return "at end of frame: " + (diff != null ? diff : "hashes differ but states match");
+	}
+
+	private static String engineName(VCPU vcpu) {
+		return VCPU.ENGINE_NAMES[vcpu.getEngine()];
+	}
+
+	// Names the first field that differs between two saved states, or null if they match
+	private String difference(byte[] sa, byte[] sb) {
+		for(int i = 0; i < VCPU.STATE_SIZE; i++) {
+			if(sa[i] == sb[i]) continue;
+			String where;
+			if(i < VCPU.STATE_VIDEO) where = "memory $" + Disassembler.hex(i - VCPU.STATE_MEMORY);
+			else if(i < VCPU.STATE_V) where = "display row " + (i - VCPU.STATE_VIDEO) / 16 + " pixels " + ((i - VCPU.STATE_VIDEO) % 16) * 8 + "-" + (((i - VCPU.STATE_VIDEO) % 16) * 8 + 7);
+			else if(i < VCPU.STATE_STACK) where = Disassembler.regName((byte) (i - VCPU.STATE_V));
+			else if(i < VCPU.STATE_I) where = "stack[" + (i - VCPU.STATE_STACK) / 2 + "]";
+			else if(i < VCPU.STATE_PC) where = "I";
+			else if(i < VCPU.STATE_SP) where = "PC";
+			else if(i < VCPU.STATE_DT) where = "SP";
+			else if(i < VCPU.STATE_ST) where = "DT";
+			else if(i < VCPU.STATE_RANDOM) where = "ST";
+			else if(i < VCPU.STATE_CYCLES) where = "RNG";
+			else if(i < VCPU.STATE_INPUT) where = "cycle count";
+			else if(i < VCPU.STATE_HIRES) where = "input state";
+			else if(i < VCPU.STATE_FLAGS) where = "display mode";
+			else where = "flag " + (i - VCPU.STATE_FLAGS);
+			return where + " is " + Disassembler.hex(sa[i]) + " under " + VCPU.ENGINE_NAMES[engineA]
+					+ " but " + Disassembler.hex(sb[i]) + " under " + VCPU.ENGINE_NAMES[engineB];
+		}
+		return null;
+	}
+
+	/**
+	 * A key log for ROMs without a recorded one: random single key presses held for a few frames,
+	 * seeded from the ROM name so failures reproduce.
+	 */
+	public static InputLog defaultLog(String name, int frames) {
+		Random random = new Random(name.hashCode());
+		InputLog log = new InputLog(name.hashCode(), InputLog.DEFAULT_IPF, frames);
+		int keys = 0;
+		for(int f = 0; f < frames; f++) {
+			if(f % 8 == 0) keys = random.nextInt(3) == 0 ? 0 : 1 << random.nextInt(16);
+			log.setKeys(f, keys);
+		}
+		return log;
+	}
+
+	/**
+	 * Compares every ROM in parallel, printing one line per ROM.  Returns the number that diverged.
+	 * Null quirks means each ROM's own, from the input log or its archive metadata.
+	 */
+	public static int verifyAll(ArrayList<String> romnames, final InputLog log, final Quirks quirks, final int frames, final int engineA,
+			final int engineB, int threads) {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+		for(final String name : romnames) {
+			results.add(pool.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					byte[] rom = RomLoader.load(name);
+					if(rom == null) return "unable to load";
+					InputLog input = log != null ? log : defaultLog(name, frames);
+					Quirks q = quirks != null ? quirks : input.getQuirks() != null ? input.getQuirks() : RomLoader.quirks(name);
+					if(q == null) return "invalid quirks in archive metadata";
+					return new Lockstep(rom, q, engineA, engineB).compare(input);
+				}
+			}));
+		}
+		int failures = 0;
+		for(int i = 0; i < romnames.size(); i++) {
+			String result;
+			try {
+				result = results.get(i).get();
+			}
+			catch(Exception ex) {
+				result = "exception " + ex.getCause();
+			}
+			if(result != null) failures++;
+			System.out.println((result == null ? "OK    " : "FAIL  ") + romnames.get(i) + (result == null ? "" : "  " + result));
+		}
+		pool.shutdown();
+		return failures;
+	}
+}
@@ -0,0 +1,332 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.awt.Graphics;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Two-player netplay with rollback.  Both peers run the same ROM from the same
+ * seed; only key masks are exchanged.  The keypad a machine sees in a frame is
+ * the OR of both players' keys.
+ *
+ * Local keys are scheduled delay frames ahead.  When the remote keys for a
+ * frame haven't arrived, they are predicted to be the last ones received; the
+ * machine's state before every unconfirmed frame is kept (one saveState()
+ * array, ~6 KB, per frame), and when the real keys differ from the prediction
+ * the machine is rewound to that frame and the frames since are run again.
+ * A peer never predicts more than MAX_ROLLBACK frames ahead; it waits instead.
+ *
+ * Every HASH_INTERVAL frames each peer sends the state hash of a confirmed
+ * frame so desyncs are reported instead of silently played through.
+ */
+public class Netplay {
+
+	public static final int DEFAULT_PORT = 6465;
+	public static final int MAX_ROLLBACK = 8;
+	public static final int MAX_DELAY = 8;
+	public static final int DEFAULT_DELAY = 2;
+
+	private static final int MAGIC = 0x43384E50; // "C8NP"
+	private static final int RING = 64; // > 2 * MAX_ROLLBACK + MAX_DELAY, so nothing in use is overwritten
+	private static final int HASH_INTERVAL = 60;
+	private static final long FRAME_NANOS = 1000000000L / 60;
+
+	private static final byte INPUT = 1;
+	private static final byte HASH = 2;
+	private static final byte BYE = 3;
+
+	private final VCPU vcpu;
+	private final InputHandler keyboard;
+	private final Socket socket;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private final ConcurrentLinkedQueue<long[]> received = new ConcurrentLinkedQueue<long[]>();
+	private volatile boolean remoteGone = false;
+
+	private int ipf;
+	private long seed;
+	private int delay;
+
+	private final byte[][] states = new byte[RING][VCPU.STATE_SIZE]; // State before frame f at f % RING
+	private final byte[] scratch = new byte[VCPU.STATE_SIZE];
+	private final int[] local = new int[RING];
+	private final int[] remote = new int[RING];
+	private final int[] used = new int[RING]; // Remote keys frame f was last run with
+	private int frame = 0; // Next frame to run
+	private int remoteKnown = 0; // Remote keys are known for all frames before this
+	private int hashed = 0; // Hashes have been sent for confirmed frames before this
+	private final HashMap<Integer, Long> localHashes = new HashMap<Integer, Long>();
+	private final HashMap<Integer, Long> remoteHashes = new HashMap<Integer, Long>();
+
+	// Statistics
+	private int rollbacks = 0;
+	private long framesRerun = 0;
+	private long worstRollbackNanos = 0;
+	private int stalls = 0;
+
+	private Netplay(VCPU vcpu, InputHandler keyboard, Socket socket) throws IOException {
+		this.vcpu = vcpu;
+		this.keyboard = keyboard;
+		this.socket = socket;
+		socket.setTcpNoDelay(true);
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+	}
+
+	/**
+	 * Waits for a peer on port.  The host picks the seed, instructions per frame, input delay and quirks (vcpu's).
+	 */
+	public static Netplay host(VCPU vcpu, InputHandler keyboard, byte[] rom, int port, long seed, int ipf, int delay) throws IOException {
+		Socket socket;
+		try (ServerSocket server = new ServerSocket(port)) {
+			socket = server.accept();
+		}
+		Netplay netplay = new Netplay(vcpu, keyboard, socket);
+		netplay.seed = seed;
+		netplay.ipf = ipf;
+		netplay.delay = Math.max(0, Math.min(delay, MAX_DELAY));
+		netplay.out.writeInt(MAGIC);
+		netplay.out.write(RomArchive.sha1(rom));
+		netplay.out.writeLong(seed);
+		netplay.out.writeInt(ipf);
+		netplay.out.writeInt(netplay.delay);
+		netplay.out.writeUTF(vcpu.getQuirks().toString());
+		netplay.out.flush();
+		netplay.handshake(rom);
+		return netplay;
+	}
+
+	/**
+	 * Connects to a hosting peer and takes its settings
+	 */
+	public static Netplay join(VCPU vcpu, InputHandler keyboard, byte[] rom, String host, int port) throws IOException {
+		Socket socket = new Socket();
+		socket.connect(new InetSocketAddress(host, port));
+		Netplay netplay = new Netplay(vcpu, keyboard, socket);
+		netplay.handshake(rom);
+		netplay.seed = netplay.in.readLong();
+		netplay.ipf = netplay.in.readInt();
+		netplay.delay = netplay.in.readInt();
+		Quirks quirks = Quirks.parse(netplay.in.readUTF());
+		if(netplay.ipf < 1 || netplay.delay < 0 || netplay.delay > MAX_DELAY || quirks == null) throw new IOException("bad settings from host");
+		vcpu.setQuirks(quirks);
+		netplay.out.writeInt(MAGIC);
+		netplay.out.write(RomArchive.sha1(rom));
+		netplay.out.flush();
+		return netplay;
+	}
+
+	// Reads the peer's magic and ROM hash (the host reads the joiner's reply after sending its own)
+	private void handshake(byte[] rom) throws IOException {
+		if(in.readInt() != MAGIC) throw new IOException("peer isn't a JChip8 netplay session");
+		byte[] hash = new byte[RomArchive.HASH_SIZE];
+		in.readFully(hash);
+		if(!Arrays.equals(hash, RomArchive.sha1(rom))) throw new IOException("peer is running a different ROM (" + RomArchive.hex(hash) + ")");
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Plays until either side stops (window closed, ROM fault or disconnect).  Returns a reason.
+	 */
+	public String play() throws IOException {
+		vcpu.setSeed(seed);
+		vcpu.reset();
+		vcpu.getInput().clear();
+		// Keys for the first delay frames were never sampled; both sides treat them as released
+		remoteKnown = delay;
+
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		}, "Netplay reader");
+		reader.setDaemon(true);
+		reader.start();
+
+		String reason = null;
+		long next = System.nanoTime();
+		try {
+			while(true) {
+				if(!vcpu.isRunning()) {
+					reason = vcpu.getFault() != null ? vcpu.getFault() : "Window closed";
+					break;
+				}
+				reason = poll();
+				if(reason != null) break;
+				if(frame - remoteKnown >= MAX_ROLLBACK) {
+					// Too far ahead of the peer to keep predicting; wait for its keys
+					stalls++;
+					sleep(1000000);
+					next = System.nanoTime();
+					continue;
+				}
+				int keys = keyboard.getState() & 0xFFFF;
+				local[(frame + delay) % RING] = keys;
+				send(INPUT, frame + delay, keys);
+				run(frame);
+				frame++;
+				sendHashes();
+				out.flush();
+				redraw();
+
+				next += FRAME_NANOS;
+				long wait = next - System.nanoTime();
+				if(wait > 0) sleep(wait);
+				else if(-wait > FRAME_NANOS * 6) next = System.nanoTime(); // Fell far behind; don't race to catch up
+			}
+			out.writeByte(BYE);
+			out.flush();
+		}
+		finally {
+			socket.close();
+		}
+		return reason;
+	}
+
+	// Handles everything the peer has sent, rolling back if a prediction was wrong
+	private String poll() {
+		int rollbackFrom = frame;
+		long[] m;
+		while((m = received.poll()) != null) {
+			int f = (int) m[1];
+			if(m[0] == INPUT) {
+				if(f != remoteKnown) return "Peer sent keys for frame " + f + " but frame " + remoteKnown + " was expected";
+				remote[f % RING] = (int) m[2];
+				remoteKnown = f + 1;
+				if(f < frame && used[f % RING] != (int) m[2]) rollbackFrom = Math.min(rollbackFrom, f);
+			}
+			else if(m[0] == HASH) {
+				remoteHashes.put(f, m[2]);
+			}
+			else {
+				return "Peer left";
+			}
+		}
+		if(rollbackFrom < frame) {
+			long start = System.nanoTime();
+			vcpu.loadState(states[rollbackFrom % RING]);
+			for(int f = rollbackFrom; f < frame; f++) {
+				run(f);
+			}
+			long took = System.nanoTime() - start;
+			rollbacks++;
+			framesRerun += frame - rollbackFrom;
+			worstRollbackNanos = Math.max(worstRollbackNanos, took);
+		}
+		for(Integer f : remoteHashes.keySet().toArray(new Integer[0])) {
+			Long mine = localHashes.get(f);
+			if(mine == null) continue;
+			if(!mine.equals(remoteHashes.get(f))) return "Desynced by frame " + f;
+			localHashes.remove(f);
+			remoteHashes.remove(f);
+		}
+		if(remoteGone && received.isEmpty()) return "Peer disconnected";
+		return null;
+	}
+
+	// Runs frame f from the current state with the best keys known for it
+	private void run(int f) {
+		vcpu.saveState(states[f % RING]);
+		int other = f < remoteKnown ? remote[f % RING] : remote[(remoteKnown - 1 + RING) % RING];
+		if(remoteKnown == 0) other = 0;
+		used[f % RING] = other;
+		vcpu.getInput().setC8KeyMask(local[f % RING] | other);
+		vcpu.runFrame(ipf);
+	}
+
+	// Sends the hash of each confirmed frame on a HASH_INTERVAL boundary.  The state after frame f is
+	// final once the remote keys of every frame up to f are known and f has been run with them.
+	private void sendHashes() throws IOException {
+		int confirmed = Math.min(remoteKnown, frame);
+		for(; hashed < confirmed; hashed++) {
+			if((hashed + 1) % HASH_INTERVAL != 0) continue;
+			byte[] state = states[(hashed + 1) % RING];
+			if(hashed + 1 == frame) {
+				vcpu.saveState(scratch);
+				state = scratch;
+			}
+			long hash = 0xCBF29CE484222325L;
+			for(byte b : state) {
+				hash = (hash ^ b) * 0x100000001B3L;
+			}
+			localHashes.put(hashed, hash);
+			out.writeByte(HASH);
+			out.writeInt(hashed);
+			out.writeLong(hash);
+		}
+	}
+
+	private void send(byte type, int f, int keys) throws IOException {
+		out.writeByte(type);
+		out.writeInt(f);
+		out.writeShort(keys);
+	}
+
+	// Runs on the reader thread, queueing messages for poll()
+	private void receive() {
+		try {
+			while(true) {
+				byte type = in.readByte();
+				if(type == INPUT) received.add(new long[] { INPUT, in.readInt(), in.readShort() & 0xFFFF });
+				else if(type == HASH) received.add(new long[] { HASH, in.readInt(), in.readLong() });
+				else {
+					received.add(new long[] { BYE, 0, 0 });
+					break;
+				}
+			}
+		}
+		catch(EOFException ex) {
+			// Peer closed without saying goodbye
+		}
+		catch(IOException ex) {
+			// Socket closed
+		}
+		remoteGone = true;
+	}
+
+	private void redraw() {
+		Graphics g = vcpu.getGraphics();
+		if(g != null) vcpu.paint(g);
+	}
+
+	private static void sleep(long nanos) {
+		try {
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public String getStatistics() {
+		return frame + " frames, " + rollbacks + " rollbacks re-running " + framesRerun + " frames (worst "
+				+ String.format("%.2f", worstRollbackNanos / 1e6) + " ms), " + stalls + " stalls waiting for the peer";
+	}
+}
@@ -0,0 +1,480 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Conservative optimization of a ROM binary, lifted with ControlFlow.
+ *
+ * A forward dataflow pass over every reachable instruction tracks which
+ * registers hold known constants and which addresses I can point to.  Calls
+ * are handled context-insensitively: a return site sees what any RET might
+ * return with.  From that:
+ *   - JP/CALL to a JP is threaded to the final target, and JP to a RET or
+ *     EXIT becomes that instruction
+ *   - LD Vx, kk of a value Vx already holds, LD I of the address I already
+ *     holds, and JP to the next instruction are removed
+ *   - bytes that are neither reached as code once jumps are threaded nor
+ *     read as data are removed, then jumps over only removed bytes
+ * and every jump, call and LD I target is relocated.
+ *
+ * Instructions whose bytes may be written or read as data, and everything a
+ * JP V0 can reach, are never changed.  Nothing is removed if the ROM writes
+ * its own code, uses JP V0 or has overlapping instructions, or at or above
+ * the lowest address it indexes from with ADD I, since its layout might
+ * matter there.  Data is assumed to be addressed from LD I targets.
+ */
+public class Optimizer {
+
+	public static final int PROFILE_FRAMES = 600;
+
+	private static final int UNKNOWN = -1;
+	private static final int LOW = 16, HIGH = 17; // State slots bounding I: LOW <= I < HIGH
+
+	private final byte[] rom;
+	private final Quirks quirks;
+	private final ControlFlow flow;
+	private final int end; // First address after the ROM
+
+	private final int[][] states = new int[4096][]; // Before each instruction: V0-VF (or UNKNOWN), then the bounds of I
+	private int[] returned = null; // Meet of the states at every RET
+	private final ArrayList<Integer> returnSites = new ArrayList<Integer>();
+
+	private final boolean[] read = new boolean[4096];
+	private final boolean[] written = new boolean[4096];
+	private final boolean[] frozen = new boolean[4096];
+	private int indexedFrom = 4096; // Lowest ROM address an I that isn't exactly known can access from
+	private boolean relocatable = true;
+	private String refusal = null;
+
+	private final int[] replaced = new int[4096]; // New opcode per instruction address, or -1
+	private final boolean[] removed = new boolean[4096];
+	private int threaded = 0, loads = 0, jumps = 0, deadBytes = 0, frozenCount = 0;
+	private long cyclesSaved = 0;
+	private long[] counts = null; // Executions of each address in the profiling run
+	private int[] removedBefore = null;
+
+	public Optimizer(byte[] rom, Quirks quirks) {
+		this.rom = rom;
+		this.quirks = quirks;
+		this.end = 0x200 + rom.length;
+		flow = new ControlFlow(rom);
+		Arrays.fill(replaced, -1);
+	}
+
+	private int opcode(int addr) {
+		return ((rom[addr - 0x200] & 0xFF) << 8) | (rom[addr - 0x200 + 1] & 0xFF);
+	}
+
+	private boolean isCode(int addr) {
+		return addr >= 0x200 && addr + 1 < end && flow.getKind(addr) == ControlFlow.CODE;
+	}
+
+	private static boolean isSkip(int op) {
+		int high = op >> 12;
+		return high == 0x3 || high == 0x4 || high == 0x5 || high == 0x9 || high == 0xE;
+	}
+
+	/**
+	 * Optimizes the ROM, returning the new image.  See getReport() for what was done.
+	 */
+	public byte[] optimize() {
+		ArrayList<Integer> code = flow.instructions();
+		for(int addr : code) {
+			int high = opcode(addr) >> 12;
+			if(high == 0xB) {
+				relocatable = false;
+				refusal = "it uses JP V0";
+				int base = opcode(addr) & 0xFFF;
+				for(int a = base; a < base + 257 && a < 4096; a++) {
+					frozen[a] = true;
+				}
+			}
+			if(isCode(addr + 1)) {
+				relocatable = false;
+				if(refusal == null) refusal = "it has overlapping instructions";
+				frozen[addr] = frozen[addr + 1] = frozen[addr + 2] = true;
+			}
+		}
+		analyze();
+		accesses(code);
+		for(int addr : code) {
+			int high = opcode(addr) >> 12;
+			int target = opcode(addr) & 0xFFF;
+			if((frozen[addr] || frozen[addr + 1]) && (high == 0x1 || high == 0x2 || high == 0xA) && target >= 0x200 && target < end) {
+				relocatable = false;
+				if(refusal == null) refusal = "code read or written as data refers to the ROM";
+			}
+		}
+		for(int addr : code) {
+			if(frozen[addr] || frozen[addr + 1]) frozenCount++;
+		}
+
+		for(int addr : code) {
+			if(!frozen[addr] && !frozen[addr + 1]) thread(addr);
+		}
+		if(relocatable) {
+			for(int addr : code) {
+				if(!frozen[addr] && !frozen[addr + 1] && addr < indexedFrom && redundant(addr)) {
+					removed[addr] = removed[addr + 1] = true;
+				}
+			}
+			boolean[] reached = reached();
+			for(int addr = 0x200; addr < end && addr < indexedFrom; addr++) {
+				if(!reached[addr] && !read[addr] && !frozen[addr] && !removed[addr]) {
+					removed[addr] = true;
+					deadBytes++;
+				}
+			}
+			// Jumps over nothing but removed bytes now go to the next instruction
+			for(int addr : code) {
+				int op = replaced[addr] >= 0 ? replaced[addr] : opcode(addr);
+				int target = op & 0xFFF;
+				if(op >> 12 != 0x1 || removed[addr] || frozen[addr] || frozen[addr + 1] || addr >= indexedFrom || target <= addr + 2) continue;
+				if(isCode(addr - 2) && isSkip(opcode(addr - 2))) continue;
+				boolean over = true;
+				for(int a = addr + 2; a < target; a++) {
+					over &= removed[a];
+				}
+				if(over) {
+					removed[addr] = removed[addr + 1] = true;
+					jumps++;
+					cyclesSavedAt(addr, 1);
+				}
+			}
+		}
+		return emit();
+	}
+
+	// Forward dataflow to a fixed point, from the entry point with nothing known
+	private void analyze() {
+		int[] entry = new int[18];
+		Arrays.fill(entry, UNKNOWN);
+		entry[LOW] = 0;
+		entry[HIGH] = 4096;
+		for(int addr : flow.instructions()) {
+			if(opcode(addr) >> 12 == 0x2) returnSites.add(addr + 2);
+		}
+		ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+		meetInto(0x200, entry, work);
+		while(!work.isEmpty()) {
+			int addr = work.poll();
+			int op = opcode(addr);
+			int[] out = transfer(op, states[addr]);
+			int high = op >> 12;
+			if(op == 0x00EE) {
+				if(returned == null) returned = out.clone();
+				else if(!meet(returned, out)) continue;
+				for(int site : returnSites) {
+					meetInto(site, returned, work);
+				}
+			}
+			else if(op == 0x00FD || high == 0xB) {
+				// EXIT stops; JP V0 targets can't be followed, so nothing is removed anyway
+			}
+			else if(high == 0x1) {
+				meetInto(op & 0xFFF, out, work);
+			}
+			else if(high == 0x2) {
+				meetInto(op & 0xFFF, out, work);
+				if(returned != null) meetInto(addr + 2, returned, work);
+			}
+			else if(isSkip(op)) {
+				meetInto(addr + 2, out, work);
+				meetInto(addr + 4, out, work);
+			}
+			else {
+				meetInto(addr + 2, out, work);
+			}
+		}
+	}
+
+	private void meetInto(int addr, int[] state, ArrayDeque<Integer> work) {
+		if(!isCode(addr)) return;
+		if(states[addr] == null) states[addr] = state.clone();
+		else if(!meet(states[addr], state)) return;
+		work.add(addr);
+	}
+
+	// Merges from into into, returning true if into changed
+	private static boolean meet(int[] into, int[] from) {
+		boolean changed = false;
+		for(int i = 0; i < 16; i++) {
+			if(into[i] != from[i] && into[i] != UNKNOWN) {
+				into[i] = UNKNOWN;
+				changed = true;
+			}
+		}
+		if(from[LOW] < into[LOW]) {
+			into[LOW] = from[LOW];
+			changed = true;
+		}
+		if(from[HIGH] > into[HIGH]) {
+			into[HIGH] = from[HIGH];
+			changed = true;
+		}
+		return changed;
+	}
+
+	// The state after executing op from state in
+	private int[] transfer(int op, int[] in) {
+		int[] out = in.clone();
+		int x = (op >> 8) & 0xF, y = (op >> 4) & 0xF, kk = op & 0xFF;
+		switch(op >> 12) {
+			case 0x6:
+				out[x] = kk;
+				break;
+			case 0x7:
+				if(out[x] != UNKNOWN) out[x] = (out[x] + kk) & 0xFF;
+				break;
+			case 0x8:
+				if((op & 0xF) == 0) {
+					out[x] = in[y];
+				}
+				else {
+					out[x] = UNKNOWN;
+					out[0xF] = UNKNOWN;
+				}
+				break;
+			case 0xA:
+				out[LOW] = op & 0xFFF;
+				out[HIGH] = out[LOW] + 1;
+				break;
+			case 0xC:
+				out[x] = UNKNOWN;
+				break;
+			case 0xD:
+				out[0xF] = UNKNOWN;
+				break;
+			case 0xF:
+				switch(kk) {
+					case 0x07:
+					case 0x0A:
+						out[x] = UNKNOWN;
+						break;
+					case 0x1E:
+						// Keep LOW at the base so the bytes between it and the data aren't taken for unused
+						out[HIGH] = in[x] == UNKNOWN ? 4096 : Math.min(in[HIGH] + in[x], 4096);
+						break;
+					case 0x29:
+					case 0x30:
+						out[LOW] = 0;
+						out[HIGH] = VCPU.BIG_FONT + 16 * 10;
+						break;
+					case 0x55:
+					case 0x65:
+					case 0x85:
+						if(kk != 0x55) {
+							for(int i = 0; i <= x && i < 16; i++) {
+								out[i] = UNKNOWN;
+							}
+						}
+						if(kk != 0x85 && quirks.has(Quirks.MEMORY_I)) out[HIGH] = Math.min(in[HIGH] + x + 1, 4096);
+						break;
+				}
+				break;
+		}
+		return out;
+	}
+
+	// Marks the memory every reached instruction can read or write through I
+	private void accesses(ArrayList<Integer> code) {
+		for(int addr : code) {
+			int[] in = states[addr];
+			if(in == null) in = new int[] { 0, 4096 }; // Only reached through JP V0, so I could be anything
+			int op = opcode(addr);
+			int x = (op >> 8) & 0xF;
+			int length = 0;
+			boolean write = false;
+			if(op >> 12 == 0xD) length = (op & 0xF) == 0 ? 32 : op & 0xF;
+			else if((op & 0xF0FF) == 0xF033) { length = 3; write = true; }
+			else if((op & 0xF0FF) == 0xF055) { length = x + 1; write = true; }
+			else if((op & 0xF0FF) == 0xF065) length = x + 1;
+			if(length == 0) continue;
+			int low = in[in.length - 2], high = Math.min(in[in.length - 1] - 1 + length, 4096);
+			if(in[in.length - 1] != low + 1 && high > 0x200) indexedFrom = Math.min(indexedFrom, Math.max(low, 0x200));
+			for(int a = low; a < high; a++) {
+				if(write) written[a] = true;
+				else read[a] = true;
+			}
+		}
+		for(int addr : code) {
+			if(written[addr] || written[addr + 1]) {
+				relocatable = false;
+				refusal = "it may write its own code";
+			}
+		}
+		for(int a = 0; a < 4096; a++) {
+			if(read[a] || written[a]) frozen[a] = true;
+		}
+	}
+
+	// Threads a JP or CALL whose target is a JP, or a JP to RET or EXIT
+	private void thread(int addr) {
+		int op = opcode(addr);
+		int high = op >> 12;
+		if(high != 0x1 && high != 0x2) return;
+		int target = op & 0xFFF;
+		int hops = 0;
+		while(isCode(target) && !frozen[target] && !frozen[target + 1] && opcode(target) >> 12 == 0x1 && hops < 16) {
+			int next = opcode(target) & 0xFFF;
+			if(next == target) break;
+			target = next;
+			hops++;
+		}
+		if(hops > 0) {
+			replaced[addr] = (op & 0xF000) | target;
+			threaded++;
+		}
+		if(high == 0x1 && isCode(target) && !frozen[target] && (opcode(target) == 0x00EE || opcode(target) == 0x00FD)) {
+			replaced[addr] = opcode(target);
+			if(hops == 0) threaded++;
+			hops++;
+		}
+		cyclesSavedAt(addr, hops);
+	}
+
+	// Instruction bytes still reachable once jumps are threaded
+	private boolean[] reached() {
+		boolean[] reached = new boolean[4096];
+		ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+		work.add(0x200);
+		while(!work.isEmpty()) {
+			int addr = work.poll();
+			if(!isCode(addr) || reached[addr]) continue;
+			reached[addr] = reached[addr + 1] = true;
+			int op = replaced[addr] >= 0 ? replaced[addr] : opcode(addr);
+			int high = op >> 12;
+			if(high == 0x1 || high == 0x2) work.add(op & 0xFFF);
+			if(isSkip(op)) work.add(addr + 4);
+			if(high != 0x1 && high != 0xB && op != 0x00EE && op != 0x00FD) work.add(addr + 2);
+		}
+		return reached;
+	}
+
+	// True for an instruction that does nothing in every state that reaches it
+	private boolean redundant(int addr) {
+		int[] in = states[addr];
+		if(in == null || replaced[addr] >= 0) return false;
+		if(addr >= 0x202 && isCode(addr - 2) && isSkip(opcode(addr - 2))) return false; // A skip depends on its size
+		int op = opcode(addr);
+		int high = op >> 12;
+		boolean redundant = false;
+		if(high == 0x6 && in[(op >> 8) & 0xF] == (op & 0xFF)) {
+			loads++;
+			redundant = true;
+		}
+		else if(high == 0xA && in[LOW] == (op & 0xFFF) && in[HIGH] == in[LOW] + 1) {
+			loads++;
+			redundant = true;
+		}
+		else if(high == 0x1 && (op & 0xFFF) == addr + 2) {
+			jumps++;
+			redundant = true;
+		}
+		if(redundant) cyclesSavedAt(addr, 1);
+		return redundant;
+	}
+
+	// Counts how often each instruction runs in a headless run of the original ROM without input
+	private long[] counts() {
+		if(counts != null) return counts;
+		counts = new long[4096];
+		VCPU vcpu = new VCPU(rom, quirks);
+		vcpu.setQuiet(true);
+		vcpu.getInput().clear();
+		vcpu.setSeed(0);
+		for(int f = 0; f < PROFILE_FRAMES && vcpu.isRunning(); f++) {
+			for(int i = 0; i < InputLog.DEFAULT_IPF && vcpu.isRunning(); i++) {
+				counts[vcpu.getPC() & 0xFFF]++;
+				vcpu.step();
+			}
+			vcpu.tickTimers();
+		}
+		return counts;
+	}
+
+	private void cyclesSavedAt(int addr, int instructions) {
+		if(instructions > 0) cyclesSaved += counts()[addr] * instructions;
+	}
+
+	// Writes the kept bytes with every code and LD I target relocated
+	private byte[] emit() {
+		int[] moved = new int[rom.length + 1]; // New address of each old address, or of the next kept byte
+		int next = 0x200 + rom.length;
+		for(int i = rom.length; i >= 0; i--) {
+			if(i == rom.length || !removed[0x200 + i]) next = 0x200 + i - countRemoved(i);
+			moved[i] = next;
+		}
+		byte[] out = new byte[rom.length];
+		int length = 0;
+		for(int addr = 0x200; addr < end; addr++) {
+			if(removed[addr]) continue;
+			if(isCode(addr) && !frozen[addr] && !frozen[addr + 1]) {
+				int op = replaced[addr] >= 0 ? replaced[addr] : opcode(addr);
+				int high = op >> 12;
+				int target = op & 0xFFF;
+				if((high == 0x1 || high == 0x2 || high == 0xA) && target >= 0x200 && target < end) {
+					op = (op & 0xF000) | moved[target - 0x200];
+				}
+				out[length++] = (byte) (op >> 8);
+				out[length++] = (byte) op;
+				addr++;
+			}
+			else {
+				out[length++] = rom[addr - 0x200];
+			}
+		}
+		return Arrays.copyOf(out, length);
+	}
+
+	// Number of removed bytes before ROM offset i
+	private int countRemoved(int i) {
+		if(removedBefore == null) {
+			removedBefore = new int[rom.length + 1];
+			for(int j = 0; j < rom.length; j++) {
+				removedBefore[j + 1] = removedBefore[j] + (removed[0x200 + j] ? 1 : 0);
+			}
+		}
+		return removedBefore[i];
+	}
+
+	/**
+	 * What optimize() did and why it held back, if it did
+	 */
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(threaded).append(" jumps threaded, ").append(loads).append(" redundant loads and ").append(jumps)
+				.append(" jumps to the next instruction removed, ").append(deadBytes).append(" unreachable bytes removed");
+		sb.append(System.lineSeparator());
+		int saved = 0;
+		for(int i = 0; i < rom.length; i++) {
+			if(removed[0x200 + i]) saved++;
+		}
+		sb.append(saved).append(" bytes saved (").append(rom.length).append(" -> ").append(rom.length - saved).append("), about ")
+				.append(cyclesSaved).append(" of ").append(PROFILE_FRAMES * InputLog.DEFAULT_IPF)
+				.append(" instructions saved in the first ").append(PROFILE_FRAMES).append(" frames without input");
+		if(frozenCount > 0) {
+			sb.append(System.lineSeparator()).append(frozenCount)
+					.append(" instructions left alone because they may be overwritten, read as data or reached by JP V0");
+		}
+		if(!relocatable) {
+			sb.append(System.lineSeparator()).append("Nothing was removed because ").append(refusal);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,40 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+/**
+ * An integration that reacts to what a machine does, such as achievement
+ * tracking, telemetry or a bot.  Plugins are registered with Plugins, which
+ * can also find them with ServiceLoader in a plugin directory: each jar
+ * there names its classes in META-INF/services/net.calzoneman.JChip8.Plugin.
+ *
+ * Events are collected while a frame runs and handed over together when it
+ * ends, on the emulation thread, so frame() should return quickly.
+ */
+public interface Plugin {
+	/**
+	 * Subscribes to events.  A plugin that subscribes to nothing is not called again until detach().
+	 */
+	public void attach(Plugins.Subscription subscription);
+
+	/**
+	 * The subscribed events of a frame that had any.  events is reused once this returns.
+	 */
+	public void frame(PluginEvents events);
+
+	/**
+	 * The machine has stopped and every event has been delivered
+	 */
+	public void detach();
+}
@@ -0,0 +1,189 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.util.Arrays;
+
+/**
+ * One frame's events for a plugin, as parallel primitive arrays.  Only the
+ * first getWriteCount() or getDrawCount() entries of each array are valid,
+ * and everything is overwritten by the next frame, so copy what you keep.
+ */
+public class PluginEvents {
+
+	private long tick;
+
+	private int writes = 0;
+	private int[] writeAddresses = new int[16];
+	private byte[] writeValues = new byte[16];
+	private int[] writePCs = new int[16];
+
+	private int draws = 0;
+	private int[] drawX = new int[16];
+	private int[] drawY = new int[16];
+	private int[] drawHeights = new int[16];
+	private int[] drawAddresses = new int[16];
+	private boolean[] drawCollisions = new boolean[16];
+
+	private int keys = 0;
+	private int pressed = 0;
+	private int released = 0;
+
+	private String fault = null;
+	private int faultPC = -1;
+
+	/**
+	 * The timer tick that ended the frame
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	public int getWriteCount() {
+		return writes;
+	}
+
+	public int[] getWriteAddresses() {
+		return writeAddresses;
+	}
+
+	public byte[] getWriteValues() {
+		return writeValues;
+	}
+
+	/**
+	 * Address of the instruction that made each write
+	 */
+	public int[] getWritePCs() {
+		return writePCs;
+	}
+
+	public int getDrawCount() {
+		return draws;
+	}
+
+	public int[] getDrawX() {
+		return drawX;
+	}
+
+	public int[] getDrawY() {
+		return drawY;
+	}
+
+	/**
+	 * Sprite height N of each DXYN; 0 is a 16x16 sprite
+	 */
+	public int[] getDrawHeights() {
+		return drawHeights;
+	}
+
+	/**
+	 * I, where each sprite was read from
+	 */
+	public int[] getDrawAddresses() {
+		return drawAddresses;
+	}
+
+	public boolean[] getDrawCollisions() {
+		return drawCollisions;
+	}
+
+	/**
+	 * Keys held at the end of the frame, bit n for key n
+	 */
+	public int getKeys() {
+		return keys;
+	}
+
+	/**
+	 * Keys held now that weren't at the end of the last frame
+	 */
+	public int getKeysPressed() {
+		return pressed;
+	}
+
+	public int getKeysReleased() {
+		return released;
+	}
+
+	/**
+	 * The fault that stopped the machine in this frame, or null
+	 */
+	public String getFault() {
+		return fault;
+	}
+
+	/**
+	 * PC as the fault left it
+	 */
+	public int getFaultPC() {
+		return faultPC;
+	}
+
+	void addWrite(int addr, byte value, int pc) {
+		if(writes == writeAddresses.length) {
+			writeAddresses = Arrays.copyOf(writeAddresses, writes * 2);
+			writeValues = Arrays.copyOf(writeValues, writes * 2);
+			writePCs = Arrays.copyOf(writePCs, writes * 2);
+		}
+		writeAddresses[writes] = addr;
+		writeValues[writes] = value;
+		writePCs[writes] = pc;
+		writes++;
+	}
+
+	void addDraw(int x, int y, int height, int addr, boolean collision) {
+		if(draws == drawX.length) {
+			drawX = Arrays.copyOf(drawX, draws * 2);
+			drawY = Arrays.copyOf(drawY, draws * 2);
+			drawHeights = Arrays.copyOf(drawHeights, draws * 2);
+			drawAddresses = Arrays.copyOf(drawAddresses, draws * 2);
+			drawCollisions = Arrays.copyOf(drawCollisions, draws * 2);
+		}
+		drawX[draws] = x;
+		drawY[draws] = y;
+		drawHeights[draws] = height;
+		drawAddresses[draws] = addr;
+		drawCollisions[draws] = collision;
+		draws++;
+	}
+
+	void setKeys(int keys, int previous) {
+		this.keys = keys;
+		pressed = keys & ~previous;
+		released = previous & ~keys;
+	}
+
+	void setFault(String message, int pc) {
+		fault = message;
+		faultPC = pc;
+	}
+
+	void setTick(long tick) {
+		this.tick = tick;
+	}
+
+	boolean isEmpty() {
+		return writes == 0 && draws == 0 && pressed == 0 && released == 0 && fault == null;
+	}
+
+	void clear() {
+		writes = 0;
+		draws = 0;
+		pressed = 0;
+		released = 0;
+		fault = null;
+		faultPC = -1;
+	}
+}
@@ -0,0 +1,220 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * The plugins of one machine and what each has subscribed to.  Register
+ * every plugin, then hand this to VCPU.setPlugins().
+ *
+ * Plugin n is bit n of a mask per kind of event, and memory subscriptions
+ * are a mask per address, so the VCPU only calls in for an address or event
+ * someone watches and finds who in one lookup.  If nothing is subscribed at
+ * all the VCPU drops its hooks and pays nothing.
+ */
+public class Plugins {
+
+	private static final int MAX_PLUGINS = 32; // One bit each in an int mask
+
+	private final ArrayList<Plugin> plugins = new ArrayList<Plugin>();
+	private final ArrayList<PluginEvents> events = new ArrayList<PluginEvents>();
+	private int[] writeMap = null; // Plugins watching each address, or null if none watch memory
+	private int draws = 0; // Plugins subscribed to draws
+	private int keys = 0;
+	private int faults = 0;
+	private int failed = 0; // Plugins that threw and get nothing more
+	private int lastKeys = 0;
+	private long lastTick = -1;
+
+	/**
+	 * What one plugin receives; only usable from Plugin.attach()
+	 */
+	public class Subscription {
+		private final int bit;
+
+		private Subscription(int bit) {
+			this.bit = bit;
+		}
+
+		/**
+		 * Writes to addresses [start, end) by FX33 and FX55
+		 */
+		public void memory(int start, int end) {
+			if(writeMap == null) writeMap = new int[4096];
+			for(int i = Math.max(start, 0); i < end && i < writeMap.length; i++) {
+				writeMap[i] |= bit;
+			}
+		}
+
+		/**
+		 * Sprites drawn by DXYN
+		 */
+		public void draws() {
+			draws |= bit;
+		}
+
+		/**
+		 * Keys pressed or released since the last frame
+		 */
+		public void keys() {
+			keys |= bit;
+		}
+
+		/**
+		 * A fault that stops the machine
+		 */
+		public void faults() {
+			faults |= bit;
+		}
+	}
+
+	/**
+	 * Loads every Plugin found with ServiceLoader in the jars (and class files) of directory.
+	 * Returns null if the directory or a plugin can't be loaded.
+	 */
+	public static Plugins load(String directory) {
+		File dir = new File(directory);
+		File[] files = dir.listFiles();
+		if(files == null) {
+			System.out.println("Unable to read plugin directory " + directory);
+			return null;
+		}
+		Plugins plugins = new Plugins();
+		try {
+			ArrayList<URL> urls = new ArrayList<URL>();
+			urls.add(dir.toURI().toURL());
+			for(File file : files) {
+				if(file.getName().toLowerCase().endsWith(".jar")) urls.add(file.toURI().toURL());
+			}
+			ClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]), Plugin.class.getClassLoader());
+			for(Plugin plugin : ServiceLoader.load(Plugin.class, loader)) {
+				if(!plugins.register(plugin)) return null;
+				System.out.println("Loaded plugin " + plugin.getClass().getName());
+			}
+		}
+		catch(MalformedURLException | ServiceConfigurationError ex) {
+			System.out.println("Unable to load plugins from " + directory + ": " + ex.getMessage());
+			return null;
+		}
+		return plugins;
+	}
+
+	/**
+	 * Adds plugin and lets it subscribe.  Returns false if there are already MAX_PLUGINS.
+	 */
+	public boolean register(Plugin plugin) {
+		if(plugins.size() == MAX_PLUGINS) {
+			System.out.println("Too many plugins; at most " + MAX_PLUGINS + " can be loaded");
+			return false;
+		}
+		int bit = 1 << plugins.size();
+		plugins.add(plugin);
+		events.add(new PluginEvents());
+		plugin.attach(new Subscription(bit));
+		return true;
+	}
+
+	/**
+	 * Whether any plugin subscribed to anything
+	 */
+	boolean isSubscribed() {
+		return writeMap != null || (draws | keys | faults) != 0;
+	}
+
+	/**
+	 * Which plugins watch each address, or null if none watch memory
+	 */
+	int[] getWriteMap() {
+		return writeMap;
+	}
+
+	// The VCPU's hooks, called on the emulation thread
+
+	void write(int watchers, int addr, byte value, int pc) {
+		watchers &= ~failed;
+		while(watchers != 0) {
+			int n = Integer.numberOfTrailingZeros(watchers);
+			events.get(n).addWrite(addr, value, pc);
+			watchers &= watchers - 1;
+		}
+	}
+
+	void draw(int x, int y, int height, int addr, boolean collision) {
+		int watchers = draws & ~failed;
+		while(watchers != 0) {
+			int n = Integer.numberOfTrailingZeros(watchers);
+			events.get(n).addDraw(x, y, height, addr, collision);
+			watchers &= watchers - 1;
+		}
+	}
+
+	void fault(String message, int pc) {
+		int watchers = faults & ~failed;
+		while(watchers != 0) {
+			int n = Integer.numberOfTrailingZeros(watchers);
+			events.get(n).setFault(message, pc);
+			watchers &= watchers - 1;
+		}
+	}
+
+	/**
+	 * Delivers the frame ending at tick, with the keys held at its end
+	 */
+	void endFrame(long tick, int keyMask) {
+		if(keyMask != lastKeys) {
+			int watchers = keys & ~failed;
+			while(watchers != 0) {
+				int n = Integer.numberOfTrailingZeros(watchers);
+				events.get(n).setKeys(keyMask, lastKeys);
+				watchers &= watchers - 1;
+			}
+			lastKeys = keyMask;
+		}
+		lastTick = tick;
+		for(int n = 0; n < plugins.size(); n++) {
+			PluginEvents batch = events.get(n);
+			if(batch.isEmpty()) continue;
+			batch.setTick(tick);
+			if((failed & (1 << n)) == 0) {
+				try {
+					plugins.get(n).frame(batch);
+				}
+				catch(RuntimeException ex) {
+					// A broken plugin shouldn't take the machine down with it
+					System.out.println("Plugin " + plugins.get(n).getClass().getName() + " failed and was disabled: " + ex);
+					failed |= 1 << n;
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Delivers anything left from the last frame and detaches every plugin.  Call once the VCPU has
+	 * stopped.
+	 */
+	public void close() {
+		endFrame(lastTick + 1, lastKeys);
+		for(int n = 0; n < plugins.size(); n++) {
+			if((failed & (1 << n)) == 0) plugins.get(n).detach();
+		}
+	}
+}
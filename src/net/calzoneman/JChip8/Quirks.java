@@ -0,0 +1,120 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+/**
+ * Which interpretation of the ambiguous instructions a machine uses.  ROMs
+ * written for different interpreters disagree on these, so a VCPU binds one
+ * set of quirks to specialized instruction handlers when it is built (see
+ * VCPU.setQuirks()) and never tests them while executing.
+ *
+ * A spec is a comma-separated list read left to right: a profile name adds
+ * the profile's quirks, a quirk name adds that quirk and -name removes it,
+ * e.g. "schip,-clip".
+ */
+public final class Quirks {
+
+	public static final int SHIFT_VX = 1; // 8XY6/8XYE shift VX in place instead of shifting VY into VX
+	public static final int MEMORY_I = 2; // FX55/FX65 leave I after the last register
+	public static final int JUMP_VX = 4; // BXNN jumps to XNN + VX instead of BNNN to NNN + V0
+	public static final int CLIP = 8; // Sprites are clipped at the edges of the screen instead of wrapping
+	public static final int VF_RESET = 16; // 8XY1/8XY2/8XY3 clear VF
+
+	private static final String[] NAMES = { "shift", "memory", "jump", "clip", "vfreset" };
+
+	private static final String[] PROFILES = { "default", "chip8", "schip", "xochip", "none" };
+	private static final int[] PROFILE_QUIRKS = { SHIFT_VX, MEMORY_I | CLIP | VF_RESET, SHIFT_VX | JUMP_VX | CLIP, MEMORY_I, 0 };
+
+	/** How JChip8 has always run ROMs */
+	public static final Quirks DEFAULT = new Quirks(SHIFT_VX);
+
+	private final int flags;
+
+	public Quirks(int flags) {
+		this.flags = flags;
+	}
+
+	public boolean has(int quirk) {
+		return (flags & quirk) != 0;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * Parses a spec such as "schip" or "chip8,-clip".  An empty or null spec is DEFAULT; an unknown
+	 * name is reported and gives null.
+	 */
+	public static Quirks parse(String spec) {
+		if(spec == null || spec.trim().isEmpty()) return DEFAULT;
+		int flags = 0;
+		for(String token : spec.toLowerCase().split(",")) {
+			token = token.trim();
+			boolean remove = token.startsWith("-");
+			if(remove) token = token.substring(1);
+			int bits = -1;
+			for(int i = 0; i < PROFILES.length; i++) {
+				if(PROFILES[i].equals(token)) bits = PROFILE_QUIRKS[i];
+			}
+			for(int i = 0; i < NAMES.length; i++) {
+				if(NAMES[i].equals(token)) bits = 1 << i;
+			}
+			if(bits < 0) {
+				System.out.println("Unknown quirk or profile '" + token + "'; expected one of "
+						+ join(PROFILES) + " or " + join(NAMES));
+				return null;
+			}
+			if(remove) flags &= ~bits;
+			else flags |= bits;
+		}
+		return flags == DEFAULT.flags ? DEFAULT : new Quirks(flags);
+	}
+
+	private static String join(String[] names) {
+		StringBuilder sb = new StringBuilder();
+		for(String name : names) {
+			if(sb.length() > 0) sb.append(", ");
+			sb.append(name);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof Quirks && ((Quirks) o).flags == flags;
+	}
+
+	@Override
+	public int hashCode() {
+		return flags;
+	}
+
+	/**
+	 * The profile name if these are exactly a profile's quirks, otherwise the quirk names.  parse() reads it back.
+	 */
+	@Override
+	public String toString() {
+		for(int i = 0; i < PROFILES.length; i++) {
+			if(PROFILE_QUIRKS[i] == flags) return PROFILES[i];
+		}
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < NAMES.length; i++) {
+			if((flags & (1 << i)) == 0) continue;
+			if(sb.length() > 0) sb.append(',');
+			sb.append(NAMES[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,263 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Records the display at every 60Hz timer tick, emulated or real, into an
+ * animated GIF or a directory of PNGs.
+ *
+ * The VCPU packs the display at each tick and compares it with the frame
+ * being held; an identical frame just lengthens it.  A changed frame sends
+ * the held one through a bounded queue to an encoder thread, so the cost
+ * of encoding follows how often the picture changes, not how long the run
+ * is.  Frame buffers are pooled.  In real time nothing here blocks the
+ * emulation thread: if the queue is full, the held frame's image is replaced
+ * by the new one and keeps its start, and the replaced image is counted as
+ * dropped.  A headless recorder waits for room instead, which costs only
+ * wall-clock time since emulated time is what gets recorded.
+ *
+ * GIF delays are in hundredths of a second and players stretch anything
+ * under 2, so a GIF frame that would be shorter is left out and the next
+ * one covers its time.  PNGs are named after the tick they appeared at;
+ * each lasts until the next.
+ */
+public class Recorder implements Runnable {
+
+	public static final int WIDTH = 256; // Output size; display pixels are 4x4 or, in 128x64 mode, 2x2
+	public static final int HEIGHT = 128;
+	private static final int QUEUE = 64;
+
+	private static class Frame {
+		final byte[] data = new byte[VCPU.FRAME_SIZE];
+		int length, width, height;
+		long start, end; // Ticks [start, end) it was shown for
+	}
+
+	private static final Frame END = new Frame();
+
+	private final ArrayBlockingQueue<Frame> queue = new ArrayBlockingQueue<Frame>(QUEUE);
+	private final ArrayBlockingQueue<Frame> free = new ArrayBlockingQueue<Frame>(QUEUE + 2);
+	private final byte[] scratch = new byte[VCPU.FRAME_SIZE];
+	private Frame held = null;
+	private long lastTick = 0;
+	private int dropped = 0;
+	private int encoded = 0;
+
+	private final String dest;
+	private final boolean headless; // Wait for the encoder instead of dropping frames
+	private final File directory; // PNG output, or null for a GIF
+	private ImageWriter gif;
+	private ImageOutputStream out;
+	private long gifShown = 0; // GIF time written so far, in hundredths of a second
+	private final BufferedImage image;
+	private final byte[] pixels;
+	private final Thread thread;
+
+	private Recorder(String dest, File directory, boolean headless) throws IOException {
+		this.dest = dest;
+		this.headless = headless;
+		this.directory = directory;
+		if(directory == null) {
+			gif = ImageIO.getImageWritersByFormatName("gif").next();
+			out = ImageIO.createImageOutputStream(new File(dest));
+			if(out == null) throw new IOException("can't write " + dest);
+			gif.setOutput(out);
+			gif.prepareWriteSequence(null);
+		}
+		byte[] levels = { 0, (byte) 0xFF };
+		image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_BINARY, new IndexColorModel(1, 2, levels, levels, levels));
+		pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		for(int i = 0; i < QUEUE + 2; i++) {
+			free.add(new Frame());
+		}
+		thread = new Thread(this, "Recorder");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Records to an animated GIF if dest ends in .gif, otherwise to PNGs in the directory dest,
+	 * which is created if needed.  headless is for machines that don't run in real time.
+	 */
+	public static Recorder open(String dest, boolean headless) throws IOException {
+		if(dest.toLowerCase().endsWith(".gif")) return new Recorder(dest, null, headless);
+		File directory = new File(dest);
+		if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("can't create directory " + dest);
+		return new Recorder(dest, directory, headless);
+	}
+
+	/**
+	 * Captures vcpu's display as it is at tick.  Called on the emulation thread.
+	 */
+	void capture(VCPU vcpu, long tick) {
+		lastTick = tick;
+		int length = vcpu.packFrame(scratch);
+		int width = vcpu.getDisplayWidth();
+		if(held != null && held.width == width && held.length == length && equal(held.data, scratch, length)) return;
+		if(held != null) {
+			held.end = tick;
+			if(send(held)) {
+				held = null;
+			}
+			else {
+				dropped++;
+			}
+		}
+		if(held == null) {
+			held = free.poll();
+			held.start = tick;
+		}
+		System.arraycopy(scratch, 0, held.data, 0, length);
+		held.length = length;
+		held.width = width;
+		held.height = vcpu.getDisplayHeight();
+	}
+
+	private boolean send(Frame frame) {
+		if(!headless) return queue.offer(frame);
+		try {
+			queue.put(frame);
+			return true;
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static boolean equal(byte[] a, byte[] b, int length) {
+		for(int i = 0; i < length; i++) {
+			if(a[i] != b[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the last frame and finishes the file.  Call once the VCPU has stopped.
+	 */
+	public void close() {
+		try {
+			if(held != null) {
+				held.end = lastTick + 1;
+				queue.put(held);
+				held = null;
+			}
+			queue.put(END);
+			thread.join();
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		System.out.println("Recorded " + encoded + " distinct frames over " + (lastTick + 1) + " ticks to " + dest);
+		if(dropped > 0) System.out.println(dropped + " frames were dropped because encoding fell behind");
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				Frame frame = queue.take();
+				if(frame == END) break;
+				write(frame);
+				free.offer(frame);
+			}
+			if(gif != null) {
+				gif.endWriteSequence();
+				out.close();
+			}
+		}
+		catch(IOException ex) {
+			System.out.println("Recording stopped: " + ex.getMessage());
+		}
+		catch(InterruptedException ex) {
+			// Abandoned
+		}
+	}
+
+	private void write(Frame frame) throws IOException {
+		long cs = frame.end * 100 / 60;
+		if(gif != null && cs - gifShown < 2) return;
+		draw(frame);
+		if(gif == null) {
+			ImageIO.write(image, "png", new File(directory, String.format("frame_%06d.png", frame.start)));
+		}
+		else {
+			IIOMetadata meta = gif.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+			String format = meta.getNativeMetadataFormatName();
+			IIOMetadataNode root = (IIOMetadataNode) meta.getAsTree(format);
+			IIOMetadataNode control = child(root, "GraphicControlExtension");
+			control.setAttribute("disposalMethod", "none");
+			control.setAttribute("userInputFlag", "FALSE");
+			control.setAttribute("transparentColorFlag", "FALSE");
+			control.setAttribute("transparentColorIndex", "0");
+			control.setAttribute("delayTime", Long.toString(cs - gifShown));
+			if(encoded == 0) {
+				// Loop forever
+				IIOMetadataNode app = new IIOMetadataNode("ApplicationExtension");
+				app.setAttribute("applicationID", "NETSCAPE");
+				app.setAttribute("authenticationCode", "2.0");
+				app.setUserObject(new byte[] { 1, 0, 0 });
+				child(root, "ApplicationExtensions").appendChild(app);
+			}
+			meta.setFromTree(format, root);
+			gif.writeToSequence(new IIOImage(image, null, meta), null);
+			gifShown = cs;
+		}
+		encoded++;
+	}
+
+	private static IIOMetadataNode child(IIOMetadataNode parent, String name) {
+		for(int i = 0; i < parent.getLength(); i++) {
+			if(parent.item(i).getNodeName().equals(name)) return (IIOMetadataNode) parent.item(i);
+		}
+		IIOMetadataNode node = new IIOMetadataNode(name);
+		parent.appendChild(node);
+		return node;
+	}
+
+	// Scales a packed frame up into the 1-bit image, WIDTH / 8 bytes per row
+	private void draw(Frame frame) {
+		int scale = WIDTH / frame.width;
+		int rowBytes = frame.width / 8;
+		Arrays.fill(pixels, (byte) 0);
+		for(int y = 0; y < frame.height; y++) {
+			for(int x = 0; x < frame.width; x++) {
+				if((frame.data[y * rowBytes + (x >> 3)] & (0x80 >> (x & 7))) == 0) continue;
+				for(int dy = 0; dy < scale; dy++) {
+					int row = (y * scale + dy) * (WIDTH / 8);
+					for(int dx = 0; dx < scale; dx++) {
+						int px = x * scale + dx;
+						pixels[row + (px >> 3)] |= 0x80 >> (px & 7);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Many ROMs packed into one file, indexed by SHA-1 of their contents.
+ *
+ * File layout (big endian):
+ *   Header (16 bytes): magic "C8RA", version, entry count, offset of the
+ *                      string table
+ *   Index (48 bytes per entry, sorted by hash):
+ *     0  byte[20] SHA-1 of the ROM
+ *     20 int   offset of the ROM data
+ *     24 short ROM length
+ *     26 short recommended instructions per frame (0 if unknown)
+ *     28 int   name offset, 32 short name length     (in the string table)
+ *     34 int   title offset, 38 short title length
+ *     40 int   quirks offset, 44 short quirks length
+ *     46 short reserved
+ *   ROM data, then the string table (UTF-8)
+ *
+ * An archive is opened by mapping the whole file; ROMs are returned as slices
+ * of the mapping, so nothing is read or copied until a ROM is used.
+ */
+public class RomArchive {
+
+	public static final int MAGIC = 0x43385241; // "C8RA"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 16;
+	public static final int ENTRY_SIZE = 48;
+	public static final int HASH_SIZE = 20;
+
+	/**
+	 * A ROM to pack, or the metadata of one in an archive
+	 */
+	public static class Entry {
+		public String name;
+		public String title = "";
+		public int instructionsPerFrame = 0;
+		public String quirks = "";
+		public byte[] hash;
+		byte[] rom;
+		int index;
+
+		public Entry(String name, byte[] rom) {
+			this.name = name;
+			this.rom = rom;
+			this.hash = sha1(rom);
+		}
+
+		Entry() {
+		}
+	}
+
+	private final MappedByteBuffer buf;
+	private final int count;
+	private final int strings;
+	private HashMap<String, Integer> names = null; // Built on first lookup by name
+
+	private RomArchive(MappedByteBuffer buf) throws IOException {
+		this.buf = buf;
+		if(buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC) throw new IOException("not a ROM archive");
+		if(buf.getShort(4) != VERSION) throw new IOException("unsupported archive version " + buf.getShort(4));
+		count = buf.getInt(8);
+		strings = buf.getInt(12);
+		if(HEADER_SIZE + (long) count * ENTRY_SIZE > buf.limit() || strings > buf.limit()) throw new IOException("truncated archive");
+	}
+
+	public static RomArchive open(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			// The mapping stays valid after the channel is closed
+			return new RomArchive(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * True if the file starts with the archive magic number
+	 */
+	public static boolean isArchive(Path path) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			while(magic.hasRemaining() && channel.read(magic) >= 0);
+			return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+		}
+		catch(IOException ex) {
+			return false;
+		}
+	}
+
+	public int size() {
+		return count;
+	}
+
+	private int entryOffset(int i) {
+		return HEADER_SIZE + i * ENTRY_SIZE;
+	}
+
+	/**
+	 * The ROM at index i as a read-only slice of the mapped archive
+	 */
+	public ByteBuffer slice(int i) {
+		int e = entryOffset(i);
+		ByteBuffer view = buf.duplicate();
+		view.position(buf.getInt(e + 20));
+		view.limit(buf.getInt(e + 20) + (buf.getShort(e + 24) & 0xFFFF));
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * A copy of the ROM at index i
+	 */
+	public byte[] load(int i) {
+		ByteBuffer rom = slice(i);
+		byte[] copy = new byte[rom.remaining()];
+		rom.get(copy);
+		return copy;
+	}
+
+	public Entry entry(int i) {
+		int e = entryOffset(i);
+		Entry entry = new Entry();
+		entry.index = i;
+		entry.hash = new byte[HASH_SIZE];
+		for(int k = 0; k < HASH_SIZE; k++) {
+			entry.hash[k] = buf.get(e + k);
+		}
+		entry.instructionsPerFrame = buf.getShort(e + 26) & 0xFFFF;
+		entry.name = string(buf.getInt(e + 28), buf.getShort(e + 32) & 0xFFFF);
+		entry.title = string(buf.getInt(e + 34), buf.getShort(e + 38) & 0xFFFF);
+		entry.quirks = string(buf.getInt(e + 40), buf.getShort(e + 44) & 0xFFFF);
+		return entry;
+	}
+
+	private String string(int offset, int length) {
+		byte[] b = new byte[length];
+		for(int k = 0; k < length; k++) {
+			b[k] = buf.get(strings + offset + k);
+		}
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Index of the ROM with the given SHA-1, or -1.  Binary search over the mapped index.
+	 */
+	public int find(byte[] hash) {
+		int lo = 0, hi = count - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compareHash(entryOffset(mid), hash);
+			if(cmp < 0) lo = mid + 1;
+			else if(cmp > 0) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	private int compareHash(int offset, byte[] hash) {
+		for(int k = 0; k < HASH_SIZE; k++) {
+			int a = buf.get(offset + k) & 0xFF;
+			int b = hash[k] & 0xFF;
+			if(a != b) return a - b;
+		}
+		return 0;
+	}
+
+	/**
+	 * Index of the ROM with the given name (case-insensitive, with or without extension), or -1
+	 */
+	public synchronized int find(String name) {
+		if(names == null) {
+			names = new HashMap<String, Integer>();
+			for(int i = 0; i < count; i++) {
+				String n = entry(i).name.toLowerCase();
+				names.put(n, i);
+				if(n.contains(".")) {
+					String bare = n.substring(0, n.lastIndexOf('.'));
+					if(!names.containsKey(bare)) names.put(bare, i);
+				}
+			}
+		}
+		Integer i = names.get(name.toLowerCase());
+		return i != null ? i : -1;
+	}
+
+	/**
+	 * Looks a ROM up by 40-digit hex SHA-1 or by name; returns its index or -1
+	 */
+	public int resolve(String key) {
+		if(key.length() == HASH_SIZE * 2 && key.matches("[0-9a-fA-F]+")) {
+			byte[] hash = new byte[HASH_SIZE];
+			for(int k = 0; k < HASH_SIZE; k++) {
+				hash[k] = (byte) Integer.parseInt(key.substring(k * 2, k * 2 + 2), 16);
+			}
+			int i = find(hash);
+			if(i >= 0) return i;
+		}
+		return find(key);
+	}
+
+	/**
+	 * Writes entries to path as an archive.  Duplicate ROMs (same hash) are stored once, under the
+	 * first name given.
+	 */
+	public static void write(Path path, List<Entry> entries) throws IOException {
+		ArrayList<Entry> sorted = new ArrayList<Entry>();
+		HashSet<String> seen = new HashSet<String>();
+		for(Entry e : entries) {
+			if(seen.add(hex(e.hash))) sorted.add(e);
+		}
+		Collections.sort(sorted, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				for(int k = 0; k < HASH_SIZE; k++) {
+					int d = (a.hash[k] & 0xFF) - (b.hash[k] & 0xFF);
+					if(d != 0) return d;
+				}
+				return 0;
+			}
+		});
+
+		int dataStart = HEADER_SIZE + sorted.size() * ENTRY_SIZE;
+		int dataSize = 0;
+		for(Entry e : sorted) {
+			if(e.rom.length > RomLoader.MAX_ROM_SIZE) {
+				throw new IOException(e.name + " is " + e.rom.length + " bytes; ROMs can be at most " + RomLoader.MAX_ROM_SIZE);
+			}
+			dataSize += e.rom.length;
+		}
+		ByteBuffer stringTable = ByteBuffer.allocate(1024);
+		ByteBuffer out = ByteBuffer.allocate(dataStart + dataSize);
+		out.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0).putInt(sorted.size()).putInt(0);
+		int data = dataStart;
+		for(Entry e : sorted) {
+			out.put(e.hash);
+			out.putInt(data).putShort((short) e.rom.length).putShort((short) e.instructionsPerFrame);
+			for(String s : new String[] { e.name, e.title, e.quirks }) {
+				byte[] b = (s != null ? s : "").getBytes(StandardCharsets.UTF_8);
+				if(b.length > 0xFFFF) throw new IOException("metadata for " + e.name + " is too long");
+				if(stringTable.remaining() < b.length) {
+					ByteBuffer bigger = ByteBuffer.allocate(Math.max(stringTable.capacity() * 2, stringTable.position() + b.length));
+					stringTable.flip();
+					stringTable = bigger.put(stringTable);
+				}
+				out.putInt(stringTable.position()).putShort((short) b.length);
+				stringTable.put(b);
+			}
+			out.putShort((short) 0);
+			data += e.rom.length;
+		}
+		for(Entry e : sorted) {
+			out.put(e.rom);
+		}
+		out.putInt(12, out.position());
+		out.flip();
+		stringTable.flip();
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer[] parts = { out, stringTable };
+			while(out.hasRemaining() || stringTable.hasRemaining()) {
+				channel.write(parts);
+			}
+		}
+	}
+
+	public static byte[] sha1(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(data);
+		}
+		catch(NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex); // Every JVM has SHA-1
+		}
+	}
+
+	public static String hex(byte[] hash) {
+		StringBuilder sb = new StringBuilder(hash.length * 2);
+		for(byte b : hash) {
+			sb.append(Disassembler.hex(b));
+		}
+		return sb.toString().toLowerCase();
+	}
+}
@@ -14,27 +14,88 @@ package net.calzoneman.JChip8;
  ******************************************************************************/
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Loads ROMs from plain files or from RomArchives.  A name of the form
+ * archive:rom refers to the ROM in archive with that name or 40-digit SHA-1.
+ * Archives are opened (mapped) once and kept open for the life of the JVM.
+ */
 public class RomLoader {
+
+	public static final int MAX_ROM_SIZE = 4096 - 0x200;
+
+	private static final ConcurrentHashMap<Path, RomArchive> archives = new ConcurrentHashMap<Path, RomArchive>();
+
 	public static byte[] load(String filename) {
 		File file = new File(filename);
-		System.out.println(new File(".").getAbsolutePath());
-		if(!file.exists()) return null;
-		try (FileInputStream fis = new FileInputStream(file)) {
-			byte[] raw = new byte[4096];
-			int len = fis.read(raw, 0, 4096);
-			byte[] rom = new byte[len];
-			for(int i = 0; i < len; i++) {
-				rom[i] = raw[i];
+		if(!file.isFile()) {
+			return loadFromArchive(filename);
+		}
+		try {
+			byte[] rom = Batch.read(file.toPath());
+			if(rom.length > MAX_ROM_SIZE) {
+				System.out.println(filename + " is " + rom.length + " bytes; ROMs can be at most " + MAX_ROM_SIZE);
+				return null;
 			}
 			return rom;
 		}
 		catch(IOException ex) {
-			System.err.println("Erorr loading ROM: ");
-			ex.printStackTrace();
+			System.out.println("Error loading ROM " + filename + ": " + ex.getMessage());
+			return null;
+		}
+	}
+
+	// Resolves archive:name or archive:sha1
+	private static byte[] loadFromArchive(String name) {
+		int colon = name.lastIndexOf(':');
+		if(colon <= 0) return null;
+		File file = new File(name.substring(0, colon));
+		if(!file.isFile()) return null;
+		RomArchive archive = archive(file.toPath());
+		if(archive == null) return null;
+		int i = archive.resolve(name.substring(colon + 1));
+		if(i < 0) return null;
+		// Archives written before the limit was checked may hold larger ROMs
+		byte[] rom = archive.load(i);
+		if(rom.length > MAX_ROM_SIZE) {
+			System.out.println(name + " is " + rom.length + " bytes; ROMs can be at most " + MAX_ROM_SIZE);
+			return null;
+		}
+		return rom;
+	}
+
+	/**
+	 * The quirks given in the archive metadata of an archive:rom name, DEFAULT for anything else
+	 * or if the metadata doesn't say, or null if the metadata can't be parsed
+	 */
+	public static Quirks quirks(String filename) {
+		int colon = filename.lastIndexOf(':');
+		if(colon <= 0 || new File(filename).isFile()) return Quirks.DEFAULT;
+		RomArchive archive = archive(new File(filename.substring(0, colon)).toPath());
+		int i = archive != null ? archive.resolve(filename.substring(colon + 1)) : -1;
+		return i >= 0 ? Quirks.parse(archive.entry(i).quirks) : Quirks.DEFAULT;
+	}
+
+	/**
+	 * The archive at path, opened on first use, or null if it isn't one
+	 */
+	public static RomArchive archive(Path path) {
+		path = path.toAbsolutePath().normalize();
+		RomArchive archive = archives.get(path);
+		if(archive != null) return archive;
+		if(!Files.isRegularFile(path) || !RomArchive.isArchive(path)) return null;
+		try {
+			archive = RomArchive.open(path);
+		}
+		catch(IOException ex) {
+			System.out.println("Error opening archive " + path + ": " + ex.getMessage());
 			return null;
 		}
+		RomArchive existing = archives.putIfAbsent(path, archive);
+		return existing != null ? existing : archive;
 	}
 }
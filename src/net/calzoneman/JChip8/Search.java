@@ -0,0 +1,231 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Beam search over key input.  Every step, each state in the beam is branched
+ * on "no key" and each of the 16 Chip8 keys, held for a number of frames.  The
+ * children are simulated in parallel on a fork-join pool, scored with a
+ * SearchHeuristic, deduplicated, and the best beamWidth are kept.
+ *
+ * States are flat VCPU.saveState() arrays in two preallocated buffers, so a
+ * branch costs one array copy; each pool thread reuses a single VCPU.
+ */
+public class Search {
+
+	public static final int BRANCHES = 17; // No key, then keys 0-F
+
+	private final byte[] rom;
+	private final Quirks quirks;
+	private final SearchHeuristic heuristic;
+	private final int beamWidth;
+	private final int instructionsPerFrame;
+	private final int framesPerStep;
+
+	private final ForkJoinPool pool = new ForkJoinPool();
+	private final ThreadLocal<VCPU> machines = new ThreadLocal<VCPU>() {
+		@Override
+		protected VCPU initialValue() {
+			VCPU vcpu = new VCPU(rom, quirks);
+			vcpu.setQuiet(true);
+			return vcpu;
+		}
+	};
+
+	private byte[][] beam;
+	private byte[][] children;
+	private int[] scores;
+
+	public Search(byte[] rom, Quirks quirks, SearchHeuristic heuristic, int beamWidth, int instructionsPerFrame, int framesPerStep) {
+		this.rom = rom;
+		this.quirks = quirks;
+		this.heuristic = heuristic;
+		this.beamWidth = beamWidth;
+		this.instructionsPerFrame = instructionsPerFrame;
+		this.framesPerStep = framesPerStep;
+
+		beam = new byte[beamWidth][VCPU.STATE_SIZE];
+		children = new byte[beamWidth * BRANCHES][VCPU.STATE_SIZE];
+		scores = new int[beamWidth * BRANCHES];
+	}
+
+	// True if child c matches a state already in seen, otherwise adds it
+	private boolean duplicate(HashMap<Integer, ArrayList<Integer>> seen, int hash, int c) {
+		ArrayList<Integer> bucket = seen.get(hash);
+		if(bucket == null) {
+			bucket = new ArrayList<Integer>(1);
+			seen.put(hash, bucket);
+		}
+		for(int other : bucket) {
+			if(Arrays.equals(children[other], children[c])) return true;
+		}
+		bucket.add(c);
+		return false;
+	}
+
+	private static int keyMask(int branch) {
+		return branch == 0 ? 0 : 1 << (branch - 1);
+	}
+
+	/**
+	 * Searches for the given number of steps from power-on and returns the input
+	 * leading to the best scoring state found.
+	 */
+	public InputLog run(long seed, int steps) {
+		VCPU root = machines.get();
+		root.reset();
+		root.getInput().clear();
+		root.setSeed(seed);
+		root.saveState(beam[0]);
+		int beamSize = 1;
+
+		// parents[s][i] and keys[s][i] describe how beam entry i was reached at step s
+		int[][] parents = new int[steps][beamWidth];
+		int[][] keys = new int[steps][beamWidth];
+		int[] order = new int[beamWidth * BRANCHES];
+		int[] hashes = new int[beamWidth * BRANCHES];
+		int bestScore = Integer.MIN_VALUE;
+		int bestStep = -1;
+		int bestIndex = 0;
+
+		for(int s = 0; s < steps; s++) {
+			int count = beamSize * BRANCHES;
+			pool.invoke(new Expand(0, count));
+
+			// Rank children by score, dropping ones that reached an identical state
+			Integer[] ranked = new Integer[count];
+			for(int i = 0; i < count; i++) {
+				ranked[i] = i;
+				hashes[i] = Arrays.hashCode(children[i]);
+			}
+			Arrays.sort(ranked, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return scores[b] != scores[a] ? (scores[b] > scores[a] ? 1 : -1) : a - b;
+				}
+			});
+			// Kept children by hash; states are only duplicates if they also compare equal
+			HashMap<Integer, ArrayList<Integer>> seen = new HashMap<Integer, ArrayList<Integer>>();
+			int kept = 0;
+			for(int i = 0; i < count && kept < beamWidth; i++) {
+				int c = ranked[i];
+				if(scores[c] == Integer.MIN_VALUE || duplicate(seen, hashes[c], c)) continue;
+				order[kept] = c;
+				parents[s][kept] = c / BRANCHES;
+				keys[s][kept] = keyMask(c % BRANCHES);
+				kept++;
+			}
+			if(kept == 0) {
+				System.out.println("Every branch faulted at step " + s);
+				break;
+			}
+
+			// Swap the survivors into the beam
+			byte[][] next = new byte[kept][];
+			for(int i = 0; i < kept; i++) {
+				next[i] = children[order[i]];
+			}
+			for(int i = 0; i < kept; i++) {
+				byte[] old = beam[i];
+				beam[i] = next[i];
+				children[order[i]] = old;
+			}
+			beamSize = kept;
+
+			if(scores[order[0]] > bestScore) {
+				bestScore = scores[order[0]];
+				bestStep = s;
+				bestIndex = 0;
+			}
+		}
+
+		// Walk the best path back to the root and expand it into an input log
+		InputLog log = new InputLog(seed, instructionsPerFrame, (bestStep + 1) * framesPerStep);
+		log.setQuirks(quirks);
+		int index = bestIndex;
+		for(int s = bestStep; s >= 0; s--) {
+			for(int f = 0; f < framesPerStep; f++) {
+				log.setKeys(s * framesPerStep + f, keys[s][index]);
+			}
+			index = parents[s][index];
+		}
+		System.out.println("Best score " + bestScore + " after " + log.length() + " frames");
+		return log;
+	}
+
+	/**
+	 * Simulates children [from, to): copy the parent state, hold the branch's key, run, score
+	 */
+	private class Expand extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int THRESHOLD = 4;
+
+		private final int from, to;
+
+		public Expand(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > THRESHOLD) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Expand(from, mid), new Expand(mid, to));
+				return;
+			}
+			VCPU vcpu = machines.get();
+			for(int c = from; c < to; c++) {
+				vcpu.loadState(beam[c / BRANCHES]);
+				vcpu.getInput().setC8KeyMask(keyMask(c % BRANCHES));
+				boolean alive = true;
+				for(int f = 0; f < framesPerStep && alive; f++) {
+					alive = vcpu.runFrame(instructionsPerFrame);
+				}
+				vcpu.saveState(children[c]);
+				scores[c] = alive ? heuristic.score(children[c]) : Integer.MIN_VALUE;
+			}
+		}
+	}
+
+	/**
+	 * Scores a big-endian unsigned value in memory, such as a score counter
+	 */
+	public static class MemoryScore implements SearchHeuristic {
+		private final int address, length;
+		private final boolean minimize;
+
+		public MemoryScore(int address, int length, boolean minimize) {
+			this.address = address;
+			this.length = length;
+			this.minimize = minimize;
+		}
+
+		@Override
+		public int score(byte[] state) {
+			int value = 0;
+			for(int i = 0; i < length; i++) {
+				value = (value << 8) | (state[VCPU.STATE_MEMORY + address + i] & 0xFF);
+			}
+			return minimize ? -value : value;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+/**
+ * Scores a machine state for Search; higher is better.  The state is laid out
+ * as described by the VCPU.STATE_* offsets, e.g. state[VCPU.STATE_MEMORY + addr]
+ * or state[VCPU.STATE_V + x].  Implementations are called from many threads at
+ * once and must not keep per-call state.
+ */
+public interface SearchHeuristic {
+	public int score(byte[] state);
+}
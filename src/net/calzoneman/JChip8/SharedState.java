@@ -0,0 +1,168 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A machine's state published into a memory-mapped file, so other processes
+ * can watch RAM, registers and the display without talking to the emulator.
+ *
+ * File layout (big endian):
+ *   Header (64 bytes):
+ *     0  int   magic "C8SM"
+ *     4  short version
+ *     6  short header size
+ *     8  int   state size
+ *     16 long  sequence number, odd while an update is being written
+ *     24 long  frames published
+ *     32 long  wall-clock time of the last update (ms since the epoch)
+ *     40 int   CRC-32 of the state followed by the frame count (big endian)
+ *   State: VCPU.saveState() layout, see VCPU.STATE_*
+ *
+ * The VCPU publishes at every 60Hz timer tick.  Updates are seqlock-style:
+ * the writer never waits; a reader copies the state and retries if the
+ * sequence number was odd or changed while it was copying.  Java 7 has no
+ * fences to stop the buffer accesses being reordered around the sequence
+ * number, so that alone can miss a torn copy; the reader also retries
+ * unless the checksum matches what it copied.  A torn snapshot then gets
+ * through only on a CRC-32 collision, roughly 1 in 2^32.
+ */
+public class SharedState {
+
+	public static final int MAGIC = 0x4338534D; // "C8SM"
+	public static final int VERSION = 3;
+	public static final int HEADER_SIZE = 64;
+	public static final int SEQUENCE = 16;
+	public static final int FRAMES = 24;
+	public static final int TIME = 32;
+	public static final int CHECKSUM = 40;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buf;
+	private byte[] state = new byte[VCPU.STATE_SIZE];
+	private long sequence = 0;
+	private long frames = 0;
+	private final CRC32 crc = new CRC32();
+	private final byte[] count = new byte[8];
+
+	private SharedState(String filename, boolean writable) throws IOException {
+		file = new RandomAccessFile(filename, writable ? "rw" : "r");
+		long size = HEADER_SIZE + VCPU.STATE_SIZE;
+		if(writable) {
+			file.setLength(size);
+		}
+		else if(file.length() < size) {
+			file.close();
+			throw new IOException(filename + " is too short to be shared state");
+		}
+		buf = file.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+		buf.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Creates (or truncates) filename for a VCPU to publish into, see VCPU.setSharedState()
+	 */
+	public static SharedState create(String filename) throws IOException {
+		SharedState shared = new SharedState(filename, true);
+		shared.buf.putInt(0, MAGIC);
+		shared.buf.putShort(4, (short) VERSION);
+		shared.buf.putShort(6, (short) HEADER_SIZE);
+		shared.buf.putInt(8, VCPU.STATE_SIZE);
+		shared.buf.putLong(SEQUENCE, 0);
+		shared.buf.putLong(FRAMES, 0);
+		shared.buf.position(HEADER_SIZE);
+		shared.buf.put(new byte[VCPU.STATE_SIZE]); // Don't show a previous run's state before the first update
+		return shared;
+	}
+
+	/**
+	 * Opens a file another process publishes into, for reading snapshots
+	 */
+	public static SharedState open(String filename) throws IOException {
+		SharedState shared = new SharedState(filename, false);
+		if(shared.buf.getInt(0) != MAGIC) throw new IOException(filename + " is not shared state");
+		if(shared.buf.getShort(4) != VERSION || shared.buf.getInt(8) != VCPU.STATE_SIZE) {
+			throw new IOException(filename + " was written by an incompatible version");
+		}
+		return shared;
+	}
+
+	/**
+	 * Writes the VCPU's current state.  Called on the emulation thread.
+	 */
+	void publish(VCPU vcpu) {
+		vcpu.saveState(state);
+		buf.putLong(SEQUENCE, ++sequence); // Odd: update in progress
+		buf.position(HEADER_SIZE);
+		buf.put(state);
+		buf.putLong(FRAMES, ++frames);
+		buf.putLong(TIME, System.currentTimeMillis());
+		buf.putInt(CHECKSUM, checksum(state, frames));
+		buf.putLong(SEQUENCE, ++sequence);
+	}
+
+	/**
+	 * Copies a snapshot of the published state into state (VCPU.STATE_SIZE bytes), consistent
+	 * unless the checksum collides.  Returns the number of frames published when it was taken, 0 if
+	 * nothing has been yet.
+	 */
+	public long snapshot(byte[] state) {
+		while(true) {
+			long before = buf.getLong(SEQUENCE);
+			if((before & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			long published = buf.getLong(FRAMES);
+			int sum = buf.getInt(CHECKSUM);
+			ByteBuffer view = buf.duplicate();
+			view.position(HEADER_SIZE);
+			view.get(state);
+			if(buf.getLong(SEQUENCE) != before) continue;
+			if(published == 0 || checksum(state, published) == sum) return published;
+		}
+	}
+
+	private int checksum(byte[] state, long frames) {
+		crc.reset();
+		crc.update(state);
+		ByteBuffer.wrap(count).putLong(frames);
+		crc.update(count);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Time of the last update in ms since the epoch
+	 */
+	public long getTime() {
+		return buf.getLong(TIME);
+	}
+
+	public void close() {
+		buf.force();
+		try {
+			file.close();
+		}
+		catch(IOException ex) {
+			// Nothing left to write
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * The sound timer's tone.  The VCPU only records when the tone starts and
+ * stops, stamped with the number of 60Hz timer ticks so far, into a
+ * single-producer ring; a generator thread turns that into samples one tick
+ * (735 samples) at a time, once the emulator has finished that tick.  Audio
+ * time therefore follows emulated time, whether the machine runs in real time
+ * or as fast as it can.
+ *
+ * Samples go to the speaker through a small SourceDataLine buffer, or to a
+ * WAV file when headless.  When playing live and the generator falls more
+ * than MAX_LAG ticks behind the emulator it skips ahead, so sound stays in
+ * step with the picture.  Nothing here ever blocks the emulation thread; if
+ * the ring is full, events are dropped and counted.
+ */
+public class Sound implements Runnable {
+
+	public static final int SAMPLE_RATE = 44100;
+	public static final int SAMPLES_PER_TICK = SAMPLE_RATE / 60;
+	public static final int FREQUENCY = 440;
+
+	private static final int AMPLITUDE = 6000;
+	private static final int RAMP = 64; // Samples to fade in and out over, to avoid clicks
+	private static final int MAX_LAG = 8;
+	private static final int RING = 1 << 16;
+
+	private final long[] events = new long[RING]; // tick << 1 | on
+	private volatile long written = 0;
+	private volatile long read = 0;
+	private volatile long emulated = 0; // Ticks the emulator has finished
+	private volatile boolean closing = false;
+	private int dropped = 0;
+
+	private final SourceDataLine line;
+	private final RandomAccessFile wav;
+	private long wavBytes = 0;
+	private final Thread thread;
+
+	private Sound(SourceDataLine line, RandomAccessFile wav) {
+		this.line = line;
+		this.wav = wav;
+		thread = new Thread(this, "Sound");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Plays through the default audio device
+	 */
+	public static Sound speaker() throws LineUnavailableException {
+		AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+		SourceDataLine line;
+		try {
+			line = AudioSystem.getSourceDataLine(format);
+		}
+		catch(IllegalArgumentException ex) {
+			throw new LineUnavailableException("no audio device");
+		}
+		line.open(format, SAMPLES_PER_TICK * 2 * 4);
+		line.start();
+		return new Sound(line, null);
+	}
+
+	/**
+	 * Records to a 16-bit mono WAV file instead of playing
+	 */
+	public static Sound wav(String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "rw");
+		file.setLength(0);
+		file.write(new byte[44]); // Header is written on close, once the length is known
+		return new Sound(null, file);
+	}
+
+	/**
+	 * Records that the tone starts or stops at tick.  Called on the emulation thread.
+	 */
+	void event(long tick, boolean on) {
+		long w = written;
+		if(w - read >= RING) {
+			dropped++;
+			return;
+		}
+		events[(int) (w % RING)] = (tick << 1) | (on ? 1 : 0);
+		written = w + 1;
+	}
+
+	/**
+	 * Tells the generator the emulator has finished ticks ticks.  Called on the emulation thread.
+	 */
+	void tick(long ticks) {
+		emulated = ticks;
+	}
+
+	/**
+	 * Finishes the sound up to the last tick and closes the device or file
+	 */
+	public void close() {
+		closing = true;
+		try {
+			thread.join();
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if(dropped > 0) System.out.println(dropped + " sound events were dropped");
+	}
+
+	@Override
+	public void run() {
+		byte[] buf = new byte[SAMPLES_PER_TICK * 2];
+		long rendered = 0;
+		boolean on = false;
+		double phase = 0;
+		int level = 0;
+		try {
+			while(true) {
+				long target = emulated;
+				if(rendered >= target) {
+					if(closing) break;
+					LockSupport.parkNanos(500000);
+					continue;
+				}
+				if(line != null && target - rendered > MAX_LAG) {
+					rendered = target - MAX_LAG;
+				}
+				long r = read;
+				while(r < written) {
+					long e = events[(int) (r % RING)];
+					if((e >> 1) > rendered) break;
+					on = (e & 1) != 0;
+					r++;
+				}
+				read = r;
+
+				if(!on && level == 0) {
+					Arrays.fill(buf, (byte) 0);
+				}
+				else {
+					for(int i = 0; i < SAMPLES_PER_TICK; i++) {
+						if(on && level < RAMP) level++;
+						else if(!on && level > 0) level--;
+						phase += (double) FREQUENCY / SAMPLE_RATE;
+						if(phase >= 1) phase -= 1;
+						int sample = (phase < 0.5 ? AMPLITUDE : -AMPLITUDE) * level / RAMP;
+						buf[i * 2] = (byte) sample;
+						buf[i * 2 + 1] = (byte) (sample >> 8);
+					}
+				}
+				if(line != null) {
+					line.write(buf, 0, buf.length);
+				}
+				else {
+					wav.write(buf);
+					wavBytes += buf.length;
+				}
+				rendered++;
+			}
+			if(line != null) {
+				line.drain();
+				line.close();
+			}
+			else {
+				writeWavHeader();
+				wav.close();
+			}
+		}
+		catch(IOException ex) {
+			System.out.println("Sound stopped: " + ex.getMessage());
+		}
+	}
+
+	private void writeWavHeader() throws IOException {
+		wav.seek(0);
+		wav.writeBytes("RIFF");
+		wav.writeInt(Integer.reverseBytes((int) (36 + wavBytes)));
+		wav.writeBytes("WAVEfmt ");
+		wav.writeInt(Integer.reverseBytes(16));
+		wav.writeShort(Short.reverseBytes((short) 1)); // PCM
+		wav.writeShort(Short.reverseBytes((short) 1)); // Mono
+		wav.writeInt(Integer.reverseBytes(SAMPLE_RATE));
+		wav.writeInt(Integer.reverseBytes(SAMPLE_RATE * 2));
+		wav.writeShort(Short.reverseBytes((short) 2));
+		wav.writeShort(Short.reverseBytes((short) 16));
+		wav.writeBytes("data");
+		wav.writeInt(Integer.reverseBytes((int) wavBytes));
+	}
+}
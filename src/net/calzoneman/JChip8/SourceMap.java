@@ -0,0 +1,103 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps assembly source lines and labels to the addresses they were assembled
+ * to.  Line numbers are 1-based, addresses are absolute (code starts at 0x200).
+ */
+public class SourceMap {
+
+	// line -> { address, length }
+	private TreeMap<Integer, int[]> lines = new TreeMap<Integer, int[]>();
+	private TreeMap<String, Integer> labels = new TreeMap<String, Integer>();
+	private LinkedHashSet<Path> files = new LinkedHashSet<Path>(); // Source files read, the top one first
+
+	// Data is laid out after all code, so its lines are held until placeData()
+	private HashMap<String, ArrayList<int[]>> pendingData = new HashMap<String, ArrayList<int[]>>();
+
+	public void addLine(int line, int address, int length) {
+		lines.put(line, new int[] { address, length });
+	}
+
+	public void addLabel(String name, int address) {
+		labels.put(name, address);
+	}
+
+	public void addDataLine(String label, int line, int offset, int length) {
+		ArrayList<int[]> pending = pendingData.get(label);
+		if(pending == null) {
+			pending = new ArrayList<int[]>();
+			pendingData.put(label, pending);
+		}
+		pending.add(new int[] { line, offset, length });
+	}
+
+	public void placeData(String label, int address) {
+		addLabel(label, address);
+		ArrayList<int[]> pending = pendingData.remove(label);
+		if(pending == null) return;
+		for(int[] p : pending) {
+			addLine(p[0], address + p[1], p[2]);
+		}
+	}
+
+	public void addFile(Path file) {
+		files.add(file);
+	}
+
+	/**
+	 * The absolute paths of the source file and everything it INCLUDEs, whether or not they could be
+	 * read, if the source came from a file
+	 */
+	public LinkedHashSet<Path> getFiles() {
+		return files;
+	}
+
+	public TreeMap<Integer, int[]> getLines() {
+		return lines;
+	}
+
+	public TreeMap<String, Integer> getLabels() {
+		return labels;
+	}
+
+	/**
+	 * Returns the address a line was assembled to, or -1 if it produced no output
+	 */
+	public int getAddress(int line) {
+		int[] entry = lines.get(line);
+		return entry == null ? -1 : entry[0];
+	}
+
+	public void save(String filename) throws IOException {
+		try (PrintWriter pw = new PrintWriter(filename)) {
+			for(Map.Entry<Integer, int[]> e : lines.entrySet()) {
+				pw.println("L " + e.getKey() + " " + Disassembler.hex(e.getValue()[0]) + " " + e.getValue()[1]);
+			}
+			for(Map.Entry<String, Integer> e : labels.entrySet()) {
+				pw.println("S " + e.getKey() + " " + Disassembler.hex(e.getValue()));
+			}
+		}
+	}
+}
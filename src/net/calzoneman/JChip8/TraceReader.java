@@ -0,0 +1,142 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and filters trace files produced by TraceWriter.  Records are visited
+ * oldest first, taking ring wraparound into account.
+ */
+public class TraceReader {
+
+	private MappedByteBuffer buf;
+	private int capacity;
+	private long written;
+
+	// Filters; a range of [0, 0xFFFF] matches everything
+	private int pcLow = 0, pcHigh = 0xFFFF;
+	private int opValue = 0, opMask = 0;
+	private int addrLow = -1, addrHigh = -1;
+
+	public TraceReader(String filename) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+			buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+		buf.order(ByteOrder.BIG_ENDIAN);
+		if(buf.getInt(0) != TraceWriter.MAGIC || buf.getShort(6) != TraceWriter.RECORD_SIZE) {
+			throw new IOException(filename + " is not a JChip8 trace file");
+		}
+		capacity = buf.getInt(8);
+		written = buf.getLong(12);
+	}
+
+	public void setPCRange(int low, int high) {
+		pcLow = low;
+		pcHigh = high;
+	}
+
+	/**
+	 * Sets an opcode pattern such as "DXYN" or "F055".  Hex digits must match,
+	 * anything else is a wildcard nybble.
+	 */
+	public void setOpcodePattern(String pattern) {
+		opValue = 0;
+		opMask = 0;
+		for(int i = 0; i < 4 && i < pattern.length(); i++) {
+			int d = Character.digit(pattern.charAt(i), 16);
+			opValue <<= 4;
+			opMask <<= 4;
+			if(d >= 0) {
+				opValue |= d;
+				opMask |= 0xF;
+			}
+		}
+	}
+
+	/**
+	 * Matches records that write memory within [low, high] or whose I register
+	 * points there.
+	 */
+	public void setAddressRange(int low, int high) {
+		addrLow = low;
+		addrHigh = high;
+	}
+
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * Writes every matching record to out, one per line.  Returns the number of
+	 * records matched.
+	 */
+	public long query(Writer out) throws IOException {
+		long count = Math.min(written, capacity);
+		int slot = (int) (written > capacity ? written % capacity : 0);
+		long matched = 0;
+		StringBuilder sb = new StringBuilder(64);
+		for(long n = 0; n < count; n++) {
+			int pos = TraceWriter.HEADER_SIZE + slot * TraceWriter.RECORD_SIZE;
+			if(++slot == capacity) slot = 0;
+
+			int pc = buf.getShort(pos + 4) & 0xFFFF;
+			if(pc < pcLow || pc > pcHigh) continue;
+			int op = buf.getShort(pos + 6) & 0xFFFF;
+			if((op & opMask) != opValue) continue;
+			int addr = buf.getShort(pos + 10) & 0xFFFF;
+			int len = buf.get(pos + 13) & 0xFF;
+			int I = buf.getShort(pos + 14) & 0xFFFF;
+			if(addrLow >= 0) {
+				boolean write = addr != TraceWriter.NO_ADDRESS && addr <= addrHigh && addr + len - 1 >= addrLow;
+				boolean pointer = I >= addrLow && I <= addrHigh;
+				if(!write && !pointer) continue;
+			}
+
+			sb.setLength(0);
+			sb.append(buf.getInt(pos) & 0xFFFFFFFFL).append("  [0x");
+			appendHex(sb, pc, 3).append("] ");
+			appendHex(sb, op, 4).append("  I=");
+			appendHex(sb, I, 3);
+			int reg = buf.get(pos + 8) & 0xFF;
+			if(reg != TraceWriter.NO_REGISTER) {
+				sb.append("  ").append(Disassembler.regName((byte) reg)).append('=');
+				appendHex(sb, buf.get(pos + 9) & 0xFF, 2);
+			}
+			if(addr != TraceWriter.NO_ADDRESS) {
+				sb.append("  [");
+				appendHex(sb, addr, 3).append("]=");
+				appendHex(sb, buf.get(pos + 12) & 0xFF, 2);
+				if(len > 1) sb.append(" (+").append(len - 1).append(')');
+			}
+			sb.append('\n');
+			out.append(sb);
+			matched++;
+		}
+		out.flush();
+		return matched;
+	}
+
+	private static StringBuilder appendHex(StringBuilder sb, int value, int digits) {
+		for(int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+			sb.append(Character.toUpperCase(Character.forDigit((value >> shift) & 0xF, 16)));
+		}
+		return sb;
+	}
+}
@@ -0,0 +1,138 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends fixed-width execution records to a memory-mapped ring file.
+ *
+ * File layout (big endian):
+ *   Header (32 bytes): magic "C8TR", version, record size, capacity (records),
+ *                      total records written (long)
+ *   Records (16 bytes each):
+ *     0  int   cycle (low 32 bits)
+ *     4  short PC of the instruction
+ *     6  short opcode word
+ *     8  byte  changed register (0xFF if none)
+ *     9  byte  new value of that register
+ *     10 short first memory address written (0xFFFF if none)
+ *     12 byte  value written at that address
+ *     13 byte  number of bytes written
+ *     14 short I after the instruction
+ *
+ * Once capacity is reached the oldest records are overwritten.  record() does
+ * not allocate, so the cost per instruction is a handful of buffer puts.
+ */
+public class TraceWriter {
+
+	public static final int MAGIC = 0x43385452; // "C8TR"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+	public static final int RECORD_SIZE = 16;
+	public static final int DEFAULT_CAPACITY = 1 << 22; // 4M records, 64MB
+
+	public static final int NO_REGISTER = 0xFF;
+	public static final int NO_ADDRESS = 0xFFFF;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buf;
+	private int capacity;
+	private long written = 0;
+	private int slot = 0;
+
+	public TraceWriter(String filename) throws IOException {
+		this(filename, DEFAULT_CAPACITY);
+	}
+
+	public TraceWriter(String filename, int capacity) throws IOException {
+		this.capacity = capacity;
+		file = new RandomAccessFile(filename, "rw");
+		long size = HEADER_SIZE + (long)capacity * RECORD_SIZE;
+		file.setLength(size);
+		buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		buf.order(ByteOrder.BIG_ENDIAN);
+		buf.putInt(0, MAGIC);
+		buf.putShort(4, (short) VERSION);
+		buf.putShort(6, (short) RECORD_SIZE);
+		buf.putInt(8, capacity);
+		buf.putLong(12, 0);
+	}
+
+	/**
+	 * Records one executed instruction.  The changed register and memory write
+	 * are derived from the opcode and read back from the post-execution state;
+	 * writes start at prevI, I before the instruction, since it may move I.
+	 */
+	public void record(long cycle, int pc, int opcode, int prevI, int I, byte[] regs, byte[] memory) {
+		int reg = NO_REGISTER;
+		int addr = NO_ADDRESS;
+		int count = 0;
+
+		int x = (opcode >> 8) & 0xF;
+		switch(opcode >> 12) {
+			case 0x6: case 0x7: case 0x8: case 0xC:
+				reg = x;
+				break;
+			case 0xF:
+				switch(opcode & 0xFF) {
+					case 0x07: case 0x0A: case 0x65:
+						reg = x;
+						break;
+					case 0x33:
+						addr = prevI;
+						count = 3;
+						break;
+					case 0x55:
+						addr = prevI;
+						count = x + 1;
+						break;
+				}
+				break;
+		}
+
+		int pos = HEADER_SIZE + slot * RECORD_SIZE;
+		buf.putInt(pos, (int) cycle);
+		buf.putShort(pos + 4, (short) pc);
+		buf.putShort(pos + 6, (short) opcode);
+		buf.put(pos + 8, (byte) reg);
+		buf.put(pos + 9, reg == NO_REGISTER ? 0 : regs[reg]);
+		buf.putShort(pos + 10, (short) addr);
+		buf.put(pos + 12, (addr != NO_ADDRESS && addr < memory.length) ? memory[addr] : 0);
+		buf.put(pos + 13, (byte) count);
+		buf.putShort(pos + 14, (short) I);
+
+		written++;
+		buf.putLong(12, written);
+		if(++slot == capacity) slot = 0;
+	}
+
+	public long getWritten() {
+		return written;
+	}
+
+	public void close() {
+		buf.force();
+		try {
+			file.close();
+		}
+		catch(IOException ex) {
+			System.out.println("Unable to close trace file");
+		}
+	}
+}
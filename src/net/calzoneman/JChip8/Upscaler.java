@@ -0,0 +1,243 @@
+package net.calzoneman.JChip8;
+
+/******************************************************************************
+ * JChip8 - A free assembler, disassembler, and emulator for the Chip8        *
+ * by Calvin "calzoneman" Montgomery                                          *
+ ******************************************************************************
+ *                                                                            *
+ * This work is licensed under the Creative Commons Attribution 3.0 Unported  *
+ * License. To view a copy of this license, visit                             *
+ * http://creativecommons.org/licenses/by/3.0/ or send a letter to            *
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, *
+ *  94041, USA.                                                               *
+ *                                                                            *
+ ******************************************************************************/
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Post-processing from the display to a raster of any size.  A pixel-art
+ * filter (Scale2x, also known as EPX, Scale3x, or Scale4x as Scale2x twice)
+ * smooths diagonals at a small multiple of the display size; that image is
+ * then stretched to the output size, optionally darkening the bottom of each
+ * display row like the gaps between CRT scanlines.
+ *
+ * The filter runs on at most 128x64 pixels, so only the stretch is split
+ * into bands of rows across a fork-join pool.  Every buffer, including the
+ * output image, is kept until the sizes change.
+ */
+public class Upscaler {
+
+	private static final String[] FILTERS = { "none", "scale2x", "epx", "scale3x", "scale4x" };
+	private static final int[] FACTORS = { 1, 2, 2, 3, 4 };
+
+	/** Plain nearest-neighbour scaling */
+	public static final Upscaler NONE = new Upscaler(1, false);
+
+	private static final ForkJoinPool pool = new ForkJoinPool();
+	private static final int MIN_BAND = 16; // Rows per task, so small outputs aren't split into tiny tasks
+
+	private final int factor;
+	private final boolean scanlines;
+
+	// Reused between frames while the sizes stay the same
+	private int[] scaled = new int[0]; // Filtered display, factor times its size
+	private int[] half = new int[0]; // Scale2x output before the second pass of Scale4x
+	private BufferedImage image = null;
+	private int[] out;
+	private int[] columns = new int[0]; // Filtered column shown in each output column
+	private int[] rows = new int[0]; // Filtered row shown in each output row
+	private boolean[] dark = new boolean[0]; // Output rows in a scanline gap
+	private int lastWidth, lastHeight; // Display size the maps were made for
+
+	public Upscaler(int factor, boolean scanlines) {
+		this.factor = factor;
+		this.scanlines = scanlines;
+	}
+
+	/**
+	 * Parses a spec such as "scale3x" or "scale2x,scanlines".  An empty or null spec is NONE; an
+	 * unknown name is reported and gives null.
+	 */
+	public static Upscaler parse(String spec) {
+		if(spec == null || spec.trim().isEmpty()) return NONE;
+		int factor = 1;
+		boolean scanlines = false;
+		for(String token : spec.toLowerCase().split(",")) {
+			token = token.trim();
+			if(token.equals("scanlines")) {
+				scanlines = true;
+				continue;
+			}
+			int i = 0;
+			while(i < FILTERS.length && !FILTERS[i].equals(token)) {
+				i++;
+			}
+			if(i == FILTERS.length) {
+				System.out.println("Unknown filter '" + token + "'; expected none, scale2x, epx, scale3x, scale4x and/or scanlines");
+				return null;
+			}
+			factor = FACTORS[i];
+		}
+		return factor == 1 && !scanlines ? NONE : new Upscaler(factor, scanlines);
+	}
+
+	/**
+	 * Renders the width x height display in src (one RGB int per pixel, rows stride apart) into an
+	 * outWidth x outHeight image.  The image is reused by the next call of the same size.
+	 */
+	public synchronized BufferedImage render(int[] src, int stride, int width, int height, int outWidth, int outHeight) {
+		outWidth = Math.max(outWidth, 1);
+		outHeight = Math.max(outHeight, 1);
+		int sw = width * factor, sh = height * factor;
+		if(scaled.length != sw * sh) scaled = new int[sw * sh];
+		if(factor == 2) {
+			scale2x(src, stride, width, height, scaled);
+		}
+		else if(factor == 3) {
+			scale3x(src, stride, width, height, scaled);
+		}
+		else if(factor == 4) {
+			if(half.length != sw * sh / 4) half = new int[sw * sh / 4];
+			scale2x(src, stride, width, height, half);
+			scale2x(half, width * 2, width * 2, height * 2, scaled);
+		}
+		else {
+			for(int y = 0; y < height; y++) {
+				System.arraycopy(src, y * stride, scaled, y * width, width);
+			}
+		}
+
+		if(image == null || image.getWidth() != outWidth || image.getHeight() != outHeight || width != lastWidth || height != lastHeight) {
+			if(image == null || image.getWidth() != outWidth || image.getHeight() != outHeight) {
+				image = new BufferedImage(outWidth, outHeight, BufferedImage.TYPE_INT_RGB);
+				out = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+				columns = new int[outWidth];
+				rows = new int[outHeight];
+				dark = new boolean[outHeight];
+			}
+			for(int x = 0; x < outWidth; x++) {
+				columns[x] = (int) ((long) x * sw / outWidth);
+			}
+			for(int y = 0; y < outHeight; y++) {
+				rows[y] = (int) ((long) y * sh / outHeight);
+				// The last third of each display row, once rows are at least 3 output pixels tall
+				int phase = (int) ((long) y * height % outHeight);
+				dark[y] = scanlines && outHeight >= height * 3 && phase * 3 >= outHeight * 2;
+			}
+			lastWidth = width;
+			lastHeight = height;
+		}
+
+		int band = Math.max(MIN_BAND, outHeight / (pool.getParallelism() * 4));
+		pool.invoke(new Stretch(0, outHeight, band, sw, outWidth));
+		return image;
+	}
+
+	/**
+	 * Stretches filtered rows into output rows [from, to)
+	 */
+	private class Stretch extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from, to, band, sw, outWidth;
+
+		public Stretch(int from, int to, int band, int sw, int outWidth) {
+			this.from = from;
+			this.to = to;
+			this.band = band;
+			this.sw = sw;
+			this.outWidth = outWidth;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > band) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Stretch(from, mid, band, sw, outWidth), new Stretch(mid, to, band, sw, outWidth));
+				return;
+			}
+			for(int y = from; y < to; y++) {
+				int row = y * outWidth;
+				// Output rows showing the same filtered row, and not differing in shade, are copies
+				if(y > from && rows[y] == rows[y - 1] && dark[y] == dark[y - 1]) {
+					System.arraycopy(out, row - outWidth, out, row, outWidth);
+					continue;
+				}
+				int base = rows[y] * sw;
+				if(dark[y]) {
+					for(int x = 0; x < outWidth; x++) {
+						out[row + x] = (scaled[base + columns[x]] >> 1) & 0x7F7F7F;
+					}
+				}
+				else {
+					for(int x = 0; x < outWidth; x++) {
+						out[row + x] = scaled[base + columns[x]];
+					}
+				}
+			}
+		}
+	}
+
+	// Scale2x/EPX: each pixel becomes 2x2, taking a neighbour's colour in a corner where two
+	// neighbours agree and the other two don't
+	private static void scale2x(int[] src, int stride, int width, int height, int[] dst) {
+		int dw = width * 2;
+		for(int y = 0; y < height; y++) {
+			int r = y * stride;
+			int up = y > 0 ? r - stride : r, down = y < height - 1 ? r + stride : r;
+			int d = y * 2 * dw;
+			for(int x = 0; x < width; x++) {
+				int l = x > 0 ? x - 1 : x, rt = x < width - 1 ? x + 1 : x;
+				int p = src[r + x], a = src[up + x], b = src[r + rt], c = src[r + l], e = src[down + x];
+				int o = d + x * 2;
+				if(a != e && c != b) {
+					dst[o] = c == a ? c : p;
+					dst[o + 1] = a == b ? b : p;
+					dst[o + dw] = c == e ? c : p;
+					dst[o + dw + 1] = e == b ? b : p;
+				}
+				else {
+					dst[o] = dst[o + 1] = dst[o + dw] = dst[o + dw + 1] = p;
+				}
+			}
+		}
+	}
+
+	// Scale3x (AdvMAME3x): the same idea on a 3x3 block, also shaping the edge centres
+	private static void scale3x(int[] src, int stride, int width, int height, int[] dst) {
+		int dw = width * 3;
+		for(int y = 0; y < height; y++) {
+			int r = y * stride;
+			int up = y > 0 ? r - stride : r, down = y < height - 1 ? r + stride : r;
+			int d = y * 3 * dw;
+			for(int x = 0; x < width; x++) {
+				int l = x > 0 ? x - 1 : x, rt = x < width - 1 ? x + 1 : x;
+				// Neighbourhood: a b c / d e f / g h i
+				int a = src[up + l], b = src[up + x], c = src[up + rt];
+				int dd = src[r + l], e = src[r + x], f = src[r + rt];
+				int g = src[down + l], h = src[down + x], i = src[down + rt];
+				int o = d + x * 3;
+				if(b != h && dd != f) {
+					dst[o] = dd == b ? dd : e;
+					dst[o + 1] = (dd == b && e != c) || (b == f && e != a) ? b : e;
+					dst[o + 2] = b == f ? f : e;
+					dst[o + dw] = (dd == b && e != g) || (dd == h && e != a) ? dd : e;
+					dst[o + dw + 1] = e;
+					dst[o + dw + 2] = (b == f && e != i) || (h == f && e != c) ? f : e;
+					dst[o + 2 * dw] = dd == h ? dd : e;
+					dst[o + 2 * dw + 1] = (dd == h && e != i) || (h == f && e != g) ? h : e;
+					dst[o + 2 * dw + 2] = h == f ? f : e;
+				}
+				else {
+					dst[o] = dst[o + 1] = dst[o + 2] = e;
+					dst[o + dw] = dst[o + dw + 1] = dst[o + dw + 2] = e;
+					dst[o + 2 * dw] = dst[o + 2 * dw + 1] = dst[o + 2 * dw + 2] = e;
+				}
+			}
+		}
+	}
+}
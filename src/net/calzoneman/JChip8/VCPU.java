@@ -18,7 +18,10 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.event.KeyEvent;
-import java.util.Random;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class VCPU extends Canvas {
 	private static final long serialVersionUID = -7577044753877808534L;
@@ -29,19 +32,105 @@ public class VCPU extends Canvas {
 	private short PC = 0x200; // Program counter (program code is addressed at 0x200)
 	private short SP = 0; // Stack pointer
 	private byte DT = 0; // Delay timer
-	private byte ST = 0; // Sound timer (sound not implemented yet)
+	private byte ST = 0; // Sound timer, heard through setSound()
 	
 	private short[] STACK = new short[16];
 	private byte[] memory = new byte[4096];
-	private byte[] videomem = new byte[64 * 32];
+	// Display rows of two 64-bit words, leftmost pixel in the high bit of the first.  In the 64x32 mode
+	// only the first word of the first 32 rows is used, so a sprite row is one rotate and XOR.
+	private long[] display = new long[MAX_HEIGHT * 2];
+	private boolean hires = false; // SUPER-CHIP 128x64 mode
+	private byte[] flags = new byte[8]; // SUPER-CHIP user flags (FX75/FX85)
 	private boolean needsRedraw = true;
 	
-	private Random random = new Random();
+	// Rendered into once per redraw and scaled onto the 256x128 canvas in either mode
+	private transient BufferedImage image = new BufferedImage(MAX_WIDTH, MAX_HEIGHT, BufferedImage.TYPE_INT_RGB);
+	private transient int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+	private transient Upscaler upscaler = null; // Filters the display to the canvas size instead, see setUpscaler()
+	
+	private int random = (int) System.nanoTime() | 1; // xorshift32 state, kept in saved states
 	private InputHandler input = new InputHandler();
 	
-	private boolean keepRunning = true;
+	private volatile boolean keepRunning = true;
+	
+	public static final int MAX_WIDTH = 128;
+	public static final int MAX_HEIGHT = 64;
+	public static final int BIG_FONT = 0x50; // 8x10 SUPER-CHIP digits, after the 4x5 ones at 0
+	
+	// Layout of saveState()/loadState() arrays
+	public static final int STATE_MEMORY = 0;
+	public static final int STATE_VIDEO = 4096; // Display words, 16 bytes per row
+	public static final int STATE_V = STATE_VIDEO + MAX_WIDTH * MAX_HEIGHT / 8;
+	public static final int STATE_STACK = STATE_V + 16;
+	public static final int STATE_I = STATE_STACK + 32;
+	public static final int STATE_PC = STATE_I + 2;
+	public static final int STATE_SP = STATE_PC + 2;
+	public static final int STATE_DT = STATE_SP + 1;
+	public static final int STATE_ST = STATE_DT + 1;
+	public static final int STATE_RANDOM = STATE_ST + 1;
+	public static final int STATE_CYCLES = STATE_RANDOM + 4;
+	public static final int STATE_INPUT = STATE_CYCLES + 8;
+	public static final int STATE_HIRES = STATE_INPUT + 4;
+	public static final int STATE_FLAGS = STATE_HIRES + 1;
+	public static final int STATE_SIZE = STATE_FLAGS + 8;
+
+	public static final int FRAME_SIZE = MAX_WIDTH * MAX_HEIGHT / 8; // Largest packed frame, see packFrame()
+	
+	private long cycles = 0; // Instructions executed since the last reset
+	private TraceWriter trace = null;
+	private SharedState shared = null;
+	private Sound sound = null;
+	private Recorder recorder = null;
+	private Plugins plugins = null; // Only set while some plugin has subscribed to something
+	private int[] writeHooks = null; // Plugins watching each address, see Plugins
+	private boolean soundOn = false;
+	private long ticks = 0; // Timer ticks since the VCPU was created, the clock sound events are stamped with
+	private byte[] coverage = null; // Executed/read/written flags per address, see Coverage
+	private byte[] edges = null; // Control flow edge hit counts, see setEdgeMap()
+	private int prevPC = 0;
+	
+	// Execution engines, selectable with setEngine() and compared against each other by Lockstep
+	public static final int ENGINE_INTERPRETER = 0;
+	public static final int ENGINE_DECODE_CACHED = 1;
+	public static final String[] ENGINE_NAMES = { "interpreter", "cached" };
+	
+	private int engine = ENGINE_INTERPRETER;
+	private int[] decodeCache = null; // Predecoded instruction per address, see decode()
+	
+	// Handler kind to run for each decoded kind under the current quirks, see setQuirks()
+	private Quirks quirks;
+	private final int[] bound = new int[D_COUNT];
+	
+	private byte[] initialMemory = new byte[4096]; // Font and ROM, restored on reset()
+	private String fault = null;
+	private boolean quiet = false;
+	
+	// Debugging: nothing below is checked unless a Debugger has set breakpoints or watchpoints
+	private Debugger debugger = null;
+	private volatile byte[] breakpoints = null; // Stop before executing PC when breakpoints[PC] != 0
+	private int watchPages = 0; // Bit n set if any address in $n00-$nFF is watched
+	private String watchHit = null;
+	
+	// Hot loading: a new ROM image waiting for the emulation thread to pick it up, see hotLoad()
+	private final AtomicReference<PendingRom> pendingRom = new AtomicReference<PendingRom>();
+	
+	private static class PendingRom {
+		final byte[] rom;
+		final boolean restart;
+		
+		PendingRom(byte[] rom, boolean restart) {
+			this.rom = rom;
+			this.restart = restart;
+		}
+	}
 	
 	public VCPU(byte[] rom) {
+		this(rom, Quirks.DEFAULT);
+	}
+	
+	public VCPU(byte[] rom, Quirks quirks) {
+		setQuirks(quirks);
+		
 		// Load the ROM
 		System.arraycopy(rom, 0, memory, 0x200, rom.length);
 		
@@ -70,22 +159,50 @@ public class VCPU extends Canvas {
 						(byte) 0xF0, (byte) 0x80, (byte) 0xF0, (byte) 0x80, (byte) 0xF0 , // E
 						(byte) 0xF0, (byte) 0x80, (byte) 0xF0, (byte) 0x80, (byte) 0x80 }; // F
 		
+		byte[] bigFont = { 0x3C, 0x7E, (byte) 0xE7, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xE7, 0x7E, 0x3C, // 0
+						0x18, 0x38, 0x58, 0x18, 0x18, 0x18, 0x18, 0x18, 0x18, 0x3C, // 1
+						0x3E, 0x7F, (byte) 0xC3, 0x06, 0x0C, 0x18, 0x30, 0x60, (byte) 0xFF, (byte) 0xFF, // 2
+						0x3C, 0x7E, (byte) 0xC3, 0x03, 0x0E, 0x0E, 0x03, (byte) 0xC3, 0x7E, 0x3C, // 3
+						0x06, 0x0E, 0x1E, 0x36, 0x66, (byte) 0xC6, (byte) 0xFF, (byte) 0xFF, 0x06, 0x06, // 4
+						(byte) 0xFF, (byte) 0xFF, (byte) 0xC0, (byte) 0xC0, (byte) 0xFC, (byte) 0xFE, 0x03, (byte) 0xC3, 0x7E, 0x3C, // 5
+						0x3E, 0x7C, (byte) 0xE0, (byte) 0xC0, (byte) 0xFC, (byte) 0xFE, (byte) 0xC3, (byte) 0xC3, 0x7E, 0x3C, // 6
+						(byte) 0xFF, (byte) 0xFF, 0x03, 0x06, 0x0C, 0x18, 0x30, 0x60, 0x60, 0x60, // 7
+						0x3C, 0x7E, (byte) 0xC3, (byte) 0xC3, 0x7E, 0x7E, (byte) 0xC3, (byte) 0xC3, 0x7E, 0x3C, // 8
+						0x3C, 0x7E, (byte) 0xC3, (byte) 0xC3, 0x7F, 0x3F, 0x03, 0x03, 0x3E, 0x7C, // 9
+						0x3C, 0x7E, (byte) 0xC3, (byte) 0xC3, (byte) 0xFF, (byte) 0xFF, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, // A
+						(byte) 0xFC, (byte) 0xFE, (byte) 0xC3, (byte) 0xC3, (byte) 0xFE, (byte) 0xFE, (byte) 0xC3, (byte) 0xC3, (byte) 0xFE, (byte) 0xFC, // B
+						0x3C, 0x7E, (byte) 0xC3, (byte) 0xC0, (byte) 0xC0, (byte) 0xC0, (byte) 0xC0, (byte) 0xC3, 0x7E, 0x3C, // C
+						(byte) 0xFC, (byte) 0xFE, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xC3, (byte) 0xFE, (byte) 0xFC, // D
+						(byte) 0xFF, (byte) 0xFF, (byte) 0xC0, (byte) 0xC0, (byte) 0xFC, (byte) 0xFC, (byte) 0xC0, (byte) 0xC0, (byte) 0xFF, (byte) 0xFF, // E
+						(byte) 0xFF, (byte) 0xFF, (byte) 0xC0, (byte) 0xC0, (byte) 0xFC, (byte) 0xFC, (byte) 0xC0, (byte) 0xC0, (byte) 0xC0, (byte) 0xC0 }; // F
+		
 		System.arraycopy(font, 0, memory, 0, font.length);
+		System.arraycopy(bigFont, 0, memory, BIG_FONT, bigFont.length);
+		System.arraycopy(memory, 0, initialMemory, 0, memory.length);
 	}
 	
 	@Override
 	public void paint(Graphics g) {
-		for(int i = 0; i < 64; i++) {
-			for(int j = 0; j < 32; j++) {
-				if(videomem[j * 64 + i] == 1) {
-					g.setColor(Color.white);
-				}
-				else {
-					g.setColor(Color.black);
-				}
-				g.fillRect(i*4, j*4, 4, 4);
+		int width = getDisplayWidth();
+		int height = getDisplayHeight();
+		int white = Color.white.getRGB();
+		int black = Color.black.getRGB();
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				long word = display[y * 2 + (x >> 6)];
+				pixels[y * MAX_WIDTH + x] = (word << (x & 63)) < 0 ? white : black;
 			}
 		}
+		if(upscaler != null) g.drawImage(upscaler.render(pixels, MAX_WIDTH, width, height, getWidth(), getHeight()), 0, 0, null);
+		else g.drawImage(image, 0, 0, 256, 128, 0, 0, width, height, null);
+	}
+	
+	public int getDisplayWidth() {
+		return hires ? MAX_WIDTH : 64;
+	}
+	
+	public int getDisplayHeight() {
+		return hires ? MAX_HEIGHT : 32;
 	}
 	
 	@Override
@@ -101,7 +218,7 @@ public class VCPU extends Canvas {
 		double _60Hz = 1000000000.0/60;
 		long lastDec = System.nanoTime();
 		
-		while(PC+1 < memory.length && keepRunning) {
+		while(keepRunning) {
 
 			if(needsRedraw) {
 				paint(getGraphics());
@@ -110,169 +227,794 @@ public class VCPU extends Canvas {
 			
 			if(input.keyPressed(KeyEvent.VK_R)) reset();
 			
+			if(pendingRom.get() != null) applyRom();
+			
 			// DT and ST decrease at 60Hz
 			if(System.nanoTime() > lastDec + _60Hz) {
-				if(unsign(DT) > 0) DT--;
-				if(unsign(ST) > 0) ST--;
+				tickTimers();
 				lastDec = System.nanoTime();
 			}
 			
-			byte[] nyb = getNybbles(bytesToShort(memory[PC], memory[PC+1]));
-			PC += 2;
-			short addr = nybblesToAddress(nyb[1], nyb[2], nyb[3]); // For opcodes with a 3-nybble address
-			byte arg = (byte)((nyb[2] << 4) | nyb[3]); // For opcodes with a 1-byte argument
-			
-			switch(nyb[0]) {
-				case 0x0:
-					if(arg == (byte)0xE0) {
-						opCls();
-					}
-					else if(arg == (byte)0xEE) {
-						opRet();
-					}
-					break;
-				case 0x1:
-					opJp(addr);
-					break;
-				case 0x2:
-					opCall(addr);
-					break;
-				case 0x3:
-					opSEConst(nyb[1], arg);
-					break;
-				case 0x4:
-					opSNEConst(nyb[1], arg);
-					break;
-				case 0x5:
-					opSEReg(nyb[1], nyb[2]);
-					break;
-				case 0x6:
-					opLd(nyb[1], arg);
-					break;
-				case 0x7:
-					opAdd(nyb[1], arg);
-					break;
-				case 0x8:
-					switch(nyb[3]) {
-						case 0x0:
-							opLdReg(nyb[1], nyb[2]);
-							break;
-						case 0x1:
-							opOr(nyb[1], nyb[2]);
-							break;
-						case 0x2:
-							opAnd(nyb[1], nyb[2]);
-							break;
-						case 0x3:
-							opXor(nyb[1], nyb[2]);
-							break;
-						case 0x4:
-							opAddReg(nyb[1], nyb[2]);
-							break;
-						case 0x5:
-							opSub(nyb[1], nyb[2]);
-							break;
-						case 0x6:
-							opShr(nyb[1]);
-							break;
-						case 0x7:
-							opSubN(nyb[1], nyb[2]);
-							break;
-						case 0xE:
-							opShl(nyb[1]);
-							break;
-						default: break;
-					}
-					break;
-				case 0x9:
-					opSNEReg(nyb[1], nyb[2]);
-					break;
-				case 0xA:
-					opLdI(addr);
-					break;
-				case 0xB:
-					opJpV0(addr);
-					break;
-				case 0xC:
-					opRnd(nyb[1], arg);
-					break;
-				case 0xD:
-					opDraw(nyb[1], nyb[2], nyb[3]);
-					break;
-				case 0xE:
-					if(arg == (byte)0x9E) {
-						opSkipKey(nyb[1]);
-					}
-					else if(arg == (byte)0xA1) {
-						opSkipNotKey(nyb[1]);
-					}
-					break;
-				case 0xF:
-					switch(arg) {
-						case 0x07:
-							opLdFromDT(nyb[1]);
-							break;
-						case 0x0A:
-							opWaitKey(nyb[1]);
-							break;
-						case 0x15:
-							opLdDT(nyb[1]);
-							break;
-						case 0x18:
-							opLdST(nyb[1]);
-							break;
-						case 0x1E:
-							opAddI(nyb[1]);
-							break;
-						case 0x29:
-							opLdChar(nyb[1]);
-							break;
-						case 0x33:
-							opLdBcd(nyb[1]);
-							break;
-						case 0x55:
-							opStoAllVx(nyb[1]);
-							break;
-						case 0x65:
-							opLdAllVx(nyb[1]);
-							break;
-						default:
-							break;
-					}
-					break;
-				default:
-					System.out.println("Unknown Opcode: " + nyb[0]);
-					break;
-			}
+			step();
 		}
 		
 		System.out.println("Execution ended.");
 		printState();
 	}
 	
+	/**
+	 * Executes a single instruction at PC
+	 */
+	public void step() {
+		if(PC < 0 || PC+1 >= memory.length) {
+			fault("[Chip8] Program counter out of range at $0x" + Integer.toHexString(PC & 0xFFFF));
+			return;
+		}
+		
+		byte[] bp = breakpoints;
+		if(bp != null && bp[PC] != 0) {
+			debugger.stopped("break");
+			if(!keepRunning) return;
+			// The debugger may have moved PC while stopped
+			if(PC < 0 || PC+1 >= memory.length) {
+				fault("[Chip8] Program counter out of range at $0x" + Integer.toHexString(PC & 0xFFFF));
+				return;
+			}
+		}
+		
+		short opcode = bytesToShort(memory[PC], memory[PC+1]);
+		short opPC = PC;
+		short opI = I; // Where FX33/FX55 write, before the MEMORY_I quirk moves I
+		if(coverage != null) coverage[opPC] |= Coverage.EXECUTED;
+		if(edges != null) {
+			edges[((prevPC << 4) ^ opPC) & 0xFFFF]++;
+			prevPC = opPC;
+		}
+		PC += 2;
+		if(decodeCache != null) {
+			executeCached(opPC, opcode);
+		}
+		else {
+			execute(opcode);
+		}
+		
+		cycles++;
+		if(trace != null) {
+			trace.record(cycles, opPC, opcode & 0xFFFF, opI & 0xFFFF, I & 0xFFFF, VREGISTERS, memory);
+		}
+		if(watchHit != null) {
+			String reason = watchHit;
+			watchHit = null;
+			debugger.stopped(reason);
+		}
+	}
+	
+	// Decodes and executes an opcode the straightforward way
+	private void execute(short opcode) {
+		byte[] nyb = getNybbles(opcode);
+		short addr = nybblesToAddress(nyb[1], nyb[2], nyb[3]); // For opcodes with a 3-nybble address
+		byte arg = (byte)((nyb[2] << 4) | nyb[3]); // For opcodes with a 1-byte argument
+		
+		switch(nyb[0]) {
+			case 0x0:
+				if(arg == (byte)0xE0) {
+					opCls();
+				}
+				else if(arg == (byte)0xEE) {
+					opRet();
+				}
+				else if(nyb[1] == 0) {
+					if(nyb[2] == 0xC) opScrollDown(nyb[3]);
+					else if(arg == (byte)0xFB) opScrollRight();
+					else if(arg == (byte)0xFC) opScrollLeft();
+					else if(arg == (byte)0xFD) opExit();
+					else if(arg == (byte)0xFE) opResolution(false);
+					else if(arg == (byte)0xFF) opResolution(true);
+				}
+				break;
+			case 0x1:
+				opJp(addr);
+				break;
+			case 0x2:
+				opCall(addr);
+				break;
+			case 0x3:
+				opSEConst(nyb[1], arg);
+				break;
+			case 0x4:
+				opSNEConst(nyb[1], arg);
+				break;
+			case 0x5:
+				opSEReg(nyb[1], nyb[2]);
+				break;
+			case 0x6:
+				opLd(nyb[1], arg);
+				break;
+			case 0x7:
+				opAdd(nyb[1], arg);
+				break;
+			case 0x8:
+				switch(nyb[3]) {
+					case 0x0:
+						opLdReg(nyb[1], nyb[2]);
+						break;
+					case 0x1:
+						dispatch(bound[D_OR], opcode);
+						break;
+					case 0x2:
+						dispatch(bound[D_AND], opcode);
+						break;
+					case 0x3:
+						dispatch(bound[D_XOR], opcode);
+						break;
+					case 0x4:
+						opAddReg(nyb[1], nyb[2]);
+						break;
+					case 0x5:
+						opSub(nyb[1], nyb[2]);
+						break;
+					case 0x6:
+						dispatch(bound[D_SHR], opcode);
+						break;
+					case 0x7:
+						opSubN(nyb[1], nyb[2]);
+						break;
+					case 0xE:
+						dispatch(bound[D_SHL], opcode);
+						break;
+					default: break;
+				}
+				break;
+			case 0x9:
+				opSNEReg(nyb[1], nyb[2]);
+				break;
+			case 0xA:
+				opLdI(addr);
+				break;
+			case 0xB:
+				dispatch(bound[D_JP_V0], opcode);
+				break;
+			case 0xC:
+				opRnd(nyb[1], arg);
+				break;
+			case 0xD:
+				dispatch(bound[D_DRW], opcode);
+				break;
+			case 0xE:
+				if(arg == (byte)0x9E) {
+					opSkipKey(nyb[1]);
+				}
+				else if(arg == (byte)0xA1) {
+					opSkipNotKey(nyb[1]);
+				}
+				break;
+			case 0xF:
+				switch(arg) {
+					case 0x07:
+						opLdFromDT(nyb[1]);
+						break;
+					case 0x0A:
+						opWaitKey(nyb[1]);
+						break;
+					case 0x15:
+						opLdDT(nyb[1]);
+						break;
+					case 0x18:
+						opLdST(nyb[1]);
+						break;
+					case 0x1E:
+						opAddI(nyb[1]);
+						break;
+					case 0x29:
+						opLdChar(nyb[1]);
+						break;
+					case 0x30:
+						opLdBigChar(nyb[1]);
+						break;
+					case 0x33:
+						opLdBcd(nyb[1]);
+						break;
+					case 0x55:
+						dispatch(bound[D_STO_ALL], opcode);
+						break;
+					case 0x65:
+						dispatch(bound[D_LD_ALL], opcode);
+						break;
+					case 0x75:
+						opStoFlags(nyb[1]);
+						break;
+					case (byte)0x85:
+						opLdFlags(nyb[1]);
+						break;
+					default:
+						break;
+				}
+				break;
+			default:
+				System.out.println("Unknown Opcode: " + nyb[0]);
+				break;
+		}
+	}
+	
+	// Decoded instruction kinds for the decode cache; 0 marks an address that hasn't been decoded
+	private static final int D_NOP = 1, D_CLS = 2, D_RET = 3, D_JP = 4, D_CALL = 5, D_SE_CONST = 6, D_SNE_CONST = 7,
+			D_SE_REG = 8, D_LD = 9, D_ADD = 10, D_LD_REG = 11, D_OR = 12, D_AND = 13, D_XOR = 14, D_ADD_REG = 15,
+			D_SUB = 16, D_SHR = 17, D_SUBN = 18, D_SHL = 19, D_SNE_REG = 20, D_LD_I = 21, D_JP_V0 = 22, D_RND = 23,
+			D_DRW = 24, D_SKP = 25, D_SKNP = 26, D_LD_FROM_DT = 27, D_LD_K = 28, D_LD_DT = 29, D_LD_ST = 30,
+			D_ADD_I = 31, D_LD_F = 32, D_LD_B = 33, D_STO_ALL = 34, D_LD_ALL = 35, D_SCD = 36, D_SCR = 37, D_SCL = 38,
+			D_EXIT = 39, D_LOW = 40, D_HIGH = 41, D_LD_HF = 42, D_STO_R = 43, D_LD_R = 44;
+	// Quirk variants, only ever reached through bound[]
+	private static final int D_OR_VF = 45, D_AND_VF = 46, D_XOR_VF = 47, D_SHR_VY = 48, D_SHL_VY = 49,
+			D_JP_VX = 50, D_DRW_CLIP = 51, D_STO_ALL_I = 52, D_LD_ALL_I = 53, D_COUNT = 54;
+	
+	/**
+	 * Binds the handlers for instructions whose meaning depends on quirks.  Done once when the VCPU
+	 * is built (or when a netplay host dictates quirks); execution only follows the bound table.
+	 */
+	public void setQuirks(Quirks quirks) {
+		this.quirks = quirks;
+		for(int kind = 0; kind < D_COUNT; kind++) {
+			bound[kind] = kind;
+		}
+		if(quirks.has(Quirks.VF_RESET)) {
+			bound[D_OR] = D_OR_VF;
+			bound[D_AND] = D_AND_VF;
+			bound[D_XOR] = D_XOR_VF;
+		}
+		if(!quirks.has(Quirks.SHIFT_VX)) {
+			bound[D_SHR] = D_SHR_VY;
+			bound[D_SHL] = D_SHL_VY;
+		}
+		if(quirks.has(Quirks.JUMP_VX)) bound[D_JP_V0] = D_JP_VX;
+		if(quirks.has(Quirks.CLIP)) bound[D_DRW] = D_DRW_CLIP;
+		if(quirks.has(Quirks.MEMORY_I)) {
+			bound[D_STO_ALL] = D_STO_ALL_I;
+			bound[D_LD_ALL] = D_LD_ALL_I;
+		}
+		if(decodeCache != null) Arrays.fill(decodeCache, 0);
+	}
+	
+	public Quirks getQuirks() {
+		return quirks;
+	}
+	
+	// Returns (kind << 16) | (opcode & 0xFFF) for the decode cache, with kind bound to the current quirks
+	private int decode(int opcode) {
+		int kind = D_NOP;
+		switch(opcode >> 12) {
+			case 0x0:
+				if(opcode == 0x00E0) kind = D_CLS;
+				else if(opcode == 0x00EE) kind = D_RET;
+				else if((opcode & 0xFFF0) == 0x00C0) kind = D_SCD;
+				else if(opcode == 0x00FB) kind = D_SCR;
+				else if(opcode == 0x00FC) kind = D_SCL;
+				else if(opcode == 0x00FD) kind = D_EXIT;
+				else if(opcode == 0x00FE) kind = D_LOW;
+				else if(opcode == 0x00FF) kind = D_HIGH;
+				break;
+			case 0x1: kind = D_JP; break;
+			case 0x2: kind = D_CALL; break;
+			case 0x3: kind = D_SE_CONST; break;
+			case 0x4: kind = D_SNE_CONST; break;
+			case 0x5: kind = D_SE_REG; break;
+			case 0x6: kind = D_LD; break;
+			case 0x7: kind = D_ADD; break;
+			case 0x8:
+				switch(opcode & 0xF) {
+					case 0x0: kind = D_LD_REG; break;
+					case 0x1: kind = D_OR; break;
+					case 0x2: kind = D_AND; break;
+					case 0x3: kind = D_XOR; break;
+					case 0x4: kind = D_ADD_REG; break;
+					case 0x5: kind = D_SUB; break;
+					case 0x6: kind = D_SHR; break;
+					case 0x7: kind = D_SUBN; break;
+					case 0xE: kind = D_SHL; break;
+				}
+				break;
+			case 0x9: kind = D_SNE_REG; break;
+			case 0xA: kind = D_LD_I; break;
+			case 0xB: kind = D_JP_V0; break;
+			case 0xC: kind = D_RND; break;
+			case 0xD: kind = D_DRW; break;
+			case 0xE:
+				if((opcode & 0xFF) == 0x9E) kind = D_SKP;
+				else if((opcode & 0xFF) == 0xA1) kind = D_SKNP;
+				break;
+			case 0xF:
+				switch(opcode & 0xFF) {
+					case 0x07: kind = D_LD_FROM_DT; break;
+					case 0x0A: kind = D_LD_K; break;
+					case 0x15: kind = D_LD_DT; break;
+					case 0x18: kind = D_LD_ST; break;
+					case 0x1E: kind = D_ADD_I; break;
+					case 0x29: kind = D_LD_F; break;
+					case 0x30: kind = D_LD_HF; break;
+					case 0x33: kind = D_LD_B; break;
+					case 0x55: kind = D_STO_ALL; break;
+					case 0x65: kind = D_LD_ALL; break;
+					case 0x75: kind = D_STO_R; break;
+					case 0x85: kind = D_LD_R; break;
+				}
+				break;
+		}
+		return (bound[kind] << 16) | (opcode & 0xFFF);
+	}
+	
+	// Executes through the decode cache: one flat switch on a predecoded kind instead of nested decoding
+	private void executeCached(int pc, short opcode) {
+		int entry = decodeCache[pc];
+		if(entry == 0) {
+			entry = decode(opcode & 0xFFFF);
+			decodeCache[pc] = entry;
+		}
+		dispatch(entry);
+	}
+	
+	// Runs the handler of the given kind for opcode, for the interpreter's quirk-dependent instructions
+	private void dispatch(int kind, short opcode) {
+		dispatch((kind << 16) | (opcode & 0xFFF));
+	}
+	
+	private void dispatch(int entry) {
+		byte x = (byte) ((entry >> 8) & 0xF);
+		byte y = (byte) ((entry >> 4) & 0xF);
+		short addr = (short) (entry & 0xFFF);
+		byte arg = (byte) entry;
+		switch(entry >>> 16) {
+			case D_CLS: opCls(); break;
+			case D_RET: opRet(); break;
+			case D_JP: opJp(addr); break;
+			case D_CALL: opCall(addr); break;
+			case D_SE_CONST: opSEConst(x, arg); break;
+			case D_SNE_CONST: opSNEConst(x, arg); break;
+			case D_SE_REG: opSEReg(x, y); break;
+			case D_LD: opLd(x, arg); break;
+			case D_ADD: opAdd(x, arg); break;
+			case D_LD_REG: opLdReg(x, y); break;
+			case D_OR: opOr(x, y); break;
+			case D_AND: opAnd(x, y); break;
+			case D_XOR: opXor(x, y); break;
+			case D_ADD_REG: opAddReg(x, y); break;
+			case D_SUB: opSub(x, y); break;
+			case D_SHR: opShr(x, x); break;
+			case D_SUBN: opSubN(x, y); break;
+			case D_SHL: opShl(x, x); break;
+			case D_SNE_REG: opSNEReg(x, y); break;
+			case D_LD_I: opLdI(addr); break;
+			case D_JP_V0: opJpV0(addr); break;
+			case D_RND: opRnd(x, arg); break;
+			case D_DRW: opDraw(x, y, (byte) (entry & 0xF), true); break;
+			case D_SKP: opSkipKey(x); break;
+			case D_SKNP: opSkipNotKey(x); break;
+			case D_LD_FROM_DT: opLdFromDT(x); break;
+			case D_LD_K: opWaitKey(x); break;
+			case D_LD_DT: opLdDT(x); break;
+			case D_LD_ST: opLdST(x); break;
+			case D_ADD_I: opAddI(x); break;
+			case D_LD_F: opLdChar(x); break;
+			case D_LD_B: opLdBcd(x); break;
+			case D_STO_ALL: opStoAllVx(x); break;
+			case D_LD_ALL: opLdAllVx(x); break;
+			case D_SCD: opScrollDown(entry & 0xF); break;
+			case D_SCR: opScrollRight(); break;
+			case D_SCL: opScrollLeft(); break;
+			case D_EXIT: opExit(); break;
+			case D_LOW: opResolution(false); break;
+			case D_HIGH: opResolution(true); break;
+			case D_LD_HF: opLdBigChar(x); break;
+			case D_STO_R: opStoFlags(x); break;
+			case D_LD_R: opLdFlags(x); break;
+			case D_OR_VF: opOr(x, y); VREGISTERS[0xF] = 0; break;
+			case D_AND_VF: opAnd(x, y); VREGISTERS[0xF] = 0; break;
+			case D_XOR_VF: opXor(x, y); VREGISTERS[0xF] = 0; break;
+			case D_SHR_VY: opShr(x, y); break;
+			case D_SHL_VY: opShl(x, y); break;
+			case D_JP_VX: opJpVx(addr); break;
+			case D_DRW_CLIP: opDraw(x, y, (byte) (entry & 0xF), false); break;
+			case D_STO_ALL_I: opStoAllVx(x); I += x + 1; break;
+			case D_LD_ALL_I: opLdAllVx(x); I += x + 1; break;
+			default: break;
+		}
+	}
+	
+	// Forgets decoded instructions overlapping a memory write to [addr, addr+length)
+	private void invalidate(int addr, int length) {
+		if(decodeCache == null) return;
+		for(int i = Math.max(addr - 1, 0); i < addr + length && i < decodeCache.length; i++) {
+			decodeCache[i] = 0;
+		}
+	}
+
+	
+	/**
+	 * Replaces the ROM of a machine running in run().  Bytes that differ from the old ROM image are
+	 * patched into memory and everything else is kept, unless restart is set, in which case the
+	 * machine is reset onto the new ROM.  Safe to call from any thread.  If an earlier ROM hasn't been
+	 * picked up yet, this one replaces it but still restarts if either asked to.
+	 */
+	public void hotLoad(byte[] rom, boolean restart) {
+		while(true) {
+			PendingRom previous = pendingRom.get();
+			PendingRom next = new PendingRom(rom, restart || (previous != null && previous.restart));
+			if(pendingRom.compareAndSet(previous, next)) return;
+		}
+	}
+	
+	// Runs on the emulation thread between instructions
+	private void applyRom() {
+		PendingRom pending = pendingRom.getAndSet(null);
+		if(pending == null) return;
+		byte[] rom = pending.rom;
+		for(int i = 0x200; i < memory.length; i++) {
+			byte b = i - 0x200 < rom.length ? rom[i - 0x200] : 0;
+			if(initialMemory[i] == b) continue;
+			initialMemory[i] = b;
+			memory[i] = b;
+			invalidate(i, 1);
+		}
+		if(pending.restart) reset();
+	}
+	
+	/**
+	 * Executes one frame's worth of instructions and then decrements the timers, independent of wall-clock time.
+	 * Returns false once the VCPU has stopped.
+	 */
+	public boolean runFrame(int instructions) {
+		for(int i = 0; i < instructions && keepRunning; i++) {
+			step();
+		}
+		tickTimers();
+		return keepRunning;
+	}
+	
+	// Called at 60Hz, real or emulated
+	void tickTimers() {
+		if(unsign(DT) > 0) DT--;
+		if(unsign(ST) > 0) ST--;
+		ticks++;
+		if(sound != null) {
+			updateSound();
+			sound.tick(ticks);
+		}
+		if(shared != null) shared.publish(this);
+		if(recorder != null) recorder.capture(this, ticks - 1);
+		if(plugins != null) plugins.endFrame(ticks - 1, input.getState() & 0xFFFF);
+	}
+	
 	public void reset() {
-		VREGISTERS = new byte[16];
-		videomem = new byte[64*32];
-		STACK = new short[16];
+		System.arraycopy(initialMemory, 0, memory, 0, memory.length);
+		if(decodeCache != null) Arrays.fill(decodeCache, 0);
+		Arrays.fill(VREGISTERS, (byte) 0);
+		Arrays.fill(display, 0);
+		Arrays.fill(flags, (byte) 0);
+		hires = false;
+		Arrays.fill(STACK, (short) 0);
 		needsRedraw = true;
 		I = 0;
 		PC = 0x200;
 		SP = 0;
 		DT = 0;
 		ST = 0;
-		System.out.println("Virtual Machine Reset");
+		cycles = 0;
+		prevPC = 0;
+		fault = null;
+		keepRunning = true;
+		if(sound != null) updateSound();
+		if(!quiet) System.out.println("Virtual Machine Reset");
+	}
+	
+	/**
+	 * Copies the complete machine state into state, which must be STATE_SIZE bytes.  Together with
+	 * loadState() this lets a single VCPU explore many machines without constructing new ones.
+	 */
+	public void saveState(byte[] state) {
+		System.arraycopy(memory, 0, state, STATE_MEMORY, 4096);
+		for(int i = 0; i < display.length; i++) {
+			for(int k = 0; k < 8; k++) {
+				state[STATE_VIDEO + i*8 + k] = (byte) (display[i] >> (56 - k*8));
+			}
+		}
+		System.arraycopy(VREGISTERS, 0, state, STATE_V, 16);
+		for(int i = 0; i < 16; i++) {
+			state[STATE_STACK + i*2] = (byte) (STACK[i] >> 8);
+			state[STATE_STACK + i*2 + 1] = (byte) STACK[i];
+		}
+		state[STATE_I] = (byte) (I >> 8);
+		state[STATE_I + 1] = (byte) I;
+		state[STATE_PC] = (byte) (PC >> 8);
+		state[STATE_PC + 1] = (byte) PC;
+		state[STATE_SP] = (byte) SP;
+		state[STATE_DT] = DT;
+		state[STATE_ST] = ST;
+		for(int i = 0; i < 4; i++) {
+			state[STATE_RANDOM + i] = (byte) (random >> (24 - i*8));
+		}
+		for(int i = 0; i < 8; i++) {
+			state[STATE_CYCLES + i] = (byte) (cycles >> (56 - i*8));
+		}
+		int in = input.getState();
+		for(int i = 0; i < 4; i++) {
+			state[STATE_INPUT + i] = (byte) (in >> (24 - i*8));
+		}
+		state[STATE_HIRES] = (byte) (hires ? 1 : 0);
+		System.arraycopy(flags, 0, state, STATE_FLAGS, flags.length);
+	}
+	
+	/**
+	 * Restores a state written by saveState().  The VCPU is left running with no fault.
+	 */
+	public void loadState(byte[] state) {
+		System.arraycopy(state, STATE_MEMORY, memory, 0, 4096);
+		if(decodeCache != null) Arrays.fill(decodeCache, 0);
+		for(int i = 0; i < display.length; i++) {
+			display[i] = ((long) readInt(state, STATE_VIDEO + i*8) << 32) | (readInt(state, STATE_VIDEO + i*8 + 4) & 0xFFFFFFFFL);
+		}
+		System.arraycopy(state, STATE_V, VREGISTERS, 0, 16);
+		for(int i = 0; i < 16; i++) {
+			STACK[i] = bytesToShort(state[STATE_STACK + i*2], state[STATE_STACK + i*2 + 1]);
+		}
+		I = bytesToShort(state[STATE_I], state[STATE_I + 1]);
+		PC = bytesToShort(state[STATE_PC], state[STATE_PC + 1]);
+		SP = state[STATE_SP];
+		DT = state[STATE_DT];
+		ST = state[STATE_ST];
+		random = readInt(state, STATE_RANDOM);
+		cycles = ((long) readInt(state, STATE_CYCLES) << 32) | (readInt(state, STATE_CYCLES + 4) & 0xFFFFFFFFL);
+		input.setState(readInt(state, STATE_INPUT));
+		hires = state[STATE_HIRES] != 0;
+		System.arraycopy(state, STATE_FLAGS, flags, 0, flags.length);
+		needsRedraw = true;
+		fault = null;
+		keepRunning = true;
+		if(sound != null) updateSound();
+	}
+	
+	/**
+	 * Packs the display into frame, getDisplayWidth() / 8 bytes per row with the leftmost pixel in the
+	 * high bit (the same order as sprite data).  Returns the number of bytes written, at most FRAME_SIZE.
+	 */
+	public int packFrame(byte[] frame) {
+		int words = getDisplayWidth() / 64;
+		int p = 0;
+		for(int y = 0; y < getDisplayHeight(); y++) {
+			for(int w = 0; w < words; w++) {
+				long word = display[y * 2 + w];
+				for(int k = 0; k < 8; k++) {
+					frame[p++] = (byte) (word >> (56 - k*8));
+				}
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Replaces the display with a frame packed by packFrame() at the given resolution (64x32 or
+	 * 128x64) and repaints, for viewers that show another machine's display instead of executing code
+	 */
+	public void showFrame(byte[] frame, int width, int height) {
+		hires = width == MAX_WIDTH;
+		Arrays.fill(display, 0);
+		int words = getDisplayWidth() / 64;
+		int p = 0;
+		for(int y = 0; y < getDisplayHeight(); y++) {
+			for(int w = 0; w < words; w++) {
+				long word = 0;
+				for(int k = 0; k < 8; k++) {
+					word = (word << 8) | (frame[p++] & 0xFF);
+				}
+				display[y * 2 + w] = word;
+			}
+		}
+		Graphics g = getGraphics();
+		if(g != null) paint(g);
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 24) | ((b[off+1] & 0xFF) << 16) | ((b[off+2] & 0xFF) << 8) | (b[off+3] & 0xFF);
+	}
+	
+	public void setEngine(int engine) {
+		this.engine = engine;
+		decodeCache = engine == ENGINE_DECODE_CACHED ? new int[memory.length] : null;
+	}
+	
+	public int getEngine() {
+		return engine;
+	}
+	
+	public void setSeed(long seed) {
+		random = (int) (seed ^ (seed >>> 32));
+		if(random == 0) random = 0x9E3779B9; // xorshift never leaves 0
+	}
+	
+	/**
+	 * Suppresses console messages, for headless tools that run many machines
+	 */
+	public void setQuiet(boolean quiet) {
+		this.quiet = quiet;
+	}
+	
+	public InputHandler getInput() {
+		return input;
+	}
+	
+	// Address of the next instruction, for tools that profile execution
+	int getPC() {
+		return PC & 0xFFFF;
+	}
+	
+	public boolean isRunning() {
+		return keepRunning;
+	}
+	
+	/**
+	 * Returns the reason execution stopped on an error, or null if it hasn't
+	 */
+	public String getFault() {
+		return fault;
+	}
+	
+	/**
+	 * Counts hits on each control flow edge (previous PC -> PC) into a 64K map, AFL style.  Null disables it.
+	 */
+	public void setEdgeMap(byte[] edges) {
+		this.edges = edges;
+	}
+	
+	/**
+	 * Records every executed instruction to the given trace, or stops tracing if null
+	 */
+	public void setTrace(TraceWriter trace) {
+		this.trace = trace;
+	}
+	
+	/**
+	 * Publishes the machine state at every timer tick for other processes to read, or stops if null
+	 */
+	public void setSharedState(SharedState shared) {
+		this.shared = shared;
+	}
+	
+	/**
+	 * Records the display at every timer tick into recorder, or stops recording if null
+	 */
+	public void setRecorder(Recorder recorder) {
+		this.recorder = recorder;
+	}
+	
+	/**
+	 * Sends the events the registered plugins subscribed to, once per timer tick, or stops if null
+	 */
+	public void setPlugins(Plugins plugins) {
+		this.plugins = plugins != null && plugins.isSubscribed() ? plugins : null;
+		writeHooks = this.plugins != null ? plugins.getWriteMap() : null;
+	}
+	
+	/**
+	 * Paints through upscaler at whatever size the canvas is, or at 256x128 if null
+	 */
+	public void setUpscaler(Upscaler upscaler) {
+		this.upscaler = upscaler;
+		needsRedraw = true;
+	}
+	
+	/**
+	 * Plays the sound timer's tone through sound, or silences it if null
+	 */
+	public void setSound(Sound sound) {
+		this.sound = sound;
+		soundOn = false;
+	}
+	
+	// Tells the sound generator when the tone should start or stop
+	private void updateSound() {
+		boolean on = ST != 0;
+		if(on != soundOn) {
+			soundOn = on;
+			sound.event(ticks, on);
+		}
+	}
+	
+	/**
+	 * Marks executed, read and written addresses in the given coverage, or stops recording if null
+	 */
+	public void setCoverage(Coverage coverage) {
+		this.coverage = coverage == null ? null : coverage.getBitmap();
+	}
+	
+	/**
+	 * Attaches a debugger, which is called back from step() on breakpoints and watchpoints
+	 */
+	public void setDebugger(Debugger debugger) {
+		this.debugger = debugger;
+	}
+	
+	/**
+	 * Sets the 4096-entry breakpoint map, or null to disable breakpoint checks entirely
+	 */
+	void setBreakpoints(byte[] breakpoints) {
+		this.breakpoints = breakpoints;
+	}
+	
+	/**
+	 * Sets which 256-byte pages contain watchpoints; accesses elsewhere are never reported
+	 */
+	void setWatchPages(int pages) {
+		this.watchPages = pages;
+	}
+	
+	// Asks the debugger about an access to [addr, addr+length) touching a watched page
+	private void checkWatch(int addr, int length, boolean write) {
+		int first = (addr >> 8) & 0xF;
+		int last = ((addr + length - 1) >> 8) & 0xF;
+		for(int page = first; page <= last; page++) {
+			if((watchPages & (1 << page)) != 0) {
+				String hit = debugger.watched(addr, length, write);
+				if(hit != null) watchHit = hit;
+				return;
+			}
+		}
+	}
+	
+	// Tells the plugins watching addr about the write the current instruction made to it
+	private void hookWrite(int addr) {
+		int watchers = writeHooks[addr];
+		if(watchers != 0) plugins.write(watchers, addr, memory[addr], (PC - 2) & 0xFFFF);
 	}
 	
 	public void die(String message) {
 		keepRunning = false;
-		System.out.println(message);
+		if(!quiet) System.out.println(message);
+	}
+	
+	private void fault(String message) {
+		fault = message;
+		if(plugins != null) plugins.fault(message, PC & 0xFFFF);
+		die(message);
 	}
 	
 	// 0x00E0
 	private void opCls() {
-		for(int i = 0; i < 64*32; i++) {
-			videomem[i] = 0;
+		Arrays.fill(display, 0);
+		needsRedraw = true;
+	}
+	
+	// 0x00CN (SUPER-CHIP): scroll down n rows
+	private void opScrollDown(int n) {
+		int rows = Math.min(n, getDisplayHeight());
+		System.arraycopy(display, 0, display, rows * 2, (getDisplayHeight() - rows) * 2);
+		Arrays.fill(display, 0, rows * 2, 0);
+		needsRedraw = true;
+	}
+	
+	// 0x00FB (SUPER-CHIP): scroll right 4 pixels
+	private void opScrollRight() {
+		for(int p = 0; p < getDisplayHeight() * 2; p += 2) {
+			if(hires) display[p + 1] = (display[p + 1] >>> 4) | (display[p] << 60);
+			display[p] >>>= 4;
+		}
+		needsRedraw = true;
+	}
+	
+	// 0x00FC (SUPER-CHIP): scroll left 4 pixels
+	private void opScrollLeft() {
+		for(int p = 0; p < getDisplayHeight() * 2; p += 2) {
+			display[p] = (display[p] << 4) | (hires ? display[p + 1] >>> 60 : 0);
+			if(hires) display[p + 1] <<= 4;
 		}
+		needsRedraw = true;
+	}
+	
+	// 0x00FD (SUPER-CHIP)
+	private void opExit() {
+		die("Program exited");
+	}
+	
+	// 0x00FE and 0x00FF (SUPER-CHIP): switch to 64x32 or 128x64, clearing the display
+	private void opResolution(boolean hires) {
+		this.hires = hires;
+		opCls();
 	}
 	
 	// 0x00EE
@@ -280,7 +1022,7 @@ public class VCPU extends Canvas {
 		PC = STACK[SP];
 		STACK[SP] = 0;
 		if(SP - 1 < 0) {
-			die("[Chip8] Stack underflow at $0x" + Integer.toHexString(PC));
+			fault("[Chip8] Stack underflow at $0x" + Integer.toHexString(PC));
 			return;
 		}
 		SP--;
@@ -294,7 +1036,7 @@ public class VCPU extends Canvas {
 	// 0x2NNN
 	private void opCall(short addr) {
 		if(SP + 1 >= STACK.length) {
-			die("[Chip8] Stack overflow at $0x" + Integer.toHexString(PC));
+			fault("[Chip8] Stack overflow at $0x" + Integer.toHexString(PC));
 			return;
 		}
 		SP++;
@@ -350,37 +1092,39 @@ public class VCPU extends Canvas {
 		VREGISTERS[x] ^= VREGISTERS[y];
 	}
 	
-	// 0x8XY4
+	// 0x8XY4.  VF is written last, so it holds the carry even when X is F.
 	private void opAddReg(byte x, byte y) {
-		if(unsign(VREGISTERS[x]) + unsign(VREGISTERS[y]) > 255) VREGISTERS[0xF] = 0x1;
-		else VREGISTERS[0xF] = 0;
-		VREGISTERS[x] += VREGISTERS[y];
+		int sum = unsign(VREGISTERS[x]) + unsign(VREGISTERS[y]);
+		VREGISTERS[x] = (byte) sum;
+		VREGISTERS[0xF] = (byte) (sum >> 8);
 	}
 	
-	// 0x8XY5
+	// 0x8XY5: VF = 1 when there is no borrow
 	private void opSub(byte x, byte y) {
-		if(unsign(VREGISTERS[x]) < unsign(VREGISTERS[y])) VREGISTERS[0xF] = 0x1;
-		else VREGISTERS[0xF] = 0;
+		byte noBorrow = (byte) (unsign(VREGISTERS[x]) >= unsign(VREGISTERS[y]) ? 1 : 0);
 		VREGISTERS[x] -= VREGISTERS[y];
+		VREGISTERS[0xF] = noBorrow;
 	}
 	
-	// 0x8XY6
-	private void opShr(byte x) {
-		VREGISTERS[0xF] = (byte) (VREGISTERS[x] & 0xFE);
-		VREGISTERS[x] >>= 1;
+	// 0x8XY6: VX = VY >> 1, VF = the bit shifted out.  Called with y = x for the SHIFT_VX quirk.
+	private void opShr(byte x, byte y) {
+		int value = unsign(VREGISTERS[y]);
+		VREGISTERS[x] = (byte) (value >> 1);
+		VREGISTERS[0xF] = (byte) (value & 1);
 	}
 	
-	// 0x8XY7
+	// 0x8XY7: VF = 1 when there is no borrow
 	private void opSubN(byte x, byte y) {
-		if(unsign(VREGISTERS[x]) > unsign(VREGISTERS[y])) VREGISTERS[0xF] = 1;
-		else VREGISTERS[0xF] = 0;
+		byte noBorrow = (byte) (unsign(VREGISTERS[y]) >= unsign(VREGISTERS[x]) ? 1 : 0);
 		VREGISTERS[x] = (byte) (VREGISTERS[y] - VREGISTERS[x]);
+		VREGISTERS[0xF] = noBorrow;
 	}
 	
-	// 0x8XYE
-	private void opShl(byte x) {
-		VREGISTERS[0xF] = (byte)((VREGISTERS[x] & 0x7F) >> 7);
-		VREGISTERS[x] <<= 1;
+	// 0x8XYE: VX = VY << 1, VF = the bit shifted out.  Called with y = x for the SHIFT_VX quirk.
+	private void opShl(byte x, byte y) {
+		int value = unsign(VREGISTERS[y]);
+		VREGISTERS[x] = (byte) (value << 1);
+		VREGISTERS[0xF] = (byte) (value >> 7);
 	}
 	
 	// 0x9XY0
@@ -395,55 +1139,81 @@ public class VCPU extends Canvas {
 	
 	// 0xBNNN
 	private void opJpV0(short addr) {
-		opJp((short) (addr + VREGISTERS[0]));
+		opJp((short) (addr + unsign(VREGISTERS[0])));
+	}
+	
+	// 0xBXNN (JUMP_VX quirk)
+	private void opJpVx(short addr) {
+		opJp((short) (addr + unsign(VREGISTERS[addr >> 8])));
 	}
 	
 	// 0xCXKK
 	private void opRnd(byte x, byte arg) {
-		byte rand = (byte)(random.nextInt(255) & arg);
+		random ^= random << 13;
+		random ^= random >>> 17;
+		random ^= random << 5;
+		byte rand = (byte)(random & arg);
 		VREGISTERS[x] = rand;
 	}
 	
-	// 0xDXYN
-	private void opDraw(byte x, byte y, byte height) {
-		int startX = unsign(VREGISTERS[x]);
-		int startY = unsign(VREGISTERS[y]);
-				
-		int pX = startX;
-		int pY = startY;
-		
-		for(int j = 0; j < height; j++) {
-			for(int i = 0; i < 8; i++) {
-				if(pX >= 64) pX = 0;
-				if(pY >= 32) pY = 0;
-				if(I + j >= memory.length || (pY * 64 + pX >= videomem.length)) {
-					die("[Chip8] Segmentation Fault at $0x" + Integer.toHexString(PC-2));
-					return;
-				}
-				int newPx = getBit(memory[I + j], i);
-				if(newPx == 1) {
-					if(videomem[pY * 64 + pX] == 1) VREGISTERS[0xF] = 1;
-					else VREGISTERS[0xF] = 0;
-					videomem[pY * 64 + pX] ^= 1;
-				}
-				pX++;
+	// 0xDXYN, or a 16x16 sprite for 0xDXY0 (SUPER-CHIP).  The start position always wraps; the rest of
+	// the sprite wraps around the edges too, or is clipped there for the CLIP quirk.
+	private void opDraw(byte x, byte y, byte height, boolean wrap) {
+		int rows = height == 0 ? 16 : height;
+		int rowBytes = height == 0 ? 2 : 1;
+		int length = rows * rowBytes;
+		if(watchPages != 0) checkWatch(I, length, false);
+		if(I < 0 || I + length > memory.length) {
+			fault("[Chip8] Segmentation Fault at $0x" + Integer.toHexString(PC-2));
+			return;
+		}
+		if(coverage != null) {
+			for(int i = 0; i < length; i++) {
+				coverage[I + i] |= Coverage.READ;
+			}
+		}
+		int width = getDisplayWidth();
+		int startX = unsign(VREGISTERS[x]) % width;
+		int startY = unsign(VREGISTERS[y]) % getDisplayHeight();
+		int shift = startX & 63;
+		boolean collision = false;
+		if(!wrap) rows = Math.min(rows, getDisplayHeight() - startY);
+		for(int j = 0; j < rows; j++) {
+			int bits = rowBytes == 1 ? unsign(memory[I + j]) : (unsign(memory[I + j*2]) << 8) | unsign(memory[I + j*2 + 1]);
+			if(bits == 0) continue;
+			long sprite = (long) bits << (64 - rowBytes * 8);
+			long first, second;
+			if(!hires) {
+				first = wrap ? Long.rotateRight(sprite, startX) : sprite >>> startX;
+				second = 0;
 			}
-			pX = startX;
-			pY++;
+			else {
+				// The sprite starts in one word and spills into the next, wrapping from the right edge to the left
+				long head = sprite >>> shift;
+				long tail = shift == 0 || (!wrap && startX >= 64) ? 0 : sprite << (64 - shift);
+				first = startX < 64 ? head : tail;
+				second = startX < 64 ? tail : head;
+			}
+			int p = ((startY + j) % getDisplayHeight()) * 2;
+			if((display[p] & first) != 0 || (display[p + 1] & second) != 0) collision = true;
+			display[p] ^= first;
+			display[p + 1] ^= second;
 		}
+		VREGISTERS[0xF] = (byte) (collision ? 1 : 0);
 		needsRedraw = true;
+		if(plugins != null) plugins.draw(startX, startY, height, I, collision);
 	}
 	
 	// 0xEX9E
 	private void opSkipKey(byte x) {
-		if(input.c8KeyPressed(x)) {
+		if(input.c8KeyPressed(VREGISTERS[x] & 0xF)) {
 			PC += 2;
 		}
 	}
 	
 	// 0xEXA1
 	private void opSkipNotKey(byte x) {
-		if(!input.c8KeyPressed(x)) {
+		if(!input.c8KeyPressed(VREGISTERS[x] & 0xF)) {
 			PC += 2;
 		}
 	}
@@ -455,7 +1225,13 @@ public class VCPU extends Canvas {
 	
 	// 0xFX0A
 	private void opWaitKey(byte x) {
-		VREGISTERS[x] = (byte)input.waitForC8Key();
+		int key = input.pollC8Key();
+		if(key < 0) {
+			PC -= 2; // No key yet; execute this instruction again so timers keep running
+		}
+		else {
+			VREGISTERS[x] = (byte)key;
+		}
 	}
 	
 	// 0xFX15
@@ -466,51 +1242,86 @@ public class VCPU extends Canvas {
 	// 0xFX18
 	private void opLdST(byte x) {
 		ST = VREGISTERS[x];
+		if(sound != null) updateSound();
 	}
 	
 	// 0xFX1E
 	private void opAddI(byte x) {
-		I += VREGISTERS[x];
+		I += unsign(VREGISTERS[x]);
 	}
 	
 	// 0xFX29
 	private void opLdChar(byte x) {
-		I = (short) (VREGISTERS[x] * 5);
+		I = (short) ((VREGISTERS[x] & 0xF) * 5);
+	}
+	
+	// 0xFX30 (SUPER-CHIP)
+	private void opLdBigChar(byte x) {
+		I = (short) (BIG_FONT + (VREGISTERS[x] & 0xF) * 10);
+	}
+	
+	// 0xFX75 (SUPER-CHIP): save V0-VX (X < 8) to the user flags
+	private void opStoFlags(byte x) {
+		System.arraycopy(VREGISTERS, 0, flags, 0, Math.min(x, 7) + 1);
+	}
+	
+	// 0xFX85 (SUPER-CHIP)
+	private void opLdFlags(byte x) {
+		System.arraycopy(flags, 0, VREGISTERS, 0, Math.min(x, 7) + 1);
 	}
 	
 	// 0xFX33
 	private void opLdBcd(byte x) {
-		byte hundred = (byte)(VREGISTERS[x] / 100);
-		byte ten = (byte)((VREGISTERS[x] % 100) / 10);
-		byte one = (byte)(VREGISTERS[x] % 10);
-		if(I >= memory.length || I+1 >= memory.length || I+2 > memory.length) {
-			die("[Chip8] Segmentation Fault at $0x" + Integer.toHexString(PC-2));
+		if(watchPages != 0) checkWatch(I, 3, true);
+		int value = unsign(VREGISTERS[x]);
+		byte hundred = (byte)(value / 100);
+		byte ten = (byte)((value % 100) / 10);
+		byte one = (byte)(value % 10);
+		if(I < 0 || I+2 >= memory.length) {
+			fault("[Chip8] Segmentation Fault at $0x" + Integer.toHexString(PC-2));
 			return;
 		}
 		memory[I] = hundred;
 		memory[I+1] = ten;
 		memory[I+2] = one;
+		invalidate(I, 3);
+		if(writeHooks != null) {
+			hookWrite(I);
+			hookWrite(I+1);
+			hookWrite(I+2);
+		}
+		if(coverage != null) {
+			coverage[I] |= Coverage.WRITTEN;
+			coverage[I+1] |= Coverage.WRITTEN;
+			coverage[I+2] |= Coverage.WRITTEN;
+		}
 	}
 	
 	// 0xFX55
 	private void opStoAllVx(byte x) {
+		if(watchPages != 0) checkWatch(I, x + 1, true);
 		for(int i = 0; i <= x; i++) {
 			if(I + i >= memory.length) {
-				die("[Chip8] Segmentation Fault at $0x" + Integer.toHexString(PC-2));
+				fault("[Chip8] Segmentation Fault at $0x" + Integer.toHexString(PC-2));
 				return;
 			}
-			memory[I + i] = VREGISTERS[x];
+			memory[I + i] = VREGISTERS[i];
+			invalidate(I + i, 1);
+			if(writeHooks != null) hookWrite(I + i);
+			if(coverage != null) coverage[I + i] |= Coverage.WRITTEN;
 		}
 	}
 	
 	// 0xFX65
 	private void opLdAllVx(byte x) {
+		if(watchPages != 0) checkWatch(I, x + 1, false);
 		for(int i = 0; i <= x; i++) {
 			if(I + i >= memory.length) {
-				die("[Chip8] Segmentation Fault at $0x" + Integer.toHexString(PC-2));
+				fault("[Chip8] Segmentation Fault at $0x" + Integer.toHexString(PC-2));
 				return;
 			}
 			VREGISTERS[i] = memory[I + i];
+			if(coverage != null) coverage[I + i] |= Coverage.READ;
 		}
 	}
 
@@ -539,6 +1350,36 @@ public class VCPU extends Canvas {
 		return (byte)((input >> (7-index)) & 0x01);
 	}
 	
+	/**
+	 * A 64-bit FNV-1a hash of registers, memory and framebuffer, cheap enough to compare every frame
+	 */
+	public long stateHash() {
+		long h = 0xCBF29CE484222325L;
+		for(byte b : memory) h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+		for(long w : display) h = (h ^ w) * 0x100000001B3L;
+		h = (h ^ (hires ? 1 : 0)) * 0x100000001B3L;
+		for(byte b : flags) h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+		for(byte b : VREGISTERS) h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+		for(short s : STACK) h = (h ^ (s & 0xFFFF)) * 0x100000001B3L;
+		h = (h ^ (I & 0xFFFF)) * 0x100000001B3L;
+		h = (h ^ (PC & 0xFFFF)) * 0x100000001B3L;
+		h = (h ^ SP) * 0x100000001B3L;
+		h = (h ^ (DT & 0xFF)) * 0x100000001B3L;
+		h = (h ^ (ST & 0xFF)) * 0x100000001B3L;
+		return (h ^ random) * 0x100000001B3L;
+	}
+	
+	/**
+	 * A cheap hash of the CPU registers (not memory), used to spot new machine states
+	 */
+	public int registerHash() {
+		int h = Arrays.hashCode(VREGISTERS);
+		h = h * 31 + PC;
+		h = h * 31 + I;
+		h = h * 31 + SP;
+		return h * 31 + DT;
+	}
+	
 	public void printState() {
 		System.out.println("---[ VCPU State ]---------");
 		System.out.println("PC: " + PC);